@@ -78,6 +78,7 @@ public class CoreInitializer extends AbstractUIPlugin implements IStartup {
     @Override
 	public void stop(BundleContext context) throws Exception {
         Core.getProjectDAO().save();
+        Core.shutdown();
 
         instance = null;
         super.stop(context);
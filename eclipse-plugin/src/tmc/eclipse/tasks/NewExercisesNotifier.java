@@ -0,0 +1,87 @@
+package tmc.eclipse.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTException;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Shell;
+
+import tmc.eclipse.activator.CoreInitializer;
+import tmc.eclipse.ui.CustomNotification;
+import tmc.eclipse.ui.ExerciseSelectorDialog;
+import tmc.eclipse.ui.Notifier;
+import fi.helsinki.cs.tmc.core.old.Core;
+import fi.helsinki.cs.tmc.core.old.domain.Course;
+import fi.helsinki.cs.tmc.core.old.domain.Exercise;
+import fi.helsinki.cs.tmc.core.old.services.ExerciseChanges;
+import fi.helsinki.cs.tmc.core.old.services.SyncListener;
+
+/**
+ * Notifies the user of new or updated exercises found by the background sync.
+ * Called on the UI thread with the changes only; the requests to the server
+ * are made by the sync engine on its own thread.
+ */
+public class NewExercisesNotifier implements SyncListener {
+    private ExerciseSelectorDialog dialog;
+    private CustomNotification notification;
+
+    @Override
+    public void coursesChanged(List<Course> added, List<Course> removed) {
+    }
+
+    @Override
+    public void exercisesChanged(Course course, ExerciseChanges changes) {
+        if (notification != null && notification.isAlive()) {
+            return;
+        }
+
+        if (!Core.getSettings().isLoggedIn() || !hasNewDownloads(changes)) {
+            return;
+        }
+
+        final Shell shell = CoreInitializer.getDefault().getWorkbenchHelper().getUsableShell();
+
+        if (dialog != null) {
+            try {
+                dialog.close();
+                dialog = null;
+            } catch (SWTException e) {
+                // Closed by user, just continue as usual.
+            }
+        }
+
+        notification = Notifier.getInstance().createNotification("New exercises are available. ",
+                "Click here to download. ", new Listener() {
+                    @Override
+                    public void handleEvent(Event arg0) {
+                        Display.getDefault().asyncExec(new Runnable() {
+                            @Override
+                            public void run() {
+                                dialog = new ExerciseSelectorDialog(shell, SWT.SHEET);
+                                dialog.open();
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Whether any of the added or changed exercises could be downloaded, as in
+     * Course.getDownloadableExercises().
+     */
+    private boolean hasNewDownloads(ExerciseChanges changes) {
+        List<Exercise> exercises = new ArrayList<Exercise>(changes.getAdded());
+        exercises.addAll(changes.getChecksumChanged());
+
+        for (Exercise e : exercises) {
+            if ((e.isDownloadable() || e.shouldBeUpdated()) && !e.isCompleted()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,12 +1,15 @@
 package tmc.eclipse.tasks;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import org.eclipse.swt.widgets.Display;
+
 import fi.helsinki.cs.tmc.core.old.Core;
 import fi.helsinki.cs.tmc.core.old.services.Settings;
+import fi.helsinki.cs.tmc.core.old.services.SyncEngine;
 
 public class RecurringTaskRunner {
     private static int INITIAL_WAIT = 0;
@@ -17,14 +20,29 @@ public class RecurringTaskRunner {
     // 3600s = 60s * 60min = every 1h
     private static int EXERCISE_UPDATE_INTERVAL = 3600;
 
+    // Spread the updates of different clients by +-10%
+    private static double EXERCISE_UPDATE_JITTER = 0.1;
+
     private ScheduledExecutorService scheduler;
     private Settings settings;
-
-    private ScheduledFuture<?> exerciseUpdaterBackgroundTask;
+    private SyncEngine syncEngine;
 
     public RecurringTaskRunner(Settings settings) {
         this.scheduler = Executors.newScheduledThreadPool(2);
         this.settings = settings;
+        this.syncEngine = Core.getSyncEngine();
+
+        // The changes are shown on the UI thread, the updates are fetched on
+        // the sync engine's own thread
+        syncEngine.addListener(new NewExercisesNotifier(), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Display.getDefault().asyncExec(command);
+            }
+        });
+        for (SyncEngine.Resource resource : SyncEngine.Resource.values()) {
+            syncEngine.setSchedule(resource, TimeUnit.SECONDS.toMillis(EXERCISE_UPDATE_INTERVAL), EXERCISE_UPDATE_JITTER);
+        }
     }
 
     public void startRecurringTasks() {
@@ -35,7 +53,7 @@ public class RecurringTaskRunner {
 
     public void updateBackgroundExerciseUpdateChecks() {
         boolean shouldRun = settings.isCheckingForUpdatesInTheBackground();
-        boolean isRunning = exerciseUpdaterBackgroundTask != null;
+        boolean isRunning = syncEngine.isRunning();
 
         if (shouldRun && !isRunning) {
             startBackgroundExerciseUpdateChecks();
@@ -50,15 +68,10 @@ public class RecurringTaskRunner {
     }
 
     private void startBackgroundExerciseUpdateChecks() {
-        CheckForNewOrUpdatedExercisesOnBackgroundTask task = new CheckForNewOrUpdatedExercisesOnBackgroundTask();
-        exerciseUpdaterBackgroundTask = scheduler.scheduleAtFixedRate(task, INITIAL_WAIT, EXERCISE_UPDATE_INTERVAL,
-                TimeUnit.SECONDS);
+        syncEngine.start();
     }
 
     private void endBackgroundExerciseUpdateChecks() {
-        if (exerciseUpdaterBackgroundTask != null) {
-            exerciseUpdaterBackgroundTask.cancel(true);
-            exerciseUpdaterBackgroundTask = null;
-        }
+        syncEngine.stop();
     }
 }
@@ -90,7 +90,7 @@ public final class TaskStarter {
      *            eclipse UI
      */
     public static void startExerciseUploadTask(EclipseIdeUIInvoker invoker) {
-        ProjectUploader uploader = new ProjectUploader(Core.getServerManager());
+        ProjectUploader uploader = new ProjectUploader(Core.getServerManager(), Core.getSubmissionZipCache());
         WorkbenchHelper helper = CoreInitializer.getDefault().getWorkbenchHelper();
         EclipseProjectIconHandler handler = new EclipseProjectIconHandler();
         helper.initialize();
@@ -112,7 +112,7 @@ public final class TaskStarter {
      *            The message that will be shown alongside with the paste
      */
     public static void startPastebinTask(EclipseIdeUIInvoker invoker, String pasteMessage) {
-        ProjectUploader uploader = new ProjectUploader(Core.getServerManager());
+        ProjectUploader uploader = new ProjectUploader(Core.getServerManager(), Core.getSubmissionZipCache());
         WorkbenchHelper helper = CoreInitializer.getDefault().getWorkbenchHelper();
         helper.initialize();
 
@@ -134,7 +134,7 @@ public final class TaskStarter {
      *            Message that will be shown alongside the request
      */
     public static void startCodeReviewRequestTask(EclipseIdeUIInvoker invoker, String requestMessage) {
-        ProjectUploader uploader = new ProjectUploader(Core.getServerManager());
+        ProjectUploader uploader = new ProjectUploader(Core.getServerManager(), Core.getSubmissionZipCache());
         WorkbenchHelper helper = CoreInitializer.getDefault().getWorkbenchHelper();
         helper.initialize();
 
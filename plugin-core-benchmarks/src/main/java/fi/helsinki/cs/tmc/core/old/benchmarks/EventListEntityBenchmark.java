@@ -0,0 +1,68 @@
+package fi.helsinki.cs.tmc.core.old.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.helsinki.cs.tmc.core.old.services.http.EventListEntity;
+import fi.helsinki.cs.tmc.core.old.spyware.services.LoggableEvent;
+
+/**
+ * Encoding a batch of spyware events into the gzipped JSON body of an upload.
+ * This replaced ServerManager.eventListToPostBody. Every tenth event is a
+ * source snapshot and the rest are text edits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class EventListEntityBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    private int events;
+
+    private EventListEntity entity;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        final Random random = Fixtures.random();
+        final List<LoggableEvent> list = new ArrayList<LoggableEvent>();
+
+        for (int i = 0; i < events; i++) {
+            if (i % 10 == 0) {
+                list.add(new LoggableEvent("course", "exercise", "code_snapshot", Fixtures.randomBytes(random, 8 * 1024),
+                        "{\"cause\":\"file_change\",\"file\":\"src/Main.java\"}"));
+            } else {
+                final String patch = "{\"file\":\"src/Main.java\",\"patches\":\"" + Fixtures.sourceText(random, 200)
+                        + "\",\"full_document\":false}";
+                list.add(new LoggableEvent("course", "exercise", "text_insert", patch.getBytes("UTF-8")));
+            }
+        }
+
+        entity = new EventListEntity(list);
+    }
+
+    @Benchmark
+    public void writeTo() throws IOException {
+
+        entity.writeTo(NullOutputStream.NULL_OUTPUT_STREAM);
+    }
+}
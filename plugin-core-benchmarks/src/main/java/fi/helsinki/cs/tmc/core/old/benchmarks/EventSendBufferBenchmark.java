@@ -0,0 +1,94 @@
+package fi.helsinki.cs.tmc.core.old.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.helsinki.cs.tmc.core.old.async.tasks.SingletonTask;
+import fi.helsinki.cs.tmc.core.old.io.FileIO;
+import fi.helsinki.cs.tmc.core.old.services.Settings;
+import fi.helsinki.cs.tmc.core.old.spyware.services.EventJournal;
+import fi.helsinki.cs.tmc.core.old.spyware.services.EventSendBuffer;
+import fi.helsinki.cs.tmc.core.old.spyware.services.EventStore;
+import fi.helsinki.cs.tmc.core.old.spyware.services.LoggableEvent;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.RingBuffer;
+
+/**
+ * Editor threads handing events to the send buffer. The saving and sending
+ * tasks do nothing, so only the cost seen by the editor threads is measured;
+ * once the queue is full the oldest events are overwritten.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class EventSendBufferBenchmark {
+
+    private static final Runnable NOTHING = new Runnable() {
+
+        @Override
+        public void run() {
+
+        }
+    };
+
+    private File directory;
+    private ScheduledExecutorService scheduler;
+    private EventSendBuffer buffer;
+    private LoggableEvent event;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        directory = Fixtures.createTempDirectory("tmc-event-benchmark");
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        final Settings settings = new Settings(Fixtures.memoryPreferences());
+        settings.setIsSpywareEnabled(true);
+
+        buffer = new EventSendBuffer(new EventJournal(new FileIO(new File(directory, "events.journal").getPath())), new EventStore(
+                new FileIO(new File(directory, "events.tmp").getPath())), settings, new RingBuffer<LoggableEvent>(
+                EventSendBuffer.DEFAULT_MAX_EVENTS), new SingletonTask(NOTHING, scheduler), new SingletonTask(NOTHING, scheduler));
+
+        event = new LoggableEvent("course", "exercise", "text_insert", Fixtures.sourceText(Fixtures.random(), 200).getBytes("UTF-8"));
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        buffer.close();
+        scheduler.shutdownNow();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void receiveEventUncontended() {
+
+        buffer.receiveEvent(event);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void receiveEventContended() {
+
+        buffer.receiveEvent(event);
+    }
+}
@@ -0,0 +1,167 @@
+package fi.helsinki.cs.tmc.core.old.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.prefs.AbstractPreferences;
+import java.util.prefs.Preferences;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Synthetic inputs shared by the benchmarks. Everything is generated from a
+ * fixed seed so that runs are comparable.
+ */
+final class Fixtures {
+
+    private static final long SEED = 42;
+
+    private static final String[] WORDS = { "int", "return", "public", "final", "String", "count", "for", "if", "else", "list",
+            "value", "index", "result", "new", "while", "student", "exercise", "points" };
+
+    private Fixtures() {
+
+    }
+
+    static Random random() {
+
+        return new Random(SEED);
+    }
+
+    static File createTempDirectory(final String prefix) throws IOException {
+
+        final File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    static void delete(final File directory) {
+
+        FileUtils.deleteQuietly(directory);
+    }
+
+    /**
+     * Creates an Ant style exercise with the given number of source files,
+     * spread over a few packages, inside the given directory.
+     */
+    static File createProject(final File parent, final String name, final int files, final int fileSize) throws IOException {
+
+        final File root = new File(parent, name);
+        final Random random = random();
+
+        FileUtils.writeStringToFile(new File(root, "build.xml"), "<project name=\"" + name + "\" default=\"test\"/>\n", "UTF-8");
+
+        for (int i = 0; i < files; i++) {
+            final String folder = (i % 5 == 0 ? "test" : "src") + "/pkg" + (i % 7);
+            final File source = new File(root, folder + "/Source" + i + ".java");
+            FileUtils.writeStringToFile(source, sourceText(random, fileSize), "UTF-8");
+        }
+
+        return root;
+    }
+
+    /**
+     * Returns source-like text of about the given length, in lines of a
+     * typical length.
+     */
+    static String sourceText(final Random random, final int length) {
+
+        final StringBuilder text = new StringBuilder(length + 80);
+        while (text.length() < length) {
+            text.append("        ");
+            final int words = 3 + random.nextInt(8);
+            for (int i = 0; i < words; i++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            text.append(";\n");
+        }
+        return text.toString();
+    }
+
+    static byte[] randomBytes(final Random random, final int length) {
+
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Preferences kept in memory, so that benchmarks never touch the
+     * preferences of the user.
+     */
+    static Preferences memoryPreferences() {
+
+        return new MemoryPreferences(null, "");
+    }
+
+    private static final class MemoryPreferences extends AbstractPreferences {
+
+        private final Map<String, String> values = new HashMap<String, String>();
+        private final Map<String, MemoryPreferences> children = new HashMap<String, MemoryPreferences>();
+
+        private MemoryPreferences(final MemoryPreferences parent, final String name) {
+
+            super(parent, name);
+        }
+
+        @Override
+        protected void putSpi(final String key, final String value) {
+
+            values.put(key, value);
+        }
+
+        @Override
+        protected String getSpi(final String key) {
+
+            return values.get(key);
+        }
+
+        @Override
+        protected void removeSpi(final String key) {
+
+            values.remove(key);
+        }
+
+        @Override
+        protected void removeNodeSpi() {
+
+        }
+
+        @Override
+        protected String[] keysSpi() {
+
+            return values.keySet().toArray(new String[values.size()]);
+        }
+
+        @Override
+        protected String[] childrenNamesSpi() {
+
+            return children.keySet().toArray(new String[children.size()]);
+        }
+
+        @Override
+        protected AbstractPreferences childSpi(final String name) {
+
+            MemoryPreferences child = children.get(name);
+            if (child == null) {
+                child = new MemoryPreferences(this, name);
+                children.put(name, child);
+            }
+            return child;
+        }
+
+        @Override
+        protected void syncSpi() {
+
+        }
+
+        @Override
+        protected void flushSpi() {
+
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package fi.helsinki.cs.tmc.core.old.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.helsinki.cs.tmc.core.old.services.http.HttpClientFactoryImpl;
+
+/**
+ * Requests per second against a local stub server, with the shared pooled
+ * client and with a new client for every request as was done before the
+ * pool. The stub answers at once, so the connection set-up dominates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Threads(4)
+public class HttpClientBenchmark {
+
+    private StubHttpServer server;
+    private HttpClientFactoryImpl pooled;
+    private String url;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        server = new StubHttpServer("{\"courses\":[]}");
+        url = "http://127.0.0.1:" + server.getPort() + "/courses.json";
+        pooled = new HttpClientFactoryImpl();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+
+        pooled.shutdown();
+        server.close();
+    }
+
+    @Benchmark
+    public int pooledClient() throws IOException {
+
+        return get(pooled.makeHttpClient());
+    }
+
+    @Benchmark
+    public int clientPerRequest() throws IOException {
+
+        final CloseableHttpClient client = HttpClients.createSystem();
+        try {
+            return get(client);
+        } finally {
+            client.close();
+        }
+    }
+
+    private int get(final CloseableHttpClient client) throws IOException {
+
+        final CloseableHttpResponse response = client.execute(new HttpGet(url));
+        try {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package fi.helsinki.cs.tmc.core.old.benchmarks;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.helsinki.cs.tmc.core.old.spyware.utility.diff_match_patch;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.diff_match_patch.Patch;
+
+/**
+ * Patches made for document change events: a single keystroke, a typed
+ * line, a pasted block and a removed block, in documents of typical sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class PatchBenchmark {
+
+    @Param({ "2000", "20000" })
+    private int documentSize;
+
+    @Param({ "keystroke", "line", "paste", "removal" })
+    private String edit;
+
+    private final diff_match_patch patchGenerator = new diff_match_patch();
+
+    private String before;
+    private String after;
+
+    @Setup
+    public void setUp() {
+
+        final Random random = Fixtures.random();
+        before = Fixtures.sourceText(random, documentSize);
+
+        final int position = before.indexOf('\n', before.length() / 2) + 1;
+
+        if ("keystroke".equals(edit)) {
+            after = before.substring(0, position) + "x" + before.substring(position);
+        } else if ("line".equals(edit)) {
+            after = before.substring(0, position) + "        int sum = count + value;\n" + before.substring(position);
+        } else if ("paste".equals(edit)) {
+            after = before.substring(0, position) + Fixtures.sourceText(random, 1500) + before.substring(position);
+        } else if ("removal".equals(edit)) {
+            after = before.substring(0, position) + before.substring(Math.min(before.length(), position + 500));
+        } else {
+            throw new IllegalArgumentException("Unknown edit " + edit);
+        }
+    }
+
+    @Benchmark
+    public LinkedList<Patch> patchMake() {
+
+        return patchGenerator.patch_make(before, after);
+    }
+}
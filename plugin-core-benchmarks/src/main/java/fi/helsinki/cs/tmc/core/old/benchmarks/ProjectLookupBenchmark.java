@@ -0,0 +1,88 @@
+package fi.helsinki.cs.tmc.core.old.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.helsinki.cs.tmc.core.old.domain.Exercise;
+import fi.helsinki.cs.tmc.core.old.domain.Project;
+import fi.helsinki.cs.tmc.core.old.services.ProjectDAO;
+import fi.helsinki.cs.tmc.core.old.storage.DataSource;
+
+/**
+ * Finding the project of a file, which is done for every document change and
+ * file save. Projects are spread over courses like in a real workspace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ProjectLookupBenchmark {
+
+    private static final String WORKSPACE = "/home/student/tmc";
+    private static final int EXERCISES_PER_COURSE = 100;
+
+    @Param({ "10", "200", "2000" })
+    private int projects;
+
+    private ProjectDAO projectDAO;
+    private String fileInLastProject;
+    private String fileOutsideProjects;
+
+    @Setup
+    public void setUp() {
+
+        final List<Project> list = new ArrayList<Project>();
+        for (int i = 0; i < projects; i++) {
+            final String course = "course" + (i / EXERCISES_PER_COURSE);
+            final String root = WORKSPACE + "/" + course + "/exercise" + i;
+            final Exercise exercise = new Exercise("exercise" + i, course);
+            list.add(new Project(exercise, new ArrayList<String>(Arrays.asList(root + "/build.xml", root + "/src/Main.java",
+                    root + "/test/MainTest.java"))));
+        }
+
+        projectDAO = new ProjectDAO(new DataSource<Project>() {
+
+            @Override
+            public List<Project> load() {
+
+                return list;
+            }
+
+            @Override
+            public void save(final List<Project> elements) {
+
+            }
+        });
+
+        fileInLastProject = list.get(list.size() - 1).getRootPath() + "/src/fi/helsinki/cs/Main.java";
+        fileOutsideProjects = WORKSPACE + "/notes/todo.txt";
+    }
+
+    @Benchmark
+    public Project getProjectByFileHit() {
+
+        return projectDAO.getProjectByFile(fileInLastProject);
+    }
+
+    @Benchmark
+    public Project getProjectByFileMiss() {
+
+        return projectDAO.getProjectByFile(fileOutsideProjects);
+    }
+}
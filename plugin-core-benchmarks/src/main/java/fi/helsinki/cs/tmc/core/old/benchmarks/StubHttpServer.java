@@ -0,0 +1,136 @@
+package fi.helsinki.cs.tmc.core.old.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Minimal keep-alive HTTP/1.1 server on the loopback interface that answers
+ * every request with the same JSON body, one thread per connection. Request
+ * bodies are not supported.
+ */
+final class StubHttpServer implements Closeable {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ServerSocket serverSocket;
+    private final byte[] response;
+    private final Set<Socket> connections = Collections.synchronizedSet(new HashSet<Socket>());
+
+    StubHttpServer(final String body) throws IOException {
+
+        final byte[] bodyBytes = body.getBytes(Charset.forName("UTF-8"));
+        final byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + bodyBytes.length + "\r\n\r\n")
+                .getBytes(ASCII);
+
+        response = new byte[head.length + bodyBytes.length];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(bodyBytes, 0, response, head.length, bodyBytes.length);
+
+        serverSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+        startDaemon(new Runnable() {
+
+            @Override
+            public void run() {
+
+                acceptLoop();
+            }
+        }, "Stub HTTP acceptor");
+    }
+
+    int getPort() {
+
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        serverSocket.close();
+        synchronized (connections) {
+            for (final Socket socket : connections) {
+                socket.close();
+            }
+        }
+    }
+
+    private void acceptLoop() {
+
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                startDaemon(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        serve(socket);
+                    }
+                }, "Stub HTTP connection");
+            } catch (final IOException ex) {
+                // Closed
+            }
+        }
+    }
+
+    private void serve(final Socket socket) {
+
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            while (skipRequest(in)) {
+                out.write(response);
+                out.flush();
+            }
+        } catch (final IOException ex) {
+            // Connection closed by the client
+        } finally {
+            connections.remove(socket);
+            try {
+                socket.close();
+            } catch (final IOException ex) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Reads a request up to the empty line that ends its headers.
+     *
+     * @return false if the connection was closed
+     */
+    private static boolean skipRequest(final InputStream in) throws IOException {
+
+        int matched = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if ((b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3))) {
+                matched++;
+                if (matched == 4) {
+                    return true;
+                }
+            } else {
+                matched = b == '\r' ? 1 : 0;
+            }
+        }
+        return false;
+    }
+
+    private static void startDaemon(final Runnable runnable, final String name) {
+
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,80 @@
+package fi.helsinki.cs.tmc.core.old.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.helsinki.cs.tmc.core.old.domain.TestRunResult;
+import fi.helsinki.cs.tmc.core.old.utils.TestResultParser;
+
+/**
+ * Parsing the results file written by the test runner. Every third test
+ * fails with a stack trace, as is common while an exercise is in progress.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class TestResultParserBenchmark {
+
+    private static final int STACK_DEPTH = 20;
+
+    @Param({ "10", "100", "1000" })
+    private int tests;
+
+    private final TestResultParser parser = new TestResultParser();
+    private String resultsJson;
+
+    @Setup
+    public void setUp() {
+
+        final StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < tests; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"className\":\"fi.helsinki.cs.ExerciseTest\",\"methodName\":\"test").append(i)
+                    .append("\",\"pointNames\":[\"").append(i / 3 + 1).append("\"],");
+
+            if (i % 3 == 0) {
+                json.append("\"status\":\"FAILED\",\"message\":\"expected:<").append(i).append("> but was:<0>\",");
+                appendException(json);
+            } else {
+                json.append("\"status\":\"PASSED\",\"message\":null,\"exception\":null");
+            }
+            json.append('}');
+        }
+        resultsJson = json.append(']').toString();
+    }
+
+    @Benchmark
+    public TestRunResult parseTestResults() {
+
+        return parser.parseTestResults(resultsJson);
+    }
+
+    private static void appendException(final StringBuilder json) {
+
+        json.append("\"exception\":{\"className\":\"java.lang.AssertionError\",\"message\":\"expected\",\"stackTrace\":[");
+        for (int frame = 0; frame < STACK_DEPTH; frame++) {
+            if (frame > 0) {
+                json.append(',');
+            }
+            json.append("{\"declaringClass\":\"org.junit.Assert\",\"methodName\":\"fail\",\"fileName\":\"Assert.java\",\"lineNumber\":")
+                    .append(88 + frame).append('}');
+        }
+        json.append("],\"cause\":null}");
+    }
+}
@@ -0,0 +1,115 @@
+package fi.helsinki.cs.tmc.core.old.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.helsinki.cs.tmc.core.old.io.FileIO;
+import fi.helsinki.cs.tmc.core.old.io.FileUtil;
+import fi.helsinki.cs.tmc.core.old.io.zip.RecursiveZipper;
+import fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider.ZipAllTheThings;
+
+/**
+ * Memory allocated per snapshot zip, before and after the zip writer.
+ * The legacy variant is the earlier RecursiveZipper, which wrote through a
+ * ZipOutputStream into a ByteArrayOutputStream.
+ *
+ * Run with the GC profiler and compare the gc.alloc.rate.norm results, the
+ * bytes allocated per operation:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar ZipAllocationBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ZipAllocationBenchmark {
+
+    @Param({ "10", "100" })
+    private int files;
+
+    @Param({ "2048" })
+    private int fileSize;
+
+    private File workDirectory;
+    private File project;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        workDirectory = Fixtures.createTempDirectory("tmc-zip-allocation-benchmark");
+        project = Fixtures.createProject(workDirectory, "exercise", files, fileSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        Fixtures.delete(workDirectory);
+    }
+
+    @Benchmark
+    public byte[] legacyZip() throws IOException {
+
+        final ByteArrayOutputStream zipBuffer = new ByteArrayOutputStream();
+        final ZipOutputStream zipStream = new ZipOutputStream(zipBuffer);
+        try {
+            legacyZipRecursively(new FileIO(project.getPath()), zipStream, "");
+        } finally {
+            zipStream.close();
+        }
+        return zipBuffer.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] zip() throws IOException {
+
+        return new RecursiveZipper(new FileIO(project.getPath()), new ZipAllTheThings()).zipProjectSources();
+    }
+
+    private static void legacyZipRecursively(final FileIO directory, final ZipOutputStream zipStream, final String parentZipPath)
+            throws IOException {
+
+        final String thisDirZipPath = parentZipPath.isEmpty() ? directory.getName() : FileUtil.append(parentZipPath, directory.getName());
+
+        zipStream.putNextEntry(new ZipEntry(FileUtil.append(thisDirZipPath, "")));
+        zipStream.closeEntry();
+
+        for (final FileIO file : directory.getChildren()) {
+            if (file.directoryExists()) {
+                legacyZipRecursively(file, zipStream, thisDirZipPath);
+                continue;
+            }
+
+            zipStream.putNextEntry(new ZipEntry(FileUtil.append(thisDirZipPath, file.getName())));
+            final InputStream in = file.getInputStream();
+            try {
+                IOUtils.copy(in, zipStream);
+            } finally {
+                in.close();
+            }
+            zipStream.closeEntry();
+        }
+    }
+}
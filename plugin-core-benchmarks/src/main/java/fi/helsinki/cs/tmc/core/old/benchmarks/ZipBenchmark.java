@@ -0,0 +1,98 @@
+package fi.helsinki.cs.tmc.core.old.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.helsinki.cs.tmc.core.old.domain.ZippedProject;
+import fi.helsinki.cs.tmc.core.old.io.FileIO;
+import fi.helsinki.cs.tmc.core.old.io.zip.RecursiveZipper;
+import fi.helsinki.cs.tmc.core.old.io.zip.Unzipper;
+import fi.helsinki.cs.tmc.core.old.io.zip.unzippingdecider.UnzipAllTheThings;
+import fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider.ZipAllTheThings;
+
+/**
+ * Zipping synthetic projects for snapshots and submissions, and extracting
+ * them from a file and from memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ZipBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    private int files;
+
+    @Param({ "2048" })
+    private int fileSize;
+
+    private File workDirectory;
+    private File project;
+    private File zipFile;
+    private byte[] zipBytes;
+    private File extractDirectory;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        workDirectory = Fixtures.createTempDirectory("tmc-zip-benchmark");
+        project = Fixtures.createProject(workDirectory, "exercise", files, fileSize);
+
+        zipBytes = zipper().zipProjectSources();
+        zipFile = new File(workDirectory, "exercise.zip");
+        FileUtils.writeByteArrayToFile(zipFile, zipBytes);
+
+        extractDirectory = new File(workDirectory, "extracted");
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        Fixtures.delete(workDirectory);
+    }
+
+    @Benchmark
+    public byte[] zipProjectSources() throws IOException {
+
+        return zipper().zipProjectSources();
+    }
+
+    @Benchmark
+    public List<String> unzipFromFile() throws IOException {
+
+        final ZippedProject zip = new ZippedProject();
+        zip.setFile(zipFile);
+        return new Unzipper(zip, new UnzipAllTheThings()).unzipTo(new FileIO(extractDirectory.getPath()));
+    }
+
+    @Benchmark
+    public List<String> unzipFromBytes() throws IOException {
+
+        final ZippedProject zip = new ZippedProject();
+        zip.setBytes(zipBytes);
+        return new Unzipper(zip, new UnzipAllTheThings()).unzipTo(new FileIO(extractDirectory.getPath()));
+    }
+
+    private RecursiveZipper zipper() {
+
+        return new RecursiveZipper(new FileIO(project.getPath()), new ZipAllTheThings());
+    }
+}
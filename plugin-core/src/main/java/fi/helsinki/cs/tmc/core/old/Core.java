@@ -7,6 +7,8 @@ import fi.helsinki.cs.tmc.core.old.services.ProjectDAO;
 import fi.helsinki.cs.tmc.core.old.services.ProjectEventHandler;
 import fi.helsinki.cs.tmc.core.old.services.ReviewDAO;
 import fi.helsinki.cs.tmc.core.old.services.Settings;
+import fi.helsinki.cs.tmc.core.old.services.SubmissionZipCache;
+import fi.helsinki.cs.tmc.core.old.services.SyncEngine;
 import fi.helsinki.cs.tmc.core.old.services.Updater;
 import fi.helsinki.cs.tmc.core.old.services.http.ServerManager;
 import fi.helsinki.cs.tmc.core.old.spyware.SpywarePluginLayer;
@@ -35,6 +37,8 @@ public final class Core {
     private final Updater updater;
 
     private final ProjectEventHandler projectEventHandler;
+    private final SubmissionZipCache submissionZipCache;
+    private final SyncEngine syncEngine;
     private final IOFactory io;
 
     private Core(final ServiceFactory factory) {
@@ -48,6 +52,8 @@ public final class Core {
         errorHandler = new DummyErrorHandler();
         spyware = factory.getSpyware();
         projectEventHandler = factory.getProjectEventHandler();
+        submissionZipCache = factory.getSubmissionZipCache();
+        syncEngine = factory.getSyncEngine();
         io = factory.getIOFactory();
     }
 
@@ -113,11 +119,37 @@ public final class Core {
         return Core.getInstance().projectEventHandler;
     }
 
+    public static SubmissionZipCache getSubmissionZipCache() {
+
+        return Core.getInstance().submissionZipCache;
+    }
+
+    public static SyncEngine getSyncEngine() {
+
+        return Core.getInstance().syncEngine;
+    }
+
     public static IOFactory getIOFactory() {
 
         return Core.getInstance().io;
     }
 
+    /**
+     * Releases resources held by the services, such as pooled HTTP
+     * connections. Pending spyware snapshots and document changes are given a
+     * moment to finish. Should be called when the IDE plugin is stopped.
+     */
+    public static void shutdown() {
+
+        if (core == null) {
+            return;
+        }
+
+        core.syncEngine.shutdown();
+        core.spyware.close();
+        core.server.shutdown();
+    }
+
     public static Core getInstance() {
 
         if (core == null) {
@@ -6,6 +6,8 @@ import fi.helsinki.cs.tmc.core.old.services.ProjectDAO;
 import fi.helsinki.cs.tmc.core.old.services.ProjectEventHandler;
 import fi.helsinki.cs.tmc.core.old.services.ReviewDAO;
 import fi.helsinki.cs.tmc.core.old.services.Settings;
+import fi.helsinki.cs.tmc.core.old.services.SubmissionZipCache;
+import fi.helsinki.cs.tmc.core.old.services.SyncEngine;
 import fi.helsinki.cs.tmc.core.old.services.Updater;
 import fi.helsinki.cs.tmc.core.old.services.http.ServerManager;
 import fi.helsinki.cs.tmc.core.old.spyware.SpywarePluginLayer;
@@ -34,6 +36,10 @@ public interface ServiceFactory {
 
     ProjectEventHandler getProjectEventHandler();
 
+    SubmissionZipCache getSubmissionZipCache();
+
+    SyncEngine getSyncEngine();
+
     IOFactory getIOFactory();
 
 }
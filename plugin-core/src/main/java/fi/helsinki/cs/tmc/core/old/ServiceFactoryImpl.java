@@ -1,9 +1,7 @@
 package fi.helsinki.cs.tmc.core.old;
 
-import java.util.ArrayDeque;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import fi.helsinki.cs.tmc.core.old.async.tasks.SingletonTask;
 import fi.helsinki.cs.tmc.core.old.io.FileIO;
@@ -15,17 +13,25 @@ import fi.helsinki.cs.tmc.core.old.services.ProjectDAO;
 import fi.helsinki.cs.tmc.core.old.services.ProjectEventHandler;
 import fi.helsinki.cs.tmc.core.old.services.ReviewDAO;
 import fi.helsinki.cs.tmc.core.old.services.Settings;
+import fi.helsinki.cs.tmc.core.old.services.SubmissionZipCache;
+import fi.helsinki.cs.tmc.core.old.services.SyncEngine;
 import fi.helsinki.cs.tmc.core.old.services.Updater;
 import fi.helsinki.cs.tmc.core.old.services.http.ServerManager;
 import fi.helsinki.cs.tmc.core.old.spyware.SpywarePluginLayer;
 import fi.helsinki.cs.tmc.core.old.spyware.async.SavingTask;
 import fi.helsinki.cs.tmc.core.old.spyware.async.SendingTask;
+import fi.helsinki.cs.tmc.core.old.spyware.services.DocumentChangeCoalescer;
 import fi.helsinki.cs.tmc.core.old.spyware.services.DocumentChangeHandler;
+import fi.helsinki.cs.tmc.core.old.spyware.services.EventDeduplicater;
+import fi.helsinki.cs.tmc.core.old.spyware.services.EventJournal;
 import fi.helsinki.cs.tmc.core.old.spyware.services.EventSendBuffer;
 import fi.helsinki.cs.tmc.core.old.spyware.services.EventStore;
+import fi.helsinki.cs.tmc.core.old.spyware.services.IncrementalSnapshotter;
 import fi.helsinki.cs.tmc.core.old.spyware.services.LoggableEvent;
 import fi.helsinki.cs.tmc.core.old.spyware.services.SnapshotTaker;
-import fi.helsinki.cs.tmc.core.old.spyware.utility.ActiveThreadSet;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.CoalescingExecutor;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.RingBuffer;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.TaskTracker;
 
 /**
  * Default implementation of ServiceFactory interface. Creates the various
@@ -33,6 +39,11 @@ import fi.helsinki.cs.tmc.core.old.spyware.utility.ActiveThreadSet;
  */
 public final class ServiceFactoryImpl implements ServiceFactory {
 
+    // Zipping a project is disk-bound, so snapshots are taken one at a time
+    private static final int SNAPSHOT_THREADS = 1;
+    private static final int DOCUMENT_THREADS = 2;
+    private static final int SPYWARE_QUEUE_CAPACITY = 64;
+
     private final Settings settings;
     private final CourseDAO courseDAO;
     private final ProjectDAO projectDAO;
@@ -42,6 +53,8 @@ public final class ServiceFactoryImpl implements ServiceFactory {
     private final Updater updater;
     private final SpywarePluginLayer spyware;
     private final ProjectEventHandler projectEventHandler;
+    private final SubmissionZipCache submissionZipCache;
+    private final SyncEngine syncEngine;
 
     private final IOFactory io;
 
@@ -58,24 +71,32 @@ public final class ServiceFactoryImpl implements ServiceFactory {
         reviewDAO = manager.getReviewDAO();
 
         updater = new Updater(server, courseDAO, projectDAO);
-        projectEventHandler = new ProjectEventHandler(projectDAO);
+        syncEngine = new SyncEngine(updater, courseDAO, settings);
+        submissionZipCache = new SubmissionZipCache();
+        projectEventHandler = new ProjectEventHandler(projectDAO, submissionZipCache);
 
-        final AtomicInteger eventsToRemoveAfterSend = new AtomicInteger();
         final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
-        final ArrayDeque<LoggableEvent> sendQueue = new ArrayDeque<LoggableEvent>();
-        final EventStore eventStore = new EventStore(new FileIO("events.tmp"));
+        final RingBuffer<LoggableEvent> sendQueue = new RingBuffer<LoggableEvent>(EventSendBuffer.DEFAULT_MAX_EVENTS);
+        final EventJournal journal = new EventJournal(new FileIO("events.journal"));
+        final EventStore legacyStore = new EventStore(new FileIO("events.tmp"));
+
+        final SingletonTask savingTask = new SingletonTask(new SavingTask(sendQueue, journal), scheduler);
+        final SingletonTask sendingTask = new SingletonTask(new SendingTask(sendQueue, journal, server, courseDAO, settings,
+                savingTask), scheduler);
 
-        final SingletonTask savingTask = new SingletonTask(new SavingTask(sendQueue, eventStore), scheduler);
-        final SingletonTask sendingTask = new SingletonTask(new SendingTask(sendQueue, server, courseDAO, settings, savingTask,
-                eventsToRemoveAfterSend), scheduler);
+        final EventSendBuffer receiver = new EventSendBuffer(journal, legacyStore, settings, sendQueue, sendingTask,
+                savingTask);
 
-        final EventSendBuffer receiver = new EventSendBuffer(eventStore, settings, sendQueue, sendingTask, savingTask, eventsToRemoveAfterSend);
+        final TaskTracker spywareTasks = new TaskTracker();
+        final SnapshotTaker taker = new SnapshotTaker(new CoalescingExecutor("TMC source snapshot", SNAPSHOT_THREADS,
+                SPYWARE_QUEUE_CAPACITY, spywareTasks), new IncrementalSnapshotter(), new EventDeduplicater(receiver), settings,
+                projectDAO);
+        final DocumentChangeHandler handler = new DocumentChangeHandler(receiver, new CoalescingExecutor("TMC document change",
+                DOCUMENT_THREADS, SPYWARE_QUEUE_CAPACITY, spywareTasks), settings, projectDAO);
 
-        final ActiveThreadSet set = new ActiveThreadSet();
-        final SnapshotTaker taker = new SnapshotTaker(set, receiver, settings, projectDAO);
-        final DocumentChangeHandler handler = new DocumentChangeHandler(receiver, set, settings, projectDAO);
+        final DocumentChangeCoalescer coalescer = new DocumentChangeCoalescer(handler);
 
-        spyware = new SpywarePluginLayer(set, receiver, taker, handler);
+        spyware = new SpywarePluginLayer(spywareTasks, receiver, taker, coalescer, handler);
     }
 
     @Override
@@ -126,6 +147,18 @@ public final class ServiceFactoryImpl implements ServiceFactory {
         return projectEventHandler;
     }
 
+    @Override
+    public SubmissionZipCache getSubmissionZipCache() {
+
+        return submissionZipCache;
+    }
+
+    @Override
+    public SyncEngine getSyncEngine() {
+
+        return syncEngine;
+    }
+
     @Override
     public IOFactory getIOFactory() {
 
@@ -1,9 +1,22 @@
 package fi.helsinki.cs.tmc.core.old.async.tasks;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import fi.helsinki.cs.tmc.core.old.async.SimpleBackgroundTask;
+import fi.helsinki.cs.tmc.core.old.async.BackgroundTask;
+import fi.helsinki.cs.tmc.core.old.async.TaskStatusMonitor;
 import fi.helsinki.cs.tmc.core.old.domain.Exercise;
 import fi.helsinki.cs.tmc.core.old.domain.Project;
 import fi.helsinki.cs.tmc.core.old.domain.ProjectStatus;
@@ -12,26 +25,45 @@ import fi.helsinki.cs.tmc.core.old.io.FileIO;
 import fi.helsinki.cs.tmc.core.old.io.FileUtil;
 import fi.helsinki.cs.tmc.core.old.io.IOFactory;
 import fi.helsinki.cs.tmc.core.old.io.zip.Unzipper;
+import fi.helsinki.cs.tmc.core.old.io.zip.unzippingdecider.UnzippingDecider;
 import fi.helsinki.cs.tmc.core.old.io.zip.unzippingdecider.UnzippingDeciderFactory;
 import fi.helsinki.cs.tmc.core.old.services.ProjectDAO;
 import fi.helsinki.cs.tmc.core.old.services.ProjectDownloader;
 import fi.helsinki.cs.tmc.core.old.services.ProjectOpener;
 import fi.helsinki.cs.tmc.core.old.services.Settings;
+import fi.helsinki.cs.tmc.core.old.services.http.HttpClientFactoryImpl;
 import fi.helsinki.cs.tmc.core.old.ui.IdeUIInvoker;
+import fi.helsinki.cs.tmc.core.old.ui.UserVisibleException;
 
 /**
  * This task downloads and unzips projects and opens them in IDE. Like all
  * background tasks, it is run as an asynchronous task to prevent IDE from
  * freezing while the exercises are being updated.
+ *
+ * Exercises go through a pipeline: a bounded pool of workers fetches and
+ * extracts several exercises at once, and the task thread registers and opens
+ * each exercise as soon as it has been extracted. The projects are saved once
+ * after all exercises have been handled.
  */
-public class DownloaderTask extends SimpleBackgroundTask<Exercise> {
+public class DownloaderTask extends BackgroundTask {
 
+    // All exercises are downloaded from the same server, so at least one of
+    // the HTTP client's connections to it is left for other requests
+    private static final int MAX_CONCURRENT_DOWNLOADS = HttpClientFactoryImpl.DEFAULT_MAX_PER_ROUTE - 1;
+
+    private static final Logger LOG = Logger.getLogger(DownloaderTask.class.getName());
+
+    // How often cancellation is checked while waiting for the workers
+    private static final long POLL_INTERVAL = 200;
+
+    private final List<Exercise> exercises;
     private final ProjectDAO projectDao;
     private final Settings settings;
     private final ProjectDownloader downloader;
     private final ProjectOpener opener;
     private final IdeUIInvoker invoker;
     private final IOFactory io;
+    private final int maxConcurrentDownloads;
 
     /**
      *
@@ -54,47 +86,212 @@ public class DownloaderTask extends SimpleBackgroundTask<Exercise> {
     public DownloaderTask(final ProjectDownloader downloader, final ProjectOpener opener, final List<Exercise> exercises,
             final ProjectDAO projectDao, final Settings settings, final IdeUIInvoker invoker, final IOFactory io) {
 
-        super("Downloading exercises", exercises);
+        this(downloader, opener, exercises, projectDao, settings, invoker, io, settings.getMaxConcurrentDownloads());
+    }
+
+    /**
+     * @param maxConcurrentDownloads
+     *            Maximum number of exercises fetched and extracted at the same
+     *            time, at most one less than the HTTP client's connections per
+     *            server
+     */
+    public DownloaderTask(final ProjectDownloader downloader, final ProjectOpener opener, final List<Exercise> exercises,
+            final ProjectDAO projectDao, final Settings settings, final IdeUIInvoker invoker, final IOFactory io,
+            final int maxConcurrentDownloads) {
+
+        super("Downloading exercises");
 
+        this.exercises = exercises;
         this.settings = settings;
         this.downloader = downloader;
         this.opener = opener;
         this.projectDao = projectDao;
         this.invoker = invoker;
         this.io = io;
+        this.maxConcurrentDownloads = Math.max(1, Math.min(MAX_CONCURRENT_DOWNLOADS, maxConcurrentDownloads));
     }
 
-    /**
-     * Handles single exercise downloading, unzipping and opening. This method
-     * is called by the SimpleBackgroundTask super class
-     */
     @Override
-    public void run(final Exercise exercise) {
+    public int start(final TaskStatusMonitor progress) {
+
+        progress.startProgress(getDescription(), exercises.size());
+
+        final ExecutorService workers = Executors.newFixedThreadPool(Math.min(maxConcurrentDownloads, Math.max(1, exercises.size())),
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+
+                        final Thread thread = new Thread(runnable, "TMC exercise downloader");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        final CompletionService<Extracted> completion = new ExecutorCompletionService<Extracted>(workers);
+        final List<Future<Extracted>> pending = new ArrayList<Future<Extracted>>();
+        final FileIO folder = new FileIO(FileUtil.append(settings.getExerciseFilePath(), settings.getCurrentCourseName()));
+        final UnzippingDeciderFactory deciders = new UnzippingDeciderFactory(io);
+        boolean registered = false;
 
         try {
-            exercise.setUpdateAvailable(false);
+            // The project database is only touched from this thread, so the
+            // existing projects are looked up before the workers start
+            for (final Exercise exercise : exercises) {
+                final Project project = projectDao.getProjectByExercise(exercise);
+                pending.add(completion.submit(new FetchAndExtract(exercise, project, deciders.createUnzippingDecider(project), folder)));
+            }
 
-            Project project = projectDao.getProjectByExercise(exercise);
+            for (int done = 0; done < pending.size(); done++) {
+                final Future<Extracted> result = awaitNext(completion, progress);
+                if (result == null) {
+                    return BackgroundTask.RETURN_INTERRUPTED;
+                }
+
+                registered |= registerAndOpen(result);
+                progress.incrementProgress(1);
+            }
+
+            return BackgroundTask.RETURN_SUCCESS;
+
+        } finally {
+            for (final Future<Extracted> future : pending) {
+                future.cancel(true);
+            }
+            workers.shutdownNow();
+
+            if (registered) {
+                projectDao.save();
+            }
+        }
+    }
+
+    /**
+     * Waits for the next extracted exercise, returning null if the task is
+     * cancelled in the meantime.
+     */
+    private Future<Extracted> awaitNext(final CompletionService<Extracted> completion, final TaskStatusMonitor progress) {
+
+        try {
+            Future<Extracted> result = null;
+            while (result == null) {
+                if (shouldStop(progress)) {
+                    return null;
+                }
+                result = completion.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            return result;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
 
-            final ZippedProject zip = downloader.downloadExercise(exercise);
-            final UnzippingDeciderFactory factory = new UnzippingDeciderFactory(io);
-            final Unzipper unzipper = new Unzipper(zip, factory.createUnzippingDecider(project));
-            final FileIO folder = new FileIO(FileUtil.append(settings.getExerciseFilePath(), settings.getCurrentCourseName()));
-            final List<String> fileList = unzipper.unzipTo(folder);
+    /**
+     * Adds the extracted exercise to the project database and opens it.
+     *
+     * @return true if the project database was changed
+     */
+    private boolean registerAndOpen(final Future<Extracted> result) {
 
-            if (project == null) {
-                project = new Project(exercise, fileList);
-                projectDao.addProject(project);
+        final Extracted extracted;
+        try {
+            extracted = result.get();
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof ExtractionException) {
+                final Exercise exercise = ((ExtractionException) cause).exercise;
+                LOG.log(Level.WARNING, "Failed to download or unzip " + exercise.getName(), cause.getCause());
+                if (cause.getCause() instanceof UserVisibleException) {
+                    // Such as the reason a download failed
+                    invoker.raiseVisibleException(cause.getCause().getMessage());
+                } else {
+                    invoker.raiseVisibleException("An error occurred while unzipping the exercises");
+                }
+                exercise.setUpdateAvailable(true);
             } else {
-                project.setProjectFiles(fileList);
+                LOG.log(Level.WARNING, "Exercise download failed", cause);
+            }
+            return false;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        extracted.exercise.setUpdateAvailable(false);
+
+        Project project = extracted.project;
+        if (project == null) {
+            project = new Project(extracted.exercise, extracted.files);
+            projectDao.addProjectWithoutSaving(project);
+        } else {
+            projectDao.setProjectFiles(project, extracted.files);
+        }
+
+        project.setStatus(ProjectStatus.DOWNLOADED);
+
+        opener.open(extracted.exercise);
+        return true;
+    }
+
+    /**
+     * Fetch and extract stages, run by the worker pool.
+     */
+    private class FetchAndExtract implements Callable<Extracted> {
+
+        private final Exercise exercise;
+        private final Project project;
+        private final UnzippingDecider decider;
+        private final FileIO folder;
+
+        FetchAndExtract(final Exercise exercise, final Project project, final UnzippingDecider decider, final FileIO folder) {
+
+            this.exercise = exercise;
+            this.project = project;
+            this.decider = decider;
+            this.folder = folder;
+        }
+
+        @Override
+        public Extracted call() throws ExtractionException {
+
+            ZippedProject zip = null;
+            try {
+                zip = downloader.downloadExercise(exercise);
+                return new Extracted(exercise, project, new Unzipper(zip, decider).unzipTo(folder));
+            } catch (final IOException ex) {
+                throw new ExtractionException(exercise, ex);
+            } catch (final RuntimeException ex) {
+                throw new ExtractionException(exercise, ex);
+            } finally {
+                if (zip != null) {
+                    zip.deleteFile();
+                }
             }
+        }
+    }
+
+    private static final class Extracted {
+
+        private final Exercise exercise;
+        private final Project project;
+        private final List<String> files;
+
+        private Extracted(final Exercise exercise, final Project project, final List<String> files) {
+
+            this.exercise = exercise;
+            this.project = project;
+            this.files = files;
+        }
+    }
+
+    private static final class ExtractionException extends Exception {
+
+        private final transient Exercise exercise;
 
-            project.setStatus(ProjectStatus.DOWNLOADED);
+        private ExtractionException(final Exercise exercise, final Exception cause) {
 
-            opener.open(exercise);
-        } catch (final IOException exception) {
-            invoker.raiseVisibleException("An error occurred while unzipping the exercises");
-            exercise.setUpdateAvailable(true);
+            super(cause);
+            this.exercise = exercise;
         }
     }
 }
@@ -31,7 +31,8 @@ public class Course {
 
     private boolean exercisesLoaded;
 
-    private List<Exercise> exercises;
+    // Replaced by the sync thread and read on the UI thread
+    private volatile List<Exercise> exercises;
     private List<String> unlockables;
 
     public Course() {
@@ -17,11 +17,23 @@ public class Exercise implements Serializable {
 
     private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssX";
 
+    // SimpleDateFormat is not thread-safe and slow to create, so each thread
+    // keeps one
+    private static final ThreadLocal<SimpleDateFormat> DATE_PARSER = new ThreadLocal<SimpleDateFormat>() {
+
+        @Override
+        protected SimpleDateFormat initialValue() {
+
+            return new SimpleDateFormat(DATE_FORMAT);
+        }
+    };
+
     private int id;
 
     private String name;
 
-    private transient Course course;
+    // Replaced by the sync thread and read on the UI thread
+    private transient volatile Course course;
 
     private String courseName;
 
@@ -102,9 +114,8 @@ public class Exercise implements Serializable {
             return;
         }
 
-        final SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         try {
-            deadlineDate = sdf.parse(deadlineString);
+            deadlineDate = DATE_PARSER.get().parse(deadlineString);
         } catch (final ParseException e) {
             // Set to null on failure
             // TODO: Log here?
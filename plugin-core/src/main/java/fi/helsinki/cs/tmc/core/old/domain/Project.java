@@ -9,6 +9,7 @@ import fi.helsinki.cs.tmc.core.old.domain.exception.InvalidProjectException;
 import fi.helsinki.cs.tmc.core.old.io.FileUtil;
 import fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider.DefaultZippingDecider;
 import fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider.MavenZippingDecider;
+import fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider.NoSubmitMarkers;
 import fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider.ZippingDecider;
 
 /**
@@ -19,11 +20,13 @@ import fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider.ZippingDecider;
  */
 public class Project {
 
-    private Exercise exercise;
+    // Replaced by the sync thread and read on the UI thread
+    private volatile Exercise exercise;
     private List<String> projectFiles;
     private List<String> extraStudentFiles;
     private String rootPath;
     private ProjectStatus status;
+    private transient NoSubmitMarkers noSubmitMarkers;
 
     public Project(final Exercise exercise) {
 
@@ -144,6 +147,24 @@ public class Project {
         }
     }
 
+    /**
+     * The .tmcnosubmit files found in the project, shared by its zipping
+     * deciders.
+     */
+    public synchronized NoSubmitMarkers getNoSubmitMarkers() {
+
+        // Not restored by deserialization
+        if (noSubmitMarkers == null) {
+            noSubmitMarkers = new NoSubmitMarkers();
+        }
+        return noSubmitMarkers;
+    }
+
+    /**
+     * Replaces the files and recomputes the root path. For a project stored
+     * in the ProjectDAO, use ProjectDAO.setProjectFiles so that the DAO's
+     * path index is updated too.
+     */
     public void setProjectFiles(final List<String> files) {
 
         synchronized (projectFiles) {
@@ -1,12 +1,16 @@
 package fi.helsinki.cs.tmc.core.old.domain;
 
+import java.io.File;
+
 /**
  * Class that stores the project as a zip. Used when downloading exercises from
- * the server; all exercises are initially zipped.
+ * the server; all exercises are initially zipped. The zip is either held in
+ * memory or, for downloads, in a temporary file.
  */
 public class ZippedProject {
 
     private byte[] bytes;
+    private File file;
 
     public ZippedProject() {
 
@@ -22,4 +26,27 @@ public class ZippedProject {
         return bytes;
     }
 
+    public void setFile(final File file) {
+
+        this.file = file;
+    }
+
+    /**
+     * Returns the file containing the zip, or null if the zip is in memory.
+     */
+    public File getFile() {
+
+        return file;
+    }
+
+    /**
+     * Deletes the temporary zip file, if any.
+     */
+    public void deleteFile() {
+
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+    }
 }
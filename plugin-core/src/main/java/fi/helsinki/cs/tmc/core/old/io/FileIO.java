@@ -129,9 +129,7 @@ public class FileIO {
         FileOutputStream fos = null;
         try {
             fos = new FileOutputStream(file);
-            for (int i = 0; i < bytes.length; i++) {
-                fos.write(bytes[i]);
-            }
+            fos.write(bytes);
         } catch (final IOException e) {
             System.out.println(e.getLocalizedMessage());
         } finally {
@@ -25,8 +25,26 @@ public class ProjectScanner {
 
     public void updateProject(final Project project) {
 
+        if (scan(project)) {
+            projectDAO.updatePathIndex();
+        }
+    }
+
+    public void updateProjects() {
+
+        for (final Project project : projectDAO.getProjects()) {
+            scan(project);
+        }
+        projectDAO.updatePathIndex();
+    }
+
+    /**
+     * Returns true if the files of the project were updated.
+     */
+    private boolean scan(final Project project) {
+
         if (project.getStatus() == ProjectStatus.DELETED) {
-            return;
+            return false;
         }
 
         final List<String> files = new ArrayList<String>();
@@ -39,13 +57,7 @@ public class ProjectScanner {
         } else {
             project.setStatus(ProjectStatus.NOT_DOWNLOADED);
         }
-    }
-
-    public void updateProjects() {
-
-        for (final Project project : projectDAO.getProjects()) {
-            updateProject(project);
-        }
+        return true;
     }
 
     private void traverse(final List<String> list, final FileIO file) {
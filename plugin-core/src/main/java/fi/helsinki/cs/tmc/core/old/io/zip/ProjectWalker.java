@@ -0,0 +1,111 @@
+package fi.helsinki.cs.tmc.core.old.io.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fi.helsinki.cs.tmc.core.old.io.FileUtil;
+import fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider.ZippingDecider;
+
+/**
+ * Walks the files of a project that a {@link ZippingDecider} accepts, giving
+ * each its zip path. The project directory is the top level directory of the
+ * zip paths.
+ *
+ * The attributes of every entry are read once, by the walk itself, and passed
+ * to the decider and the visitor. Directories rejected by the decider are not
+ * walked at all. Entries that cannot be read are skipped, as are links that
+ * lead back to a directory being walked.
+ */
+public final class ProjectWalker {
+
+    private static final Logger LOG = Logger.getLogger(ProjectWalker.class.getName());
+
+    /**
+     * Receives the accepted entries in walk order. Every directory is visited
+     * before its contents.
+     */
+    public interface Visitor {
+
+        /**
+         * @param zipPath
+         *            Zip path of the directory, ending in a slash
+         */
+        void visitDirectory(String zipPath, Path directory, BasicFileAttributes attributes) throws IOException;
+
+        void visitFile(String zipPath, Path file, BasicFileAttributes attributes) throws IOException;
+    }
+
+    private ProjectWalker() {
+
+    }
+
+    public static void walk(final File root, final ZippingDecider decider, final Visitor visitor) throws IOException {
+
+        final Path rootPath = root.toPath();
+        final Deque<String> zipPaths = new ArrayDeque<String>();
+
+        Files.walkFileTree(rootPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attributes) throws IOException {
+
+                final String zipPath;
+                if (zipPaths.isEmpty()) {
+                    // The root is always zipped
+                    zipPath = FileUtil.append(root.getName(), "");
+                } else {
+                    zipPath = zipPaths.peek() + directory.getFileName() + "/";
+                    if (!decider.shouldZip(zipPath, attributes)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+
+                visitor.visitDirectory(zipPath, directory, attributes);
+                zipPaths.push(zipPath);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) throws IOException {
+
+                final String zipPath = zipPaths.peek() + file.getFileName();
+                if (decider.shouldZip(zipPath, attributes)) {
+                    visitor.visitFile(zipPath, file, attributes);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException ex) throws IOException {
+
+                if (file.equals(rootPath)) {
+                    throw ex;
+                }
+
+                LOG.log(Level.FINE, "Skipping unreadable file " + file, ex);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path directory, final IOException ex) throws IOException {
+
+                zipPaths.pop();
+                if (ex != null) {
+                    LOG.log(Level.FINE, "Failed to list directory " + directory, ex);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -1,16 +1,12 @@
 package fi.helsinki.cs.tmc.core.old.io.zip;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-
-import org.apache.commons.io.IOUtils;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 
 import fi.helsinki.cs.tmc.core.old.io.FileIO;
-import fi.helsinki.cs.tmc.core.old.io.FileUtil;
 import fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider.ZippingDecider;
 
 public class RecursiveZipper {
@@ -36,66 +32,34 @@ public class RecursiveZipper {
             throw new FileNotFoundException("Root directory " + rootDirectory.getPath() + " not found for zipping!");
         }
 
-        final ByteArrayOutputStream zipBuffer = new ByteArrayOutputStream();
-        final ZipOutputStream zipStream = new ZipOutputStream(zipBuffer);
+        final ZipWriter zipWriter = new ZipWriter();
 
         try {
-            zipRecursively(rootDirectory, zipStream, "");
+            zipRecursively(rootDirectory, zipWriter);
+            return zipWriter.finish();
         } finally {
-            zipStream.close();
+            zipWriter.close();
         }
-
-        return zipBuffer.toByteArray();
     }
 
-    private void writeEntry(final FileIO file, final ZipOutputStream zipStream, final String zipPath) throws IOException {
-
-        zipStream.putNextEntry(new ZipEntry(FileUtil.append(zipPath, file.getName())));
+    /**
+     * Zips the accepted files in a single walk of the directory tree.
+     */
+    private void zipRecursively(final FileIO directory, final ZipWriter zipWriter) throws IOException {
 
-        final InputStream in = file.getInputStream();
-        try {
-            IOUtils.copy(in, zipStream);
-        } finally {
-            in.close();
+        ProjectWalker.walk(new File(directory.getPath()), zippingDecider, new ProjectWalker.Visitor() {
 
-        }
+            @Override
+            public void visitDirectory(final String zipPath, final Path path, final BasicFileAttributes attributes) throws IOException {
 
-        zipStream.closeEntry();
-    }
-
-    /**
-     * Zips a directory recursively.
-     */
-    private void zipRecursively(final FileIO directory, final ZipOutputStream zipStream, final String parentZipPath) throws IOException {
+                zipWriter.addDirectory(zipPath);
+            }
 
-        String thisDirZipPath;
-        if (parentZipPath.isEmpty()) {
-            thisDirZipPath = directory.getName();
-        } else {
-            thisDirZipPath = FileUtil.append(parentZipPath, directory.getName());
-        }
+            @Override
+            public void visitFile(final String zipPath, final Path file, final BasicFileAttributes attributes) throws IOException {
 
-        // Create an entry for the directory
-        zipStream.putNextEntry(new ZipEntry(FileUtil.append(thisDirZipPath, "")));
-        zipStream.closeEntry();
-
-        for (final FileIO file : directory.getChildren()) {
-            try {
-                final boolean isDirectory = file.directoryExists();
-
-                String zipPath = FileUtil.append(thisDirZipPath, file.getName());
-                if (isDirectory) {
-                    zipPath += "/";
-                }
-                if (zippingDecider.shouldZip(zipPath)) {
-                    if (isDirectory) {
-                        zipRecursively(file, zipStream, thisDirZipPath);
-                    } else {
-                        writeEntry(file, zipStream, thisDirZipPath);
-                    }
-                }
-            } finally {
+                zipWriter.addFile(zipPath, file.toFile());
             }
-        }
+        });
     }
 }
@@ -1,11 +1,23 @@
 package fi.helsinki.cs.tmc.core.old.io.zip;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import fi.helsinki.cs.tmc.core.old.domain.ZippedProject;
@@ -13,9 +25,37 @@ import fi.helsinki.cs.tmc.core.old.io.FileIO;
 import fi.helsinki.cs.tmc.core.old.io.FileUtil;
 import fi.helsinki.cs.tmc.core.old.io.zip.unzippingdecider.UnzippingDecider;
 
+/**
+ * Extracts a zipped project. A zip stored in a file is read through its
+ * central directory, so entries rejected by the {@link UnzippingDecider} are
+ * never read and the remaining entries are written in parallel. A zip held in
+ * memory is extracted sequentially.
+ */
 public class Unzipper {
 
-    private static final int BUFFER_SIZE = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int WRITER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(WRITER_THREADS, new ThreadFactory() {
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+            final Thread thread = new Thread(runnable, "TMC unzipper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // One copy buffer per thread, reused for every entry
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+
+        @Override
+        protected ByteBuffer initialValue() {
+
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    };
 
     private final ZippedProject project;
     private final UnzippingDecider decider;
@@ -28,41 +68,148 @@ public class Unzipper {
 
     public List<String> unzipTo(final FileIO destinationFolder) throws IOException {
 
+        destinationFolder.createFolderTree(false);
+
+        if (project.getFile() != null) {
+            return unzipFile(destinationFolder);
+        }
+        if (project.getBytes() == null) {
+            throw new IOException("No zip to extract");
+        }
+        return unzipBytes(destinationFolder);
+    }
+
+    private List<String> unzipFile(final FileIO destinationFolder) throws IOException {
+
         final List<String> projectFiles = new ArrayList<String>();
+        final ZipFile zipFile = new ZipFile(project.getFile());
 
-        destinationFolder.createFolderTree(false);
+        try {
+            final List<Future<Void>> writes = new ArrayList<Future<Void>>();
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+
+            while (entries.hasMoreElements()) {
+                final ZipEntry zipEntry = entries.nextElement();
+                final String entryPath = FileUtil.append(destinationFolder.getPath(), zipEntry.getName());
+
+                projectFiles.add(entryPath);
+
+                if (!decider.shouldUnzip(entryPath)) {
+                    continue;
+                }
+
+                // Folders are created here, before any writer runs
+                new FileIO(entryPath).createFolderTree(!zipEntry.isDirectory());
+
+                if (!zipEntry.isDirectory()) {
+                    writes.add(WRITERS.submit(new Callable<Void>() {
+
+                        @Override
+                        public Void call() throws IOException {
+
+                            final InputStream in = zipFile.getInputStream(zipEntry);
+                            try {
+                                writeEntry(in, entryPath);
+                            } finally {
+                                in.close();
+                            }
+                            return null;
+                        }
+                    }));
+                }
+            }
+
+            awaitAll(writes);
+        } finally {
+            zipFile.close();
+        }
+
+        return projectFiles;
+    }
+
+    private List<String> unzipBytes(final FileIO destinationFolder) throws IOException {
+
+        final List<String> projectFiles = new ArrayList<String>();
         final ZipInputStream zipStream = new ZipInputStream(new ByteArrayInputStream(project.getBytes()));
-        ZipEntry zipEntry = zipStream.getNextEntry();
 
-        while (zipEntry != null) {
-            final String entryPath = FileUtil.append(destinationFolder.getPath(), zipEntry.getName());
+        try {
+            ZipEntry zipEntry = zipStream.getNextEntry();
+
+            while (zipEntry != null) {
+                final String entryPath = FileUtil.append(destinationFolder.getPath(), zipEntry.getName());
 
-            projectFiles.add(entryPath);
+                projectFiles.add(entryPath);
+
+                if (decider.shouldUnzip(entryPath)) {
+                    new FileIO(entryPath).createFolderTree(!zipEntry.isDirectory());
+
+                    if (!zipEntry.isDirectory()) {
+                        writeEntry(zipStream, entryPath);
+                    }
+                }
 
-            if (!decider.shouldUnzip(entryPath)) {
                 zipEntry = zipStream.getNextEntry();
-                continue;
             }
+        } finally {
+            zipStream.close();
+        }
 
-            final FileIO file = new FileIO(entryPath);
-            file.createFolderTree(!zipEntry.isDirectory());
+        return projectFiles;
+    }
 
-            byte[] buffer = new byte[BUFFER_SIZE];
-            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            int read = 0;
-            while ((read = zipStream.read(buffer)) != -1) {
-                stream.write(buffer, 0, read);
-                buffer = new byte[BUFFER_SIZE];
+    /**
+     * Waits for every write to finish, even after one has failed, so that the
+     * zip is not closed while entries are still being read.
+     */
+    private void awaitAll(final List<Future<Void>> writes) throws IOException {
+
+        IOException failure = null;
+        boolean interrupted = false;
+
+        for (final Future<Void> write : writes) {
+            while (true) {
+                try {
+                    write.get();
+                    break;
+                } catch (final InterruptedException ex) {
+                    interrupted = true;
+                } catch (final ExecutionException ex) {
+                    if (failure == null) {
+                        failure = ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+                    }
+                    break;
+                }
             }
+        }
 
-            if (!zipEntry.isDirectory()) {
-                file.write(stream.toByteArray());
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            if (failure == null) {
+                failure = new InterruptedIOException("Interrupted while unzipping");
             }
-
-            zipEntry = zipStream.getNextEntry();
         }
-
-        return projectFiles;
+        if (failure != null) {
+            throw failure;
+        }
     }
 
+    private static void writeEntry(final InputStream in, final String path) throws IOException {
+
+        final ByteBuffer buffer = BUFFERS.get();
+        final FileOutputStream out = new FileOutputStream(path);
+
+        try {
+            final FileChannel channel = out.getChannel();
+            int read;
+            while ((read = in.read(buffer.array(), 0, buffer.capacity())) != -1) {
+                buffer.clear();
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
 }
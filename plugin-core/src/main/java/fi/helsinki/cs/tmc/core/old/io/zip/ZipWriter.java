@@ -0,0 +1,355 @@
+package fi.helsinki.cs.tmc.core.old.io.zip;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip archive into a byte array.
+ *
+ * Unlike ZipOutputStream, the writer does not allocate copy buffers for every
+ * archive and stream: each thread keeps one checksum and read buffer for all
+ * archives it writes. Files are read through a FileChannel and compressed
+ * straight into the output array, and the sizes and checksum of each entry
+ * are filled into its header afterwards, so no data descriptors are needed.
+ *
+ * Directories are stored, files are deflated. Archives over 4 GB or with more
+ * than 65535 entries are not supported. A writer is used by one thread and
+ * must be closed, to free the native memory of its Deflater.
+ */
+public class ZipWriter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int UTF8_FLAG = 0x800;
+    private static final int DIRECTORY_ATTRIBUTE = 0x10;
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+
+        @Override
+        protected Scratch initialValue() {
+
+            return new Scratch();
+        }
+    };
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final int dosTime;
+    private final int dosDate;
+
+    private byte[] buffer;
+    private int position;
+
+    public ZipWriter() {
+
+        this.buffer = new byte[INITIAL_CAPACITY];
+
+        final Calendar now = Calendar.getInstance();
+        this.dosTime = now.get(Calendar.HOUR_OF_DAY) << 11 | now.get(Calendar.MINUTE) << 5 | now.get(Calendar.SECOND) >> 1;
+        this.dosDate = Math.max(0, now.get(Calendar.YEAR) - 1980) << 9 | now.get(Calendar.MONTH) + 1 << 5 | now.get(Calendar.DAY_OF_MONTH);
+    }
+
+    /**
+     * Adds a directory entry. The path should end with a slash.
+     */
+    public void addDirectory(final String path) throws IOException {
+
+        final Entry entry = startEntry(path, STORED);
+        finishEntry(entry, 0, 0, 0);
+    }
+
+    /**
+     * Adds the contents of the file.
+     */
+    public void addFile(final String path, final File file) throws IOException {
+
+        final Scratch scratch = SCRATCH.get();
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final Entry entry = startEntry(path, DEFLATED);
+            start(scratch);
+
+            long size = 0;
+            int read;
+            while ((read = channel.read(scratch.read)) != -1) {
+                if (read == 0) {
+                    continue;
+                }
+                size += read;
+                scratch.crc.update(scratch.readArray, 0, read);
+                deflate(scratch.readArray, 0, read);
+                scratch.read.clear();
+            }
+
+            finishDeflate(entry, scratch, size);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Adds an entry with the given contents.
+     */
+    public void addBytes(final String path, final byte[] data) throws IOException {
+
+        final Scratch scratch = SCRATCH.get();
+        final Entry entry = startEntry(path, DEFLATED);
+        start(scratch);
+
+        scratch.crc.update(data, 0, data.length);
+        deflate(data, 0, data.length);
+        finishDeflate(entry, scratch, data.length);
+    }
+
+    /**
+     * Returns the CRC-32 of the contents of the latest entry added.
+     */
+    public long getLastChecksum() {
+
+        return entries.isEmpty() ? 0 : entries.get(entries.size() - 1).crc;
+    }
+
+    /**
+     * Returns the number of entries added so far.
+     */
+    public int getEntryCount() {
+
+        return entries.size();
+    }
+
+    /**
+     * Writes the central directory and returns the archive. The writer cannot
+     * be used afterwards, but must still be closed.
+     */
+    public byte[] finish() throws IOException {
+
+        if (entries.size() > 0xffff) {
+            throw new IOException("Too many zip entries: " + entries.size());
+        }
+
+        final int directoryStart = position;
+        for (final Entry entry : entries) {
+            ensure(46 + entry.name.length);
+            putInt(CENTRAL_HEADER);
+            putShort(20);
+            putShort(entry.method == DEFLATED ? 20 : 10);
+            putShort(entry.flags);
+            putShort(entry.method);
+            putShort(dosTime);
+            putShort(dosDate);
+            putInt((int) entry.crc);
+            putInt((int) entry.compressedSize);
+            putInt((int) entry.size);
+            putShort(entry.name.length);
+            putShort(0);
+            putShort(0);
+            putShort(0);
+            putShort(0);
+            putInt(entry.method == STORED ? DIRECTORY_ATTRIBUTE : 0);
+            putInt(entry.offset);
+            putBytes(entry.name);
+        }
+
+        final int directorySize = position - directoryStart;
+
+        ensure(22);
+        putInt(END_OF_CENTRAL_DIRECTORY);
+        putShort(0);
+        putShort(0);
+        putShort(entries.size());
+        putShort(entries.size());
+        putInt(directorySize);
+        putInt(directoryStart);
+        putShort(0);
+
+        final byte[] result = position == buffer.length ? buffer : Arrays.copyOf(buffer, position);
+        buffer = null;
+        return result;
+    }
+
+    /**
+     * Frees the Deflater and drops the archive if it was not finished, for
+     * example after an error.
+     */
+    public void close() {
+
+        deflater.end();
+        buffer = null;
+    }
+
+    private Entry startEntry(final String path, final int method) throws IOException {
+
+        if (buffer == null) {
+            throw new IllegalStateException("Zip already finished");
+        }
+
+        final byte[] name = path.getBytes(UTF8);
+        final Entry entry = new Entry(name, method, isAscii(path) ? 0 : UTF8_FLAG, position);
+
+        ensure(30 + name.length);
+        putInt(LOCAL_HEADER);
+        putShort(method == DEFLATED ? 20 : 10);
+        putShort(entry.flags);
+        putShort(method);
+        putShort(dosTime);
+        putShort(dosDate);
+        // Checksum and sizes, filled in by finishEntry
+        putInt(0);
+        putInt(0);
+        putInt(0);
+        putShort(name.length);
+        putShort(0);
+        putBytes(name);
+
+        entries.add(entry);
+        return entry;
+    }
+
+    private void finishDeflate(final Entry entry, final Scratch scratch, final long size) throws IOException {
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            ensure(READ_BUFFER_SIZE);
+            position += deflater.deflate(buffer, position, buffer.length - position);
+        }
+
+        final long compressedSize = position - entry.offset - 30 - entry.name.length;
+        finishEntry(entry, scratch.crc.getValue(), compressedSize, size);
+    }
+
+    private void finishEntry(final Entry entry, final long crc, final long compressedSize, final long size) throws IOException {
+
+        if (size > 0xffffffffL || compressedSize > 0xffffffffL) {
+            throw new IOException("Zip entry too large: " + new String(entry.name, UTF8));
+        }
+
+        entry.crc = crc;
+        entry.compressedSize = compressedSize;
+        entry.size = size;
+
+        setInt(entry.offset + 14, (int) crc);
+        setInt(entry.offset + 18, (int) compressedSize);
+        setInt(entry.offset + 22, (int) size);
+    }
+
+    private void start(final Scratch scratch) {
+
+        deflater.reset();
+        scratch.crc.reset();
+        scratch.read.clear();
+    }
+
+    private void deflate(final byte[] data, final int offset, final int length) {
+
+        deflater.setInput(data, offset, length);
+        while (!deflater.needsInput()) {
+            ensure(READ_BUFFER_SIZE);
+            position += deflater.deflate(buffer, position, buffer.length - position);
+        }
+    }
+
+    /**
+     * Makes room for at least the given number of bytes, moving the archive
+     * to a larger array if needed.
+     */
+    private void ensure(final int bytes) {
+
+        if (buffer.length - position >= bytes) {
+            return;
+        }
+
+        final long needed = (long) position + bytes;
+        if (needed > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("Zip does not fit in an array");
+        }
+
+        buffer = Arrays.copyOf(buffer, (int) Math.max(needed, Math.min(Integer.MAX_VALUE - 8, 2L * buffer.length)));
+    }
+
+    private void putShort(final int value) {
+
+        buffer[position++] = (byte) value;
+        buffer[position++] = (byte) (value >>> 8);
+    }
+
+    private void putInt(final int value) {
+
+        setInt(position, value);
+        position += 4;
+    }
+
+    private void setInt(final int offset, final int value) {
+
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+        buffer[offset + 2] = (byte) (value >>> 16);
+        buffer[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private void putBytes(final byte[] bytes) {
+
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private static boolean isAscii(final String text) {
+
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Entry {
+
+        private final byte[] name;
+        private final int method;
+        private final int flags;
+        private final int offset;
+
+        private long crc;
+        private long compressedSize;
+        private long size;
+
+        private Entry(final byte[] name, final int method, final int flags, final int offset) {
+
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Checksum and read buffer reused by every archive written on a thread.
+     * Both live on the heap, so they go away with the thread.
+     */
+    private static final class Scratch {
+
+        private final CRC32 crc = new CRC32();
+        private final byte[] readArray = new byte[READ_BUFFER_SIZE];
+        private final ByteBuffer read = ByteBuffer.wrap(readArray);
+    }
+}
@@ -1,11 +1,14 @@
 package fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider;
 
 import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
 
 import fi.helsinki.cs.tmc.core.old.domain.Project;
 
 /**
- * Abstract base class for all zipping deciders.
+ * Abstract base class for all zipping deciders. Excludes the directories
+ * containing a .tmcnosubmit file and leaves the rest of the decision to
+ * {@link #accepts(String)}.
  */
 public abstract class AbstractZippingDecider implements ZippingDecider {
 
@@ -32,12 +35,40 @@ public abstract class AbstractZippingDecider implements ZippingDecider {
     @Override
     public boolean shouldZip(final String zipPath) {
 
-        final File dir = new File(new File(project.getRootPath()).getParentFile(), zipPath);
-        if (!dir.isDirectory()) {
-            return true;
+        // Directory paths end in a slash, so files need no lookup
+        if (zipPath.endsWith("/") && project.getNoSubmitMarkers().isMarked(directoryOf(zipPath))) {
+            return false;
         }
 
-        return !new File(dir, ".tmcnosubmit").exists();
+        return accepts(zipPath);
+    }
+
+    /**
+     * Same as {@link #shouldZip(String)}, but looks up the .tmcnosubmit-file
+     * only when the directory has changed since it was last looked up.
+     */
+    @Override
+    public boolean shouldZip(final String zipPath, final BasicFileAttributes attributes) {
+
+        if (attributes.isDirectory()
+                && project.getNoSubmitMarkers().isMarked(directoryOf(zipPath), attributes.lastModifiedTime().toMillis())) {
+            return false;
+        }
+
+        return accepts(zipPath);
+    }
+
+    /**
+     * Decides on the paths not excluded by a .tmcnosubmit-file. Accepts
+     * everything by default.
+     */
+    protected boolean accepts(final String zipPath) {
+
+        return true;
+    }
+
+    private File directoryOf(final String zipPath) {
 
+        return new File(new File(project.getRootPath()).getParentFile(), zipPath);
     }
 }
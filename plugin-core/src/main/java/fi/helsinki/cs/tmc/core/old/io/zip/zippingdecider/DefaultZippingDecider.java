@@ -1,5 +1,10 @@
 package fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import fi.helsinki.cs.tmc.core.old.domain.Project;
 
 /**
@@ -7,22 +12,27 @@ import fi.helsinki.cs.tmc.core.old.domain.Project;
  */
 public class DefaultZippingDecider extends AbstractZippingDecider {
 
+    private final Set<String> extraStudentFiles;
+
     public DefaultZippingDecider(final Project project) {
 
         super(project);
+
+        final List<String> files = project.getExtraStudentFiles();
+        if (files == null || files.isEmpty()) {
+            extraStudentFiles = Collections.emptySet();
+        } else {
+            extraStudentFiles = new HashSet<String>(files);
+        }
     }
 
     /**
      * zips extra student files and content of the src folder.
      */
     @Override
-    public boolean shouldZip(final String zipPath) {
-
-        if (!super.shouldZip(zipPath)) {
-            return false;
-        }
+    protected boolean accepts(final String zipPath) {
 
-        if (getProject().getExtraStudentFiles() != null && getProject().getExtraStudentFiles().contains(withoutRootDir(zipPath))) {
+        if (extraStudentFiles.contains(withoutRootDir(zipPath))) {
             return true;
         } else {
             return zipPath.contains("/src/");
@@ -17,14 +17,12 @@ public class MavenZippingDecider extends AbstractZippingDecider {
     }
 
     /**
-     * Prevents zipping any files that matches the REJECT_PATTERN regex.
+     * Prevents zipping any files that matches the REJECT_PATTERN regex. The
+     * rejected directories themselves match too, so their contents are never
+     * walked.
      */
     @Override
-    public boolean shouldZip(final String zipPath) {
-
-        if (!super.shouldZip(zipPath)) {
-            return false;
-        }
+    protected boolean accepts(final String zipPath) {
 
         return !REJECT_PATTERN.matcher(zipPath).matches();
     }
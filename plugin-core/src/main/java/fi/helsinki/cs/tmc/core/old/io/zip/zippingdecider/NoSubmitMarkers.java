@@ -0,0 +1,71 @@
+package fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers which directories of a project contain a .tmcnosubmit file, so
+ * that every snapshot does not have to look for the file in every directory.
+ *
+ * Adding or removing the file changes the modification time of its
+ * directory, so an entry is trusted for as long as the directory has the
+ * modification time it had when the entry was made. Entries of removed
+ * directories are dropped when the cache grows too large.
+ */
+public class NoSubmitMarkers {
+
+    public static final String MARKER_NAME = ".tmcnosubmit";
+
+    public static final int MAX_ENTRIES = 4096;
+
+    private final ConcurrentMap<String, Marker> markers = new ConcurrentHashMap<String, Marker>();
+
+    /**
+     * Looks for the marker in the directory without the cache.
+     */
+    public boolean isMarked(final File directory) {
+
+        return new File(directory, MARKER_NAME).exists();
+    }
+
+    /**
+     * Looks for the marker in the directory, unless the cache has an entry
+     * made when the directory had the given modification time.
+     */
+    public boolean isMarked(final File directory, final long modified) {
+
+        final String key = directory.getPath();
+        final Marker cached = markers.get(key);
+        if (cached != null && cached.modified == modified) {
+            return cached.present;
+        }
+
+        final boolean present = isMarked(directory);
+        if (cached == null && markers.size() >= MAX_ENTRIES) {
+            markers.clear();
+        }
+        markers.put(key, new Marker(modified, present));
+        return present;
+    }
+
+    /**
+     * Number of directories in the cache.
+     */
+    public int size() {
+
+        return markers.size();
+    }
+
+    private static final class Marker {
+
+        private final long modified;
+        private final boolean present;
+
+        private Marker(final long modified, final boolean present) {
+
+            this.modified = modified;
+            this.present = present;
+        }
+    }
+}
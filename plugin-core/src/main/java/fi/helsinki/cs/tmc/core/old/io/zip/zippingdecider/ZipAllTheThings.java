@@ -1,5 +1,7 @@
 package fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider;
 
+import java.nio.file.attribute.BasicFileAttributes;
+
 /**
  * Zips everything.
  */
@@ -10,4 +12,10 @@ public class ZipAllTheThings implements ZippingDecider {
 
         return true;
     }
+
+    @Override
+    public boolean shouldZip(final String zipPath, final BasicFileAttributes attributes) {
+
+        return true;
+    }
 }
@@ -1,5 +1,7 @@
 package fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider;
 
+import java.nio.file.attribute.BasicFileAttributes;
+
 /**
  * Interface for zipping deciders that tell whether the given file or directory
  * should be zipped.
@@ -11,4 +13,11 @@ public interface ZippingDecider {
      * Directory paths always end in a slash.
      */
     boolean shouldZip(String zipPath);
+
+    /**
+     * Same as {@link #shouldZip(String)} for an entry found by walking the
+     * project, with the attributes the walk already read, so that the decider
+     * does not need to read them from the file system again.
+     */
+    boolean shouldZip(String zipPath, BasicFileAttributes attributes);
 }
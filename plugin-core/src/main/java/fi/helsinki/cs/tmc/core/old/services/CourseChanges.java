@@ -0,0 +1,53 @@
+package fi.helsinki.cs.tmc.core.old.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import fi.helsinki.cs.tmc.core.old.domain.Course;
+
+/**
+ * The courses that changed in an update from the server.
+ */
+public class CourseChanges {
+
+    private final List<Course> added = new ArrayList<Course>();
+    private final List<Course> removed = new ArrayList<Course>();
+
+    void addAdded(final Course course) {
+
+        added.add(course);
+    }
+
+    void addRemoved(final Course course) {
+
+        removed.add(course);
+    }
+
+    /**
+     * Courses that were not known before.
+     */
+    public List<Course> getAdded() {
+
+        return Collections.unmodifiableList(added);
+    }
+
+    /**
+     * The earlier courses that are no longer on the server.
+     */
+    public List<Course> getRemoved() {
+
+        return Collections.unmodifiableList(removed);
+    }
+
+    public boolean isEmpty() {
+
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+
+        return "added " + added + ", removed " + removed;
+    }
+}
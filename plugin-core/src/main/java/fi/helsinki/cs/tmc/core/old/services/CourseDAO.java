@@ -1,5 +1,6 @@
 package fi.helsinki.cs.tmc.core.old.services;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import fi.helsinki.cs.tmc.core.old.domain.Course;
@@ -7,11 +8,14 @@ import fi.helsinki.cs.tmc.core.old.storage.DataSource;
 
 /**
  * Class that handles Course object loading, saving and accessing.
+ *
+ * The courses are replaced by the sync thread and read on the UI thread, so
+ * the list is never modified once set; a change replaces the whole list.
  */
 public class CourseDAO {
 
     private final DataSource<Course> dataSource;
-    private List<Course> courses;
+    private volatile List<Course> courses;
 
     public CourseDAO(final DataSource<Course> dataSource) {
 
@@ -37,13 +41,15 @@ public class CourseDAO {
 
     public void updateCourse(final Course course) {
 
-        for (int i = 0; i < courses.size(); i++) {
-            if (courses.get(i).getName().equals(course.getName())) {
-                courses.set(i, course);
+        final List<Course> updated = new ArrayList<Course>(courses);
+        for (int i = 0; i < updated.size(); i++) {
+            if (updated.get(i).getName().equals(course.getName())) {
+                updated.set(i, course);
                 break;
             }
         }
-        dataSource.save(courses);
+        courses = updated;
+        dataSource.save(updated);
     }
 
     public Course getCurrentCourse(final Settings settings) {
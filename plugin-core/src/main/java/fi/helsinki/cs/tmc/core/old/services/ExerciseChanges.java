@@ -0,0 +1,82 @@
+package fi.helsinki.cs.tmc.core.old.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import fi.helsinki.cs.tmc.core.old.domain.Course;
+import fi.helsinki.cs.tmc.core.old.domain.Exercise;
+
+/**
+ * The exercises of a course that changed in an update from the server.
+ */
+public class ExerciseChanges {
+
+    private final Course course;
+    private final List<Exercise> added = new ArrayList<Exercise>();
+    private final List<Exercise> removed = new ArrayList<Exercise>();
+    private final List<Exercise> checksumChanged = new ArrayList<Exercise>();
+
+    ExerciseChanges(final Course course) {
+
+        this.course = course;
+    }
+
+    /**
+     * The course the exercises were updated in.
+     */
+    public Course getCourse() {
+
+        return course;
+    }
+
+    void addAdded(final Exercise exercise) {
+
+        added.add(exercise);
+    }
+
+    void addRemoved(final Exercise exercise) {
+
+        removed.add(exercise);
+    }
+
+    void addChecksumChanged(final Exercise exercise) {
+
+        checksumChanged.add(exercise);
+    }
+
+    /**
+     * Exercises that the course did not have before.
+     */
+    public List<Exercise> getAdded() {
+
+        return Collections.unmodifiableList(added);
+    }
+
+    /**
+     * The earlier exercises that the course no longer has.
+     */
+    public List<Exercise> getRemoved() {
+
+        return Collections.unmodifiableList(removed);
+    }
+
+    /**
+     * Exercises whose contents changed on the server, in their new versions.
+     */
+    public List<Exercise> getChecksumChanged() {
+
+        return Collections.unmodifiableList(checksumChanged);
+    }
+
+    public boolean isEmpty() {
+
+        return added.isEmpty() && removed.isEmpty() && checksumChanged.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+
+        return "added " + added + ", removed " + removed + ", changed " + checksumChanged;
+    }
+}
@@ -1,8 +1,12 @@
 package fi.helsinki.cs.tmc.core.old.services;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import fi.helsinki.cs.tmc.core.old.domain.Exercise;
+import fi.helsinki.cs.tmc.core.old.domain.ExerciseKey;
 import fi.helsinki.cs.tmc.core.old.domain.Project;
 import fi.helsinki.cs.tmc.core.old.domain.ProjectStatus;
 import fi.helsinki.cs.tmc.core.old.storage.DataSource;
@@ -15,6 +19,9 @@ public class ProjectDAO {
     private final DataSource<Project> dataSource;
     private List<Project> projects;
 
+    // Rebuilt whenever a project is added or its root may have changed
+    private volatile ProjectPathIndex pathIndex;
+
     public ProjectDAO(final DataSource<Project> dataSource) {
 
         this.dataSource = dataSource;
@@ -24,6 +31,7 @@ public class ProjectDAO {
     public void loadProjects() {
 
         projects = dataSource.load();
+        reindex();
     }
 
     public List<Project> getProjects() {
@@ -34,25 +42,61 @@ public class ProjectDAO {
     public void setProjects(final List<Project> projects) {
 
         this.projects = projects;
+        reindex();
     }
 
     public void addProject(final Project project) {
 
+        addProjectWithoutSaving(project);
+        save();
+    }
+
+    /**
+     * Adds a project without writing the projects to disk. For adding many
+     * projects at once; {@link #save()} should be called afterwards.
+     */
+    public void addProjectWithoutSaving(final Project project) {
+
         if (projects.contains(project)) {
             projects.remove(project);
         }
         projects.add(project);
-        save();
+        reindex();
+    }
+
+    /**
+     * Replaces the files of a project. Projects in this DAO should be updated
+     * through this method so that lookups by file see the new root path.
+     */
+    public void setProjectFiles(final Project project, final List<String> files) {
+
+        project.setProjectFiles(files);
+        reindex();
     }
 
     public Project getProjectByFile(final String filePath) {
 
-        for (final Project project : projects) {
-            if (project.containsFile(filePath) && project.getStatus() != ProjectStatus.DELETED) {
-                return project;
-            }
+        return getProjectByFile(filePath, false);
+    }
+
+    /**
+     * Returns the project whose root folder contains the given path.
+     *
+     * @param includeDeleted
+     *            Whether projects marked as deleted may be returned
+     */
+    public Project getProjectByFile(final String filePath, final boolean includeDeleted) {
+
+        ProjectPathIndex index = pathIndex;
+        final Project project = index.find(filePath, includeDeleted);
+
+        if (index.isStale()) {
+            // A root path was changed behind our back
+            index = reindex();
+            return index.find(filePath, includeDeleted);
         }
-        return null;
+
+        return project;
     }
 
     public Project getProjectByExercise(final Exercise exercise) {
@@ -65,6 +109,39 @@ public class ProjectDAO {
         return null;
     }
 
+    /**
+     * Returns the projects by the key of their exercise, for looking up the
+     * projects of many exercises at once.
+     */
+    public Map<ExerciseKey, Project> getProjectsByExercise() {
+
+        final Map<ExerciseKey, Project> projectsByExercise = new HashMap<ExerciseKey, Project>();
+        for (final Project project : projects) {
+            // The first project wins, as in getProjectByExercise
+            final ExerciseKey key = project.getExercise().getKey();
+            if (!projectsByExercise.containsKey(key)) {
+                projectsByExercise.put(key, project);
+            }
+        }
+        return projectsByExercise;
+    }
+
+    /**
+     * Rebuilds the index used to find projects by file. Needed after the files
+     * of several projects have been replaced directly on the projects.
+     */
+    public void updatePathIndex() {
+
+        reindex();
+    }
+
+    private synchronized ProjectPathIndex reindex() {
+
+        final ProjectPathIndex index = new ProjectPathIndex(projects == null ? new ArrayList<Project>() : new ArrayList<Project>(projects));
+        pathIndex = index;
+        return index;
+    }
+
     public void save() {
 
         dataSource.save(projects);
@@ -15,10 +15,22 @@ import fi.helsinki.cs.tmc.core.old.spyware.SnapshotInfo;
 public class ProjectEventHandler {
 
     private final ProjectDAO projectDAO;
+    private final SubmissionZipCache zipCache;
 
     public ProjectEventHandler(final ProjectDAO projectDAO) {
 
+        this(projectDAO, null);
+    }
+
+    /**
+     * @param zipCache
+     *            Cache of submission zips to invalidate when a project
+     *            changes, or null
+     */
+    public ProjectEventHandler(final ProjectDAO projectDAO, final SubmissionZipCache zipCache) {
+
         this.projectDAO = projectDAO;
+        this.zipCache = zipCache;
     }
 
     public void handleDeletion(final String projectPath) {
@@ -28,6 +40,7 @@ public class ProjectEventHandler {
             return;
         }
 
+        invalidateZip(project);
         project.setStatus(ProjectStatus.DELETED);
     }
 
@@ -39,6 +52,9 @@ public class ProjectEventHandler {
             return;
         }
 
+        // Before the file list changes, since that may move the root path
+        invalidateZip(project);
+
         switch (snapshot.getChangeType()) {
 
             case FILE_CREATE:
@@ -74,6 +90,13 @@ public class ProjectEventHandler {
         }
     }
 
+    private void invalidateZip(final Project project) {
+
+        if (zipCache != null) {
+            zipCache.invalidate(project.getRootPath());
+        }
+    }
+
     private Project findProject(final SnapshotInfo snapshot) {
 
         Project project;
@@ -88,13 +111,8 @@ public class ProjectEventHandler {
             return project;
         }
 
-        for (final Project p : projectDAO.getProjects()) {
-            if (!p.getRootPath().isEmpty() && snapshot.getCurrentFullFilePath().startsWith(p.getRootPath())) {
-                return p;
-            }
-        }
-
-        return null;
+        // Deleted projects come back when their files are recreated
+        return projectDAO.getProjectByFile(snapshot.getCurrentFullFilePath(), true);
     }
 
     private void handleFolderRename(final Project project, final SnapshotInfo snapshot) {
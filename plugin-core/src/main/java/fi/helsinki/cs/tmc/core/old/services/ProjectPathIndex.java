@@ -0,0 +1,224 @@
+package fi.helsinki.cs.tmc.core.old.services;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import fi.helsinki.cs.tmc.core.old.domain.Project;
+import fi.helsinki.cs.tmc.core.old.domain.ProjectStatus;
+
+/**
+ * Immutable trie of project root paths, one level per path segment. Looking
+ * up the project of a file walks the segments of the file path, so the cost
+ * depends on the depth of the path rather than the number of projects, and a
+ * lookup allocates nothing.
+ *
+ * Empty segments are ignored, so duplicate and trailing slashes do not matter.
+ * If project roots are nested, the project with the deepest root wins.
+ *
+ * A project whose root path has changed since the index was built is skipped
+ * and the index is marked stale, so that the owner can rebuild it.
+ */
+final class ProjectPathIndex {
+
+    private final Node root = new Node(null, 0);
+    private volatile boolean stale;
+
+    ProjectPathIndex(final Collection<Project> projects) {
+
+        for (final Project project : projects) {
+            add(project);
+        }
+    }
+
+    /**
+     * Returns the project whose root path contains the given file, or null.
+     *
+     * @param includeDeleted
+     *            Whether projects marked as deleted may be returned
+     */
+    Project find(final String path, final boolean includeDeleted) {
+
+        if (path == null) {
+            return null;
+        }
+
+        Node node = root;
+        Project found = null;
+        final int length = path.length();
+        int start = 0;
+
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            if (end > start) {
+                node = node.child(path, start, end, hash(path, start, end));
+                if (node == null) {
+                    break;
+                }
+
+                final Project project = pick(node, includeDeleted);
+                if (project != null) {
+                    found = project;
+                }
+            }
+
+            start = end + 1;
+        }
+
+        return found;
+    }
+
+    boolean isStale() {
+
+        return stale;
+    }
+
+    private Project pick(final Node node, final boolean includeDeleted) {
+
+        for (int i = 0; i < node.projects.length; i++) {
+            final Project project = node.projects[i];
+            // Every change of the root path creates a new string
+            if (project.getRootPath() != node.roots[i]) {
+                stale = true;
+                continue;
+            }
+            if (includeDeleted || project.getStatus() != ProjectStatus.DELETED) {
+                return project;
+            }
+        }
+        return null;
+    }
+
+    private void add(final Project project) {
+
+        final String path = project.getRootPath();
+        if (path == null || path.isEmpty()) {
+            return;
+        }
+
+        Node node = root;
+        final int length = path.length();
+        int start = 0;
+
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            if (end > start) {
+                final int hash = hash(path, start, end);
+                Node child = node.child(path, start, end, hash);
+                if (child == null) {
+                    child = node.addChild(new Node(path.substring(start, end), hash));
+                }
+                node = child;
+            }
+
+            start = end + 1;
+        }
+
+        if (node != root) {
+            node.addProject(project, path);
+        }
+    }
+
+    /**
+     * Same as String.hashCode() of the substring, without creating it.
+     */
+    private static int hash(final String path, final int start, final int end) {
+
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + path.charAt(i);
+        }
+        return h;
+    }
+
+    private static final class Node {
+
+        private static final Node[] NO_CHILDREN = new Node[0];
+        private static final Project[] NO_PROJECTS = new Project[0];
+        private static final String[] NO_ROOTS = new String[0];
+
+        private final String segment;
+        private final int hash;
+
+        // Open addressing table, its length a power of two
+        private Node[] children = NO_CHILDREN;
+        private int childCount;
+
+        // Projects rooted at this node, in the order they were added, and
+        // their root paths at that time
+        private Project[] projects = NO_PROJECTS;
+        private String[] roots = NO_ROOTS;
+
+        private Node(final String segment, final int hash) {
+
+            this.segment = segment;
+            this.hash = hash;
+        }
+
+        private Node child(final String path, final int start, final int end, final int hash) {
+
+            if (childCount == 0) {
+                return null;
+            }
+
+            final int mask = children.length - 1;
+            for (int i = spread(hash) & mask;; i = (i + 1) & mask) {
+                final Node child = children[i];
+                if (child == null) {
+                    return null;
+                }
+                if (child.hash == hash && child.segment.length() == end - start
+                        && path.regionMatches(start, child.segment, 0, end - start)) {
+                    return child;
+                }
+            }
+        }
+
+        private Node addChild(final Node child) {
+
+            if ((childCount + 1) * 2 > children.length) {
+                final Node[] old = children;
+                children = new Node[Math.max(4, old.length * 2)];
+                for (final Node n : old) {
+                    if (n != null) {
+                        insert(n);
+                    }
+                }
+            }
+
+            insert(child);
+            childCount++;
+            return child;
+        }
+
+        private void insert(final Node child) {
+
+            final int mask = children.length - 1;
+            int i = spread(child.hash) & mask;
+            while (children[i] != null) {
+                i = (i + 1) & mask;
+            }
+            children[i] = child;
+        }
+
+        private void addProject(final Project project, final String rootPath) {
+
+            projects = Arrays.copyOf(projects, projects.length + 1);
+            projects[projects.length - 1] = project;
+            roots = Arrays.copyOf(roots, roots.length + 1);
+            roots[roots.length - 1] = rootPath;
+        }
+
+        private static int spread(final int hash) {
+
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import fi.helsinki.cs.tmc.core.old.async.StopStatus;
+import fi.helsinki.cs.tmc.core.old.domain.Course;
 import fi.helsinki.cs.tmc.core.old.domain.Project;
 import fi.helsinki.cs.tmc.core.old.domain.SubmissionResult;
 import fi.helsinki.cs.tmc.core.old.domain.exception.InvalidProjectException;
@@ -19,10 +20,8 @@ import fi.helsinki.cs.tmc.core.old.services.http.SubmissionResponse;
  */
 public class ProjectUploader {
 
-    private static final int SLEEP_DURATION = 40;
-    private static final int LOOP_COUNT = 2000 / SLEEP_DURATION;
-
     private final ServerManager server;
+    private final SubmissionZipCache zipCache;
     private Project project;
     private byte[] data;
     private final Map<String, String> extraParams;
@@ -31,7 +30,18 @@ public class ProjectUploader {
 
     public ProjectUploader(final ServerManager server) {
 
+        this(server, null);
+    }
+
+    /**
+     * @param zipCache
+     *            Cache of submission zips shared by the uploaders, or null to
+     *            always zip the project
+     */
+    public ProjectUploader(final ServerManager server, final SubmissionZipCache zipCache) {
+
         this.server = server;
+        this.zipCache = zipCache;
         data = null;
         project = null;
         extraParams = new HashMap<String, String>();
@@ -48,6 +58,11 @@ public class ProjectUploader {
             throw new RuntimeException("Not a TMC project!");
         }
 
+        if (zipCache != null) {
+            data = zipCache.zip(project);
+            return;
+        }
+
         final RecursiveZipper zipper = new RecursiveZipper(new FileIO(project.getRootPath()), project.getZippingDecider());
 
         data = zipper.zipProjectSources();
@@ -66,40 +81,20 @@ public class ProjectUploader {
         }
     }
 
+    /**
+     * Waits for the result of the submission, pushed by the comet server of
+     * the course if it has one and polled otherwise. The result is null if
+     * the task was stopped while waiting.
+     */
     public void handleSubmissionResult(final StopStatus stopStatus) {
 
-        result = server.getSubmissionResult(response.getSubmissionUrl());
-
-        // basically we try to stop the thread being completely unresponsive
-        // while sleeping so that cancellation goes through
-
-        while (result.getStatus() == SubmissionResult.Status.PROCESSING) {
-            if (!waitForServer(stopStatus)) {
-                result = null;
-                return;
-            }
-
-            result = server.getSubmissionResult(response.getSubmissionUrl());
-        }
+        result = new SubmissionResultWaiter(server, getCometUrl()).waitForResult(response.getSubmissionUrl(), stopStatus);
     }
 
-    /**
-     * Waits for SLEEP_DURATION*LOOP_COUNT milliseconds while checking if task
-     * should stop after every sleep.
-     */
-    private boolean waitForServer(final StopStatus stopStatus) {
+    private String getCometUrl() {
 
-        for (int i = 0; i < LOOP_COUNT; ++i) {
-            if (stopStatus.mustStop()) {
-                return false;
-            }
-
-            try {
-                Thread.sleep(SLEEP_DURATION);
-            } catch (final InterruptedException e) {
-            }
-        }
-        return true;
+        final Course course = project.getExercise().getCourse();
+        return course == null ? null : course.getCometUrl();
     }
 
     public SubmissionResponse getResponse() {
@@ -7,6 +7,7 @@ import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
 import fi.helsinki.cs.tmc.core.old.io.FileUtil;
+import fi.helsinki.cs.tmc.core.old.services.http.HttpClientFactoryImpl;
 
 /**
  * Settings class for storing user preferences, such as TMC username and
@@ -24,12 +25,18 @@ public class Settings {
     public static final String PREF_KEY_CHECK_FOR_UNOPENED_AT_STARTUP = "checkForUnopenedAtStartup";
     public static final String PREF_KEY_SPYWARE_ENABLED = "spywareEnabled";
     public static final String PREF_KEY_DETAILED_SPYWARE_ENABLED = "detailedSpywareEnabled";
+    public static final String PREF_KEY_INCREMENTAL_SNAPSHOTS_ENABLED = "incrementalSnapshotsEnabled";
+    public static final String PREF_KEY_MAX_CONCURRENT_DOWNLOADS = "maxConcurrentDownloads";
     public static final String PREF_ERROR_MSG_LOCALE = "errorMsgLocale";
     public static final String[] AVAILABLE_LOCALES = new String[] { "English", "Finnish" };
     public static final int DEFAULT_LOCALE_NUM = 1;
     public static final String PREF_KEY_SAVE_PASSWORD = "savePassword";
     public static final String PREF_KEY_IS_LOGGED_IN = "isLoggedIn";
 
+    // One less than the connections the HTTP client opens to the server, so
+    // that other requests are not kept waiting by a download
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = HttpClientFactoryImpl.DEFAULT_MAX_PER_ROUTE - 1;
+
     private final boolean loggedIn = false;
 
     private final Preferences prefs;
@@ -174,6 +181,34 @@ public class Settings {
         prefs.putBoolean(PREF_KEY_DETAILED_SPYWARE_ENABLED, value);
     }
 
+    /**
+     * Whether source snapshots after the first one contain only the changed
+     * files. Off by default, as the server does not read code_snapshot_delta
+     * events yet.
+     */
+    public boolean isIncrementalSnapshotsEnabled() {
+
+        return prefs.getBoolean(PREF_KEY_INCREMENTAL_SNAPSHOTS_ENABLED, false);
+    }
+
+    public void setIsIncrementalSnapshotsEnabled(final boolean value) {
+
+        prefs.putBoolean(PREF_KEY_INCREMENTAL_SNAPSHOTS_ENABLED, value);
+    }
+
+    /**
+     * How many exercises are downloaded from the TMC server at the same time.
+     */
+    public int getMaxConcurrentDownloads() {
+
+        return prefs.getInt(PREF_KEY_MAX_CONCURRENT_DOWNLOADS, DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+    }
+
+    public void setMaxConcurrentDownloads(final int value) {
+
+        prefs.putInt(PREF_KEY_MAX_CONCURRENT_DOWNLOADS, value);
+    }
+
     public boolean isSavePassword() {
 
         return prefs.getBoolean(PREF_KEY_SAVE_PASSWORD, true);
@@ -0,0 +1,201 @@
+package fi.helsinki.cs.tmc.core.old.services;
+
+import com.google.gson.JsonElement;
+
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fi.helsinki.cs.tmc.core.old.async.StopStatus;
+import fi.helsinki.cs.tmc.core.old.domain.SubmissionResult;
+import fi.helsinki.cs.tmc.core.old.services.http.CometSubscription;
+import fi.helsinki.cs.tmc.core.old.services.http.ResponseValidators;
+import fi.helsinki.cs.tmc.core.old.services.http.ServerManager;
+import fi.helsinki.cs.tmc.core.old.ui.UserVisibleException;
+
+/**
+ * Waits for the server to finish processing a submission.
+ *
+ * If the course has a comet server, the waiter subscribes to the channel of
+ * the submission and fetches the result as soon as the server announces it.
+ * Otherwise, and while the subscription is not connected, the result is
+ * polled: first after a second, then at growing intervals up to a maximum.
+ * The result is also polled once as soon as the subscription connects, as an
+ * announcement made before that is not delivered.
+ * The intervals are randomized a little, so that clients that submitted at
+ * the same time, such as at a deadline, do not keep polling in step.
+ *
+ * The polls are conditional requests, so a result that is still being
+ * processed is answered with 304 Not Modified when the server supports it.
+ */
+public class SubmissionResultWaiter {
+
+    private static final Logger LOG = Logger.getLogger(SubmissionResultWaiter.class.getName());
+
+    public static final long INITIAL_POLL_INTERVAL = 1000;
+    public static final long MAX_POLL_INTERVAL = 15 * 1000;
+
+    // While the result is pushed, polling is only a safety net
+    public static final long PUSHED_POLL_INTERVAL = 60 * 1000;
+
+    private static final double BACKOFF_FACTOR = 1.5;
+    private static final double JITTER = 0.2;
+
+    // The task is checked for cancellation this often while waiting
+    private static final long STOP_CHECK_INTERVAL = 40;
+
+    private static final Pattern SUBMISSION_ID = Pattern.compile("/submissions/(\\d+)");
+
+    private final ServerManager server;
+    private final String cometUrl;
+    private final Random random = new Random();
+
+    /**
+     * @param cometUrl
+     *            URL of the comet server of the course, or null to only poll
+     */
+    public SubmissionResultWaiter(final ServerManager server, final String cometUrl) {
+
+        this.server = server;
+        this.cometUrl = cometUrl;
+    }
+
+    /**
+     * Returns the result once it is no longer being processed, or null if the
+     * task was stopped first.
+     *
+     * @throws UserVisibleException
+     *             if the result could not be fetched
+     */
+    public SubmissionResult waitForResult(final URI resultUrl, final StopStatus stopStatus) {
+
+        final ResponseValidators validators = new ResponseValidators();
+        SubmissionResult result = server.getSubmissionResult(resultUrl, validators);
+        if (result.getStatus() != SubmissionResult.Status.PROCESSING) {
+            return result;
+        }
+
+        final Semaphore announcements = new Semaphore(0);
+        final CometSubscription subscription = subscribe(resultUrl, announcements);
+
+        try {
+            long interval = INITIAL_POLL_INTERVAL;
+            boolean polledWhilePushed = false;
+            while (true) {
+                final boolean pushed = subscription != null && subscription.isConnected();
+
+                // A result announced before the subscription connected is
+                // never pushed, so it is polled once right after connecting
+                final long delay;
+                if (pushed) {
+                    delay = polledWhilePushed ? jitter(PUSHED_POLL_INTERVAL) : 0;
+                } else {
+                    delay = jitter(interval);
+                }
+
+                if (!await(delay, subscription, pushed, announcements, stopStatus)) {
+                    return null;
+                }
+                polledWhilePushed = subscription != null && subscription.isConnected();
+
+                final SubmissionResult fresh = server.getSubmissionResult(resultUrl, validators);
+                if (fresh != null) {
+                    result = fresh;
+                    if (result.getStatus() != SubmissionResult.Status.PROCESSING) {
+                        return result;
+                    }
+                }
+
+                if (!pushed) {
+                    interval = Math.min(MAX_POLL_INTERVAL, (long) (interval * BACKOFF_FACTOR));
+                }
+            }
+        } finally {
+            if (subscription != null) {
+                subscription.close();
+            }
+        }
+    }
+
+    private CometSubscription subscribe(final URI resultUrl, final Semaphore announcements) {
+
+        if (cometUrl == null || cometUrl.isEmpty()) {
+            return null;
+        }
+
+        final String channel = channelOf(resultUrl);
+        if (channel == null) {
+            return null;
+        }
+
+        return server.subscribe(cometUrl, channel, new CometSubscription.Listener() {
+
+            @Override
+            public void messageReceived(final JsonElement data) {
+
+                announcements.release();
+            }
+        });
+    }
+
+    /**
+     * The comet channel on which the server announces the result of the
+     * submission, or null if the URL has no submission id.
+     */
+    static String channelOf(final URI resultUrl) {
+
+        final Matcher matcher = SUBMISSION_ID.matcher(resultUrl.getPath());
+        if (!matcher.find()) {
+            return null;
+        }
+        return "/broadcast/submission/" + matcher.group(1) + "/result";
+    }
+
+    /**
+     * Waits for the given time, until an announcement arrives, or, if a
+     * subscription is given, until it connects or disconnects.
+     *
+     * @param connected
+     *            Whether the subscription was connected when the wait began
+     * @return false if the task must stop
+     */
+    private boolean await(final long delay,
+                          final CometSubscription subscription,
+                          final boolean connected,
+                          final Semaphore announcements,
+                          final StopStatus stopStatus) {
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        while (true) {
+            if (stopStatus.mustStop()) {
+                return false;
+            }
+
+            final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0 || subscription != null && subscription.isConnected() != connected) {
+                return true;
+            }
+
+            try {
+                if (announcements.tryAcquire(Math.min(remaining, STOP_CHECK_INTERVAL), TimeUnit.MILLISECONDS)) {
+                    announcements.drainPermits();
+                    LOG.log(Level.FINE, "Submission result announced");
+                    return true;
+                }
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private long jitter(final long interval) {
+
+        return (long) (interval * (1 - JITTER + 2 * JITTER * random.nextDouble()));
+    }
+}
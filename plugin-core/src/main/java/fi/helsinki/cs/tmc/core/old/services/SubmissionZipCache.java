@@ -0,0 +1,296 @@
+package fi.helsinki.cs.tmc.core.old.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import fi.helsinki.cs.tmc.core.old.domain.Project;
+import fi.helsinki.cs.tmc.core.old.domain.exception.InvalidProjectException;
+import fi.helsinki.cs.tmc.core.old.io.zip.ProjectWalker;
+import fi.helsinki.cs.tmc.core.old.io.zip.ZipWriter;
+import fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider.ZippingDecider;
+
+/**
+ * Keeps the latest submission zip of the recently submitted projects, so that
+ * submitting, pasting and requesting a review of the same sources zip the
+ * project only once.
+ *
+ * Along with the zip, a manifest of the size, modification time and CRC-32 of
+ * every zipped file is kept. A cached zip is reused only if walking the
+ * project finds the same directories and files with the same sizes and
+ * modification times. A file modified so soon before the zip was made that a
+ * later edit may have kept its modification time is read again and compared
+ * by its checksum.
+ *
+ * Changes made in the IDE invalidate the zip of their project through
+ * {@link #invalidate(String)} without waiting for the manifest check.
+ */
+public class SubmissionZipCache {
+
+    private static final Logger LOG = Logger.getLogger(SubmissionZipCache.class.getName());
+
+    public static final int DEFAULT_MAX_PROJECTS = 4;
+
+    // Modification times are only trusted if they are older than this when
+    // the zip was made
+    private static final long MTIME_GRANULARITY = 2000;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, CachedZip> zips;
+
+    // Incremented by every invalidation, so that a zip made while its project
+    // changed is not cached
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SubmissionZipCache() {
+
+        this(DEFAULT_MAX_PROJECTS);
+    }
+
+    /**
+     * @param maxProjects
+     *            Number of projects whose zips are kept
+     */
+    public SubmissionZipCache(final int maxProjects) {
+
+        this.zips = new LinkedHashMap<String, CachedZip>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedZip> eldest) {
+
+                return size() > maxProjects;
+            }
+        };
+    }
+
+    /**
+     * Returns the submission zip of the project, reusing the cached zip if the
+     * sources have not changed. The returned array is shared and must not be
+     * modified.
+     */
+    public byte[] zip(final Project project) throws InvalidProjectException, IOException {
+
+        final String rootPath = project.getRootPath();
+        final File root = new File(rootPath);
+        if (!root.isDirectory()) {
+            throw new FileNotFoundException("Root directory " + rootPath + " not found for zipping!");
+        }
+
+        final ZippingDecider decider = project.getZippingDecider();
+
+        final CachedZip cached;
+        synchronized (zips) {
+            cached = zips.get(rootPath);
+        }
+
+        if (cached != null && cached.isCurrent(root, decider)) {
+            hits.incrementAndGet();
+            LOG.log(Level.FINE, "Reusing the submission zip of {0}", rootPath);
+            return cached.data;
+        }
+
+        misses.incrementAndGet();
+
+        final long invalidationsBefore = invalidations.get();
+        final CachedZip zip = CachedZip.make(root, decider);
+
+        synchronized (zips) {
+            if (invalidations.get() == invalidationsBefore) {
+                zips.put(rootPath, zip);
+            } else {
+                zips.remove(rootPath);
+            }
+        }
+
+        return zip.data;
+    }
+
+    /**
+     * Forgets the zip of the project in the given root directory.
+     */
+    public void invalidate(final String rootPath) {
+
+        invalidations.incrementAndGet();
+        synchronized (zips) {
+            zips.remove(rootPath);
+        }
+    }
+
+    /**
+     * Forgets every zip.
+     */
+    public void invalidateAll() {
+
+        invalidations.incrementAndGet();
+        synchronized (zips) {
+            zips.clear();
+        }
+    }
+
+    public long getHitCount() {
+
+        return hits.get();
+    }
+
+    public long getMissCount() {
+
+        return misses.get();
+    }
+
+    /**
+     * Size, modification time and checksum of a zipped file.
+     */
+    private static final class FileState {
+
+        private final long size;
+        private final long modified;
+        private final long crc;
+
+        private FileState(final long size, final long modified, final long crc) {
+
+            this.size = size;
+            this.modified = modified;
+            this.crc = crc;
+        }
+    }
+
+    private static final class CachedZip {
+
+        private final byte[] data;
+        private final long zippedAt;
+        private final List<String> directories;
+        private final Map<String, FileState> files;
+
+        private CachedZip(final byte[] data, final long zippedAt, final List<String> directories, final Map<String, FileState> files) {
+
+            this.data = data;
+            this.zippedAt = zippedAt;
+            this.directories = directories;
+            this.files = files;
+        }
+
+        /**
+         * Zips the project in the same layout as RecursiveZipper, recording
+         * the manifest on the way.
+         */
+        private static CachedZip make(final File root, final ZippingDecider decider) throws IOException {
+
+            final long zippedAt = System.currentTimeMillis();
+            final List<String> directories = new ArrayList<String>();
+            final Map<String, FileState> files = new HashMap<String, FileState>();
+            final ZipWriter zipWriter = new ZipWriter();
+            final byte[] data;
+
+            try {
+                ProjectWalker.walk(root, decider, new ProjectWalker.Visitor() {
+
+                    @Override
+                    public void visitDirectory(final String zipPath, final Path directory, final BasicFileAttributes attributes)
+                            throws IOException {
+
+                        zipWriter.addDirectory(zipPath);
+                        directories.add(zipPath);
+                    }
+
+                    @Override
+                    public void visitFile(final String zipPath, final Path file, final BasicFileAttributes attributes) throws IOException {
+
+                        zipWriter.addFile(zipPath, file.toFile());
+                        files.put(zipPath, new FileState(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                                zipWriter.getLastChecksum()));
+                    }
+                });
+                data = zipWriter.finish();
+            } finally {
+                zipWriter.close();
+            }
+
+            return new CachedZip(data, zippedAt, directories, files);
+        }
+
+        /**
+         * Whether the project still has the files of the zip.
+         */
+        private boolean isCurrent(final File root, final ZippingDecider decider) throws IOException {
+
+            final List<String> foundDirectories = new ArrayList<String>();
+            final Map<String, Path> unsure = new HashMap<String, Path>();
+            final int[] found = new int[1];
+            final boolean[] changed = new boolean[1];
+
+            ProjectWalker.walk(root, decider, new ProjectWalker.Visitor() {
+
+                @Override
+                public void visitDirectory(final String zipPath, final Path directory, final BasicFileAttributes attributes) {
+
+                    foundDirectories.add(zipPath);
+                }
+
+                @Override
+                public void visitFile(final String zipPath, final Path file, final BasicFileAttributes attributes) {
+
+                    final FileState state = files.get(zipPath);
+                    if (state == null || state.size != attributes.size()
+                            || state.modified != attributes.lastModifiedTime().toMillis()) {
+                        changed[0] = true;
+                    } else if (state.modified + MTIME_GRANULARITY >= zippedAt) {
+                        unsure.put(zipPath, file);
+                    }
+                    found[0]++;
+                }
+            });
+
+            if (changed[0] || found[0] != files.size() || !foundDirectories.equals(directories)) {
+                return false;
+            }
+
+            for (final Map.Entry<String, Path> file : unsure.entrySet()) {
+                if (checksum(file.getValue().toFile()) != files.get(file.getKey()).crc) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static long checksum(final File file) throws IOException {
+
+            final CRC32 crc = new CRC32();
+            final InputStream in;
+            try {
+                in = new FileInputStream(file);
+            } catch (final FileNotFoundException ex) {
+                return -1;
+            }
+
+            try {
+                final byte[] buffer = new byte[READ_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            return crc.getValue();
+        }
+    }
+}
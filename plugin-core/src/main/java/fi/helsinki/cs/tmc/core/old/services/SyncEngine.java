@@ -0,0 +1,325 @@
+package fi.helsinki.cs.tmc.core.old.services;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fi.helsinki.cs.tmc.core.old.domain.Course;
+import fi.helsinki.cs.tmc.core.old.ui.UserVisibleException;
+
+/**
+ * Keeps the courses and the exercises of the current course in sync with the
+ * server in the background.
+ *
+ * Every resource is fetched on a worker thread at its own interval, merged
+ * into the DAOs by the {@link Updater}, and only the resulting changes are
+ * handed to the listeners, on the executor each listener was added with. An
+ * IDE passes an executor that runs on its UI thread, so that no request is
+ * ever made there.
+ *
+ * The intervals are randomized a little, and the first sync after starting is
+ * delayed by a random moment, so that clients started at the same time do
+ * not keep requesting in step.
+ */
+public class SyncEngine {
+
+    private static final Logger LOG = Logger.getLogger(SyncEngine.class.getName());
+
+    public static final long DEFAULT_INTERVAL = 60 * 60 * 1000;
+    public static final double DEFAULT_JITTER = 0.1;
+
+    // The first syncs after starting are spread over this
+    public static final long MAX_INITIAL_DELAY = 30 * 1000;
+
+    /**
+     * What is synced.
+     */
+    public enum Resource {
+
+        /**
+         * The courses available to the user.
+         */
+        COURSES,
+
+        /**
+         * The exercises of the current course.
+         */
+        EXERCISES
+    }
+
+    /**
+     * A listener and the executor it is called on.
+     */
+    private static final class Registration {
+
+        private final SyncListener listener;
+        private final Executor executor;
+
+        private Registration(final SyncListener listener, final Executor executor) {
+
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private static final class Schedule {
+
+        private long interval = DEFAULT_INTERVAL;
+        private double jitter = DEFAULT_JITTER;
+        private ScheduledFuture<?> next;
+
+        // Changed whenever the schedule is restarted, so that a sync already
+        // running does not schedule another one as well
+        private int generation;
+    }
+
+    private final Updater updater;
+    private final CourseDAO courseDAO;
+    private final Settings settings;
+    private final ScheduledExecutorService worker;
+
+    private final Map<Resource, Schedule> schedules = new EnumMap<Resource, Schedule>(Resource.class);
+    private final List<Registration> listeners = new CopyOnWriteArrayList<Registration>();
+    private final Random random = new Random();
+
+    private boolean running;
+
+    public SyncEngine(final Updater updater, final CourseDAO courseDAO, final Settings settings) {
+
+        this.updater = updater;
+        this.courseDAO = courseDAO;
+        this.settings = settings;
+
+        this.worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+
+                final Thread thread = new Thread(runnable, "TMC sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        for (final Resource resource : Resource.values()) {
+            schedules.put(resource, new Schedule());
+        }
+    }
+
+    /**
+     * @param executor
+     *            Executor the listener is called on, such as one that runs
+     *            tasks on the UI thread
+     */
+    public void addListener(final SyncListener listener, final Executor executor) {
+
+        listeners.add(new Registration(listener, executor));
+    }
+
+    public void removeListener(final SyncListener listener) {
+
+        for (final Registration registration : listeners) {
+            if (registration.listener == listener) {
+                listeners.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Sets how often the resource is synced.
+     *
+     * @param interval
+     *            Time between syncs in milliseconds
+     * @param jitter
+     *            Fraction by which each interval may randomly be shorter or
+     *            longer, such as 0.1 for 10%
+     */
+    public synchronized void setSchedule(final Resource resource, final long interval, final double jitter) {
+
+        if (interval <= 0 || jitter < 0 || jitter >= 1) {
+            throw new IllegalArgumentException("Invalid sync schedule: " + interval + " ms +- " + jitter);
+        }
+
+        final Schedule schedule = schedules.get(resource);
+        schedule.interval = interval;
+        schedule.jitter = jitter;
+
+        if (running) {
+            cancel(schedule);
+            scheduleNext(resource, nextDelay(schedule));
+        }
+    }
+
+    /**
+     * Starts syncing every resource at its interval.
+     */
+    public synchronized void start() {
+
+        if (running) {
+            return;
+        }
+        running = true;
+
+        // Courses first, as the exercises depend on the current course
+        final long initialDelay = (long) (MAX_INITIAL_DELAY * random.nextDouble());
+        scheduleNext(Resource.COURSES, initialDelay);
+        scheduleNext(Resource.EXERCISES, initialDelay);
+    }
+
+    /**
+     * Stops syncing. A sync in progress is let finish, but its changes may
+     * still be published.
+     */
+    public synchronized void stop() {
+
+        running = false;
+        for (final Schedule schedule : schedules.values()) {
+            cancel(schedule);
+        }
+    }
+
+    public synchronized boolean isRunning() {
+
+        return running;
+    }
+
+    /**
+     * Syncs every resource once as soon as possible, without changing when
+     * they are synced next.
+     */
+    public void syncNow() {
+
+        for (final Resource resource : Resource.values()) {
+            worker.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    sync(resource);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops syncing for good. Called when the plugin shuts down.
+     */
+    public void shutdown() {
+
+        stop();
+        worker.shutdownNow();
+    }
+
+    private void cancel(final Schedule schedule) {
+
+        schedule.generation++;
+        if (schedule.next != null) {
+            schedule.next.cancel(false);
+            schedule.next = null;
+        }
+    }
+
+    private void scheduleNext(final Resource resource, final long delay) {
+
+        final Schedule schedule = schedules.get(resource);
+        final int generation = schedule.generation;
+
+        schedule.next = worker.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    sync(resource);
+                } finally {
+                    synchronized (SyncEngine.this) {
+                        if (running && schedule.generation == generation) {
+                            scheduleNext(resource, nextDelay(schedule));
+                        }
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private long nextDelay(final Schedule schedule) {
+
+        return (long) (schedule.interval * (1 - schedule.jitter + 2 * schedule.jitter * random.nextDouble()));
+    }
+
+    private void sync(final Resource resource) {
+
+        try {
+            switch (resource) {
+            case COURSES:
+                syncCourses();
+                break;
+            case EXERCISES:
+                syncExercises();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown resource " + resource);
+            }
+        } catch (final UserVisibleException ex) {
+            // Such as not being logged in, which is retried on the next sync
+            LOG.log(Level.FINE, "Could not sync {0}: {1}", new Object[] { resource, ex.getMessage() });
+        } catch (final RuntimeException ex) {
+            LOG.log(Level.INFO, "Failed to sync " + resource, ex);
+        }
+    }
+
+    private void syncCourses() {
+
+        final CourseChanges changes = updater.updateCourses();
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        for (final Registration registration : listeners) {
+            registration.executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    registration.listener.coursesChanged(changes.getAdded(), changes.getRemoved());
+                }
+            });
+        }
+    }
+
+    private void syncExercises() {
+
+        final Course course = courseDAO.getCurrentCourse(settings);
+        if (course == null) {
+            return;
+        }
+
+        // The updater merges into the course that replaced this one if the
+        // courses were synced in the meantime
+        final ExerciseChanges changes = updater.updateExercises(course);
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        for (final Registration registration : listeners) {
+            registration.executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    registration.listener.exercisesChanged(changes.getCourse(), changes);
+                }
+            });
+        }
+    }
+}
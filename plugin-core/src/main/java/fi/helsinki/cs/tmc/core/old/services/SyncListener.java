@@ -0,0 +1,22 @@
+package fi.helsinki.cs.tmc.core.old.services;
+
+import java.util.List;
+
+import fi.helsinki.cs.tmc.core.old.domain.Course;
+
+/**
+ * Receives the changes found by a {@link SyncEngine}. Called only when
+ * something changed, on the executor the listener was added with.
+ */
+public interface SyncListener {
+
+    /**
+     * Courses were added to or removed from the server.
+     */
+    void coursesChanged(List<Course> added, List<Course> removed);
+
+    /**
+     * The exercises of the current course changed.
+     */
+    void exercisesChanged(Course course, ExerciseChanges changes);
+}
@@ -1,16 +1,25 @@
 package fi.helsinki.cs.tmc.core.old.services;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import fi.helsinki.cs.tmc.core.old.domain.Course;
 import fi.helsinki.cs.tmc.core.old.domain.Exercise;
+import fi.helsinki.cs.tmc.core.old.domain.ExerciseKey;
 import fi.helsinki.cs.tmc.core.old.domain.Project;
 import fi.helsinki.cs.tmc.core.old.services.http.ServerManager;
 import fi.helsinki.cs.tmc.core.old.ui.UserVisibleException;
 
 /**
  * Class that handles updating necessary data when we update exercise from
- * server.
+ * server. The updates may be run both on the UI thread and by the
+ * {@link SyncEngine}. The data is fetched without holding any lock, so that a
+ * slow server does not block the other caller, and only merging it into the
+ * DAOs is synchronized on the updater.
  */
 public class Updater {
 
@@ -25,19 +34,46 @@ public class Updater {
         this.projectDAO = projectDAO;
     }
 
-    public void updateCourses() {
+    /**
+     * Replaces the courses with those on the server, carrying over the
+     * exercises of the courses that were already known.
+     *
+     * @return The courses that were added or removed
+     */
+    public CourseChanges updateCourses() {
 
-        final List<Course> oldCourses = courseDAO.getCourses();
         final List<Course> newCourses = server.getCourses();
 
-        for (final Course newCourse : newCourses) {
-            final Course oldCourse = findEqualCourse(oldCourses, newCourse);
-            if (oldCourse != null) {
-                updateCourse(oldCourse, newCourse);
+        synchronized (this) {
+            final List<Course> oldCourses = courseDAO.getCourses();
+
+            final Map<String, Course> oldCoursesByName = new HashMap<String, Course>();
+            for (final Course course : oldCourses) {
+                oldCoursesByName.put(course.getName(), course);
+            }
+
+            final CourseChanges changes = new CourseChanges();
+            final Set<String> newNames = new HashSet<String>();
+
+            for (final Course newCourse : newCourses) {
+                newNames.add(newCourse.getName());
+                final Course oldCourse = oldCoursesByName.get(newCourse.getName());
+                if (oldCourse != null) {
+                    updateCourse(oldCourse, newCourse);
+                } else {
+                    changes.addAdded(newCourse);
+                }
             }
-        }
 
-        courseDAO.setCourses(newCourses);
+            for (final Course oldCourse : oldCourses) {
+                if (!newNames.contains(oldCourse.getName())) {
+                    changes.addRemoved(oldCourse);
+                }
+            }
+
+            courseDAO.setCourses(newCourses);
+            return changes;
+        }
     }
 
     private void updateCourse(final Course oldCourse, final Course newCourse) {
@@ -52,36 +88,63 @@ public class Updater {
         }
     }
 
-    private Course findEqualCourse(final List<Course> list, final Course course) {
+    /**
+     * Replaces the exercises of the course with those on the server, carrying
+     * over the local state of the exercises that the course already had. If
+     * the courses were updated while the exercises were being fetched, the
+     * exercises go to the course that replaced the given one.
+     *
+     * @return The exercises that were added, removed or changed
+     */
+    public ExerciseChanges updateExercises(final Course course) {
 
-        for (final Course c : list) {
-            if (c.equals(course)) {
-                return c;
-            }
+        if (course == null) {
+            throw new UserVisibleException("Remember to select your course from TMC -> Settings");
+        }
+
+        final List<Exercise> newExercises = server.getExercises(course.getId() + "");
+
+        synchronized (this) {
+            final Course current = courseDAO.getCourseByName(course.getName());
+            return mergeExercises(current != null ? current : course, newExercises);
         }
-        return null;
     }
 
-    public void updateExercises(final Course course) {
+    private ExerciseChanges mergeExercises(final Course course, final List<Exercise> newExercises) {
 
-        if (course == null) {
-            throw new UserVisibleException("Remember to select your course from TMC -> Settings");
+        final Map<ExerciseKey, Exercise> oldExercises = new HashMap<ExerciseKey, Exercise>();
+        if (course.getExercises() != null) {
+            for (final Exercise e : course.getExercises()) {
+                oldExercises.put(e.getKey(), e);
+            }
         }
 
-        final List<Exercise> oldExercises = course.getExercises();
-        final List<Exercise> newExercises = server.getExercises(course.getId() + "");
+        final Map<ExerciseKey, Project> projects = projectDAO.getProjectsByExercise();
+        final ExerciseChanges changes = new ExerciseChanges(course);
 
         for (final Exercise newExercise : newExercises) {
-            final Exercise oldExercise = findEqualExercise(oldExercises, newExercise);
-            if (oldExercise != null) {
-                updateExercise(oldExercise, newExercise);
+            final Exercise oldExercise = oldExercises.remove(newExercise.getKey());
+            if (oldExercise == null) {
+                changes.addAdded(newExercise);
+                continue;
             }
+
+            if (!Objects.equals(oldExercise.getChecksum(), newExercise.getChecksum())) {
+                changes.addChecksumChanged(newExercise);
+            }
+            updateExercise(oldExercise, newExercise, projects.get(oldExercise.getKey()));
+        }
+
+        // Whatever was not matched is gone from the server
+        for (final Exercise removed : oldExercises.values()) {
+            changes.addRemoved(removed);
         }
 
         course.setExercises(newExercises);
+        return changes;
     }
 
-    private void updateExercise(final Exercise oldExercise, final Exercise newExercise) {
+    private void updateExercise(final Exercise oldExercise, final Exercise newExercise, final Project project) {
 
         // Update Exercise.course
         newExercise.setOldChecksum(oldExercise.getChecksum());
@@ -90,20 +153,9 @@ public class Updater {
         newExercise.setProject(oldExercise.getProject());
 
         // Update Project.exercise
-        final Project project = projectDAO.getProjectByExercise(oldExercise);
         if (project != null) {
             project.setExercise(newExercise);
         }
     }
 
-    private Exercise findEqualExercise(final List<Exercise> list, final Exercise exercise) {
-
-        for (final Exercise e : list) {
-            if (e.equals(exercise)) {
-                return e;
-            }
-        }
-        return null;
-    }
-
 }
@@ -0,0 +1,315 @@
+package fi.helsinki.cs.tmc.core.old.services.http;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+
+/**
+ * Subscription to a channel of a Bayeux (comet) server over long-polling. The
+ * messages published on the channel are handed to a listener on the
+ * subscription's own thread.
+ *
+ * A failed connection is retried a few times, with a new handshake if the
+ * server asks for one. After that the subscription gives up, so callers
+ * should not rely on it alone; {@link #isConnected()} tells whether messages
+ * can currently be received.
+ */
+public class CometSubscription {
+
+    private static final Logger LOG = Logger.getLogger(CometSubscription.class.getName());
+
+    private static final int MAX_FAILURES = 3;
+    private static final long RETRY_DELAY = 5 * 1000;
+
+    /**
+     * Receives the messages published on the channel.
+     */
+    public interface Listener {
+
+        void messageReceived(JsonElement data);
+    }
+
+    private final ConnectionBuilder connectionBuilder;
+    private final String url;
+    private final String channel;
+    private final JsonObject ext;
+    private final Listener listener;
+    private final Thread thread;
+
+    private volatile boolean closed;
+    private volatile boolean connected;
+    private volatile HttpPost current;
+
+    /**
+     * @param ext
+     *            Extension fields sent with the handshake and the
+     *            subscription, such as authentication
+     */
+    CometSubscription(final ConnectionBuilder connectionBuilder,
+                      final String url,
+                      final String channel,
+                      final JsonObject ext,
+                      final Listener listener) {
+
+        this.connectionBuilder = connectionBuilder;
+        this.url = url;
+        this.channel = channel;
+        this.ext = ext;
+        this.listener = listener;
+
+        this.thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                listen();
+            }
+        }, "TMC comet " + channel);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+
+        thread.start();
+    }
+
+    /**
+     * Whether the subscription is in place, so that published messages are
+     * being received.
+     */
+    public boolean isConnected() {
+
+        return connected;
+    }
+
+    /**
+     * Ends the subscription, aborting the long poll in progress.
+     */
+    public void close() {
+
+        closed = true;
+        connected = false;
+
+        final HttpPost request = current;
+        if (request != null) {
+            request.abort();
+        }
+        thread.interrupt();
+    }
+
+    private void listen() {
+
+        int failures = 0;
+        String clientId = null;
+
+        while (!closed) {
+            try {
+                clientId = handshake();
+                subscribe(clientId);
+                connected = true;
+
+                // Polled again right away, the server holds the request until
+                // there is something to send
+                while (!closed && poll(clientId)) {
+                    failures = 0;
+                }
+                connected = false;
+
+                // A server that keeps asking for handshakes is given up on
+                // like one that fails
+                if (++failures >= MAX_FAILURES) {
+                    LOG.log(Level.INFO, "Giving up on comet connection to {0}", url);
+                    return;
+                }
+            } catch (final Exception ex) {
+                connected = false;
+                if (closed) {
+                    break;
+                }
+
+                failures++;
+                LOG.log(Level.FINE, "Comet connection to " + url + " failed", ex);
+                if (failures >= MAX_FAILURES || !sleep(RETRY_DELAY)) {
+                    LOG.log(Level.INFO, "Giving up on comet connection to {0}", url);
+                    return;
+                }
+            }
+        }
+
+        if (clientId != null) {
+            disconnect(clientId);
+        }
+    }
+
+    private String handshake() throws Exception {
+
+        final JsonObject message = message("/meta/handshake", null);
+        message.addProperty("version", "1.0");
+        final JsonArray types = new JsonArray();
+        types.add(new JsonPrimitive("long-polling"));
+        message.add("supportedConnectionTypes", types);
+        message.add("ext", ext);
+
+        final JsonObject reply = reply(send(message), "/meta/handshake");
+        return reply.get("clientId").getAsString();
+    }
+
+    private void subscribe(final String clientId) throws Exception {
+
+        final JsonObject message = message("/meta/subscribe", clientId);
+        message.addProperty("subscription", channel);
+        message.add("ext", ext);
+
+        reply(send(message), "/meta/subscribe");
+    }
+
+    /**
+     * Waits for messages with a long poll.
+     *
+     * @return false if a new handshake is needed
+     */
+    private boolean poll(final String clientId) throws Exception {
+
+        final JsonObject message = message("/meta/connect", clientId);
+        message.addProperty("connectionType", "long-polling");
+
+        boolean reconnect = true;
+        for (final JsonElement element : send(message)) {
+            final JsonObject received = element.getAsJsonObject();
+            final String receivedChannel = received.get("channel").getAsString();
+
+            if (channel.equals(receivedChannel) && received.has("data")) {
+                listener.messageReceived(received.get("data"));
+            } else if ("/meta/connect".equals(receivedChannel)) {
+                reconnect = followAdvice(received);
+                if (reconnect && !isSuccessful(received)) {
+                    throw new IllegalStateException("Comet connect failed: " + received.get("error"));
+                }
+            }
+        }
+        return reconnect;
+    }
+
+    /**
+     * @return false if the server asks for a new handshake
+     */
+    private boolean followAdvice(final JsonObject reply) throws Exception {
+
+        if (!reply.has("advice")) {
+            return true;
+        }
+
+        final JsonObject advice = reply.getAsJsonObject("advice");
+        if (advice.has("reconnect")) {
+            final String reconnect = advice.get("reconnect").getAsString();
+            if ("none".equals(reconnect)) {
+                throw new IllegalStateException("Comet server refused reconnecting");
+            } else if ("handshake".equals(reconnect)) {
+                return false;
+            }
+        }
+
+        if (advice.has("interval")) {
+            final long interval = advice.get("interval").getAsLong();
+            if (interval > 0 && !sleep(interval)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void disconnect(final String clientId) {
+
+        // Cleared so that waiting for a pooled connection is not cut short
+        Thread.interrupted();
+        try {
+            post(newRequest(message("/meta/disconnect", clientId)));
+        } catch (final Exception ex) {
+            // The server forgets the client after a timeout anyway
+            LOG.log(Level.FINE, "Failed to disconnect from comet server " + url, ex);
+        }
+    }
+
+    private JsonObject message(final String metaChannel, final String clientId) {
+
+        final JsonObject message = new JsonObject();
+        message.addProperty("channel", metaChannel);
+        if (clientId != null) {
+            message.addProperty("clientId", clientId);
+        }
+        return message;
+    }
+
+    /**
+     * Sends the message so that {@link #close()} can abort it.
+     */
+    private JsonArray send(final JsonObject message) throws Exception {
+
+        final HttpPost request = newRequest(message);
+
+        current = request;
+        try {
+            // Checked after publishing the request, so that a close cannot
+            // slip in between unnoticed
+            if (closed) {
+                throw new InterruptedException();
+            }
+            return post(request);
+        } finally {
+            current = null;
+        }
+    }
+
+    private HttpPost newRequest(final JsonObject message) {
+
+        final JsonArray messages = new JsonArray();
+        messages.add(message);
+
+        final HttpPost request = new HttpPost(url);
+        request.setEntity(new StringEntity(messages.toString(), ContentType.APPLICATION_JSON));
+        return request;
+    }
+
+    private JsonArray post(final HttpPost request) throws Exception {
+
+        return new JsonParser().parse(connectionBuilder.createConnection().postForText(request)).getAsJsonArray();
+    }
+
+    private static JsonObject reply(final JsonArray replies, final String metaChannel) {
+
+        for (final JsonElement element : replies) {
+            final JsonObject reply = element.getAsJsonObject();
+            if (metaChannel.equals(reply.get("channel").getAsString())) {
+                if (!isSuccessful(reply)) {
+                    throw new IllegalStateException("Comet request to " + metaChannel + " failed: " + reply.get("error"));
+                }
+                return reply;
+            }
+        }
+        throw new IllegalStateException("No reply to comet request to " + metaChannel);
+    }
+
+    private static boolean isSuccessful(final JsonObject reply) {
+
+        return reply.has("successful") && reply.get("successful").getAsBoolean();
+    }
+
+    private boolean sleep(final long millis) {
+
+        try {
+            Thread.sleep(millis);
+            return !closed;
+        } catch (final InterruptedException ex) {
+            return false;
+        }
+    }
+}
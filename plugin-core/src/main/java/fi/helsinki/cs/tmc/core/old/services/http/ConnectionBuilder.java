@@ -1,5 +1,7 @@
 package fi.helsinki.cs.tmc.core.old.services.http;
 
+import java.io.File;
+
 import fi.helsinki.cs.tmc.core.old.services.Settings;
 
 /**
@@ -10,10 +12,21 @@ class ConnectionBuilder {
     public static final int API_VERSION = 7;
 
     private final Settings settings;
+    private final HttpClientPool clientPool;
+    private final RequestExecutorFactory executorFactory;
+    private final TextResponseCache responseCache;
 
     public ConnectionBuilder(final Settings settings) {
 
+        this(settings, new TextResponseCache(new File(TextResponseCache.DEFAULT_DIRECTORY)));
+    }
+
+    public ConnectionBuilder(final Settings settings, final TextResponseCache responseCache) {
+
         this.settings = settings;
+        this.clientPool = new HttpClientPool(settings);
+        this.executorFactory = new RequestExecutorFactoryImpl(settings, clientPool);
+        this.responseCache = responseCache;
     }
 
     /**
@@ -53,12 +66,30 @@ class ConnectionBuilder {
     }
 
     /**
-     * Creates and returns RequestBuilder.
+     * Creates and returns RequestBuilder. The builder only holds the current
+     * credentials; connections come from a pool and text responses from a
+     * cache shared by all builders.
      *
      * @return RequestBuilder that will build any requests
      */
     public RequestBuilder createConnection() {
 
-        return new RequestBuilder(new RequestExecutorFactoryImpl(settings)).setCredentials(settings.getUsername(), settings.getPassword());
+        return new RequestBuilder(executorFactory, responseCache).setCredentials(settings.getUsername(), settings.getPassword());
+    }
+
+    /**
+     * The cache of text responses, or null if they are not cached.
+     */
+    public TextResponseCache getResponseCache() {
+
+        return responseCache;
+    }
+
+    /**
+     * Closes all pooled connections.
+     */
+    public void shutdown() {
+
+        clientPool.shutdown();
     }
 }
@@ -0,0 +1,223 @@
+package fi.helsinki.cs.tmc.core.old.services.http;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import fi.helsinki.cs.tmc.core.old.spyware.services.LoggableEvent;
+
+/**
+ * Request body for spyware uploads. Writes the events as a gzipped JSON array
+ * straight into the request stream, so the body is never held in memory. The
+ * event data is base64 encoded directly into the compressed stream instead of
+ * being converted into an intermediate string first.
+ *
+ * The JSON has the same shape Gson produced for {@link LoggableEvent}: fields
+ * in declaration order, transient fields and null values left out.
+ */
+public class EventListEntity extends AbstractHttpEntity {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Never written, as the base64 output is not split into lines, but
+    // commons-codec 1.4 does not accept a null separator
+    private static final byte[] LINE_SEPARATOR = { '\r', '\n' };
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final List<LoggableEvent> events;
+
+    public EventListEntity(final List<LoggableEvent> events) {
+
+        this.events = events;
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+
+        return -1;
+    }
+
+    /**
+     * Writes the whole body into memory. Requests are sent with
+     * {@link #writeTo(OutputStream)}; this is only for code that reads the
+     * content instead, such as wire logging.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writeTo(buffer);
+        return new ByteArrayInputStream(buffer.toByteArray());
+    }
+
+    @Override
+    public boolean isStreaming() {
+
+        return false;
+    }
+
+    @Override
+    public void writeTo(final OutputStream outstream) throws IOException {
+
+        final GZIPOutputStream gzip = new GZIPOutputStream(new CloseShieldOutputStream(outstream), BUFFER_SIZE);
+        final OutputStream body = new UnflushableOutputStream(gzip);
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(body, UTF8), BUFFER_SIZE);
+
+        try {
+            writer.write('[');
+            boolean first = true;
+            for (final LoggableEvent event : events) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writeEvent(writer, body, event);
+            }
+            writer.write(']');
+            writer.flush();
+        } finally {
+            // Finishes the gzip stream but leaves the connection open
+            gzip.close();
+        }
+    }
+
+    private void writeEvent(final Writer writer, final OutputStream raw, final LoggableEvent event) throws IOException {
+
+        writer.write('{');
+        boolean comma = writeString(writer, "courseName", event.getCourseName(), false);
+        comma = writeString(writer, "exerciseName", event.getExerciseName(), comma);
+        comma = writeString(writer, "eventType", event.getEventType(), comma);
+
+        final byte[] data = event.getData();
+        if (data != null) {
+            writeName(writer, "data", comma);
+            writer.write('"');
+            writeBase64(writer, raw, data);
+            writer.write('"');
+            comma = true;
+        }
+
+        comma = writeString(writer, "metadata", event.getMetadata(), comma);
+        writeName(writer, "happenedAt", comma);
+        writer.write(Long.toString(event.getHappenedAt()));
+        writeName(writer, "systemNanotime", true);
+        writer.write(Long.toString(event.getSystemNanotime()));
+        writer.write('}');
+    }
+
+    /**
+     * Base64 output needs no JSON escaping, so it bypasses the writer and goes
+     * straight to the compressed stream. The writer is flushed first to keep
+     * the output in order; the flush stops before the gzip stream so it does
+     * not force out a network packet per event.
+     */
+    private void writeBase64(final Writer writer, final OutputStream raw, final byte[] data) throws IOException {
+
+        writer.flush();
+        final OutputStream base64 = new Base64OutputStream(raw, true, 0, LINE_SEPARATOR);
+        base64.write(data);
+        // Writes the final partial block and padding
+        base64.close();
+    }
+
+    private boolean writeString(final Writer writer, final String name, final String value, final boolean comma) throws IOException {
+
+        if (value == null) {
+            return comma;
+        }
+
+        writeName(writer, name, comma);
+        writeQuoted(writer, value);
+        return true;
+    }
+
+    private void writeName(final Writer writer, final String name, final boolean comma) throws IOException {
+
+        if (comma) {
+            writer.write(',');
+        }
+        writer.write('"');
+        writer.write(name);
+        writer.write("\":");
+    }
+
+    private void writeQuoted(final Writer writer, final String value) throws IOException {
+
+        writer.write('"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                writer.write("\\\"");
+                break;
+            case '\\':
+                writer.write("\\\\");
+                break;
+            case '\n':
+                writer.write("\\n");
+                break;
+            case '\r':
+                writer.write("\\r");
+                break;
+            case '\t':
+                writer.write("\\t");
+                break;
+            default:
+                if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                    writer.write(String.format("\\u%04x", (int) c));
+                } else {
+                    writer.write(c);
+                }
+            }
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Passes writes through but ignores flush and close, so that neither the
+     * writer nor the base64 encoder can flush or close the gzip stream.
+     */
+    private static final class UnflushableOutputStream extends FilterOutputStream {
+
+        private UnflushableOutputStream(final OutputStream out) {
+
+            super(out);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+
+        }
+
+        @Override
+        public void close() {
+
+        }
+    }
+}
@@ -1,32 +1,109 @@
 package fi.helsinki.cs.tmc.core.old.services.http;
 
+import java.io.IOException;
 import java.net.ProxySelector;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.client.LaxRedirectStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
 
 /**
  * Implementation of HttpClientFactory interface.
- * Creates actual HttpClients that can be used to connect to the internet.
+ * Creates a single HttpClient backed by a pool of keep-alive connections and
+ * hands out that same client on every call. Callers must not close the client;
+ * it is closed by {@link #shutdown()}.
  */
 public class HttpClientFactoryImpl implements HttpClientFactory {
 
+    public static final int DEFAULT_MAX_TOTAL = 20;
+    public static final int DEFAULT_MAX_PER_ROUTE = 4;
+
+    // Connections are never reused after this, even if the server allows it
+    private static final long CONNECTION_TIME_TO_LIVE = 5 * 60 * 1000;
+
+    // Time to wait for a free connection from the pool
+    private static final int CONNECTION_REQUEST_TIMEOUT = 60 * 1000;
+
+    private static final Logger LOG = Logger.getLogger(HttpClientFactoryImpl.class.getName());
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+
+    public HttpClientFactoryImpl() {
+
+        this(DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE);
+    }
+
+    /**
+     * @param maxTotal
+     *            Maximum number of open connections
+     * @param maxPerRoute
+     *            Maximum number of open connections to a single host
+     */
+    public HttpClientFactoryImpl(final int maxTotal, final int maxPerRoute) {
+
+        // The connection manager is given explicitly, so the system SSL
+        // settings that useSystemProperties() would apply are set here
+        final Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLConnectionSocketFactory.getSystemSocketFactory()).build();
+
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactories, null, null, null, CONNECTION_TIME_TO_LIVE,
+                TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+        final RequestConfig requestConfig = RequestConfig.custom().setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT).build();
+
+        final HttpClientBuilder httpClientBuilder = HttpClients.custom().useSystemProperties().setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig).setRedirectStrategy(new LaxRedirectStrategy());
+        maybeSetProxy(httpClientBuilder);
+
+        httpClient = httpClientBuilder.build();
+    }
+
     /**
-     * Creates HTTP client.
+     * Returns the shared pooled HTTP client.
      */
     @Override
     public CloseableHttpClient makeHttpClient() {
 
-        final HttpClientBuilder httpClientBuilder = HttpClients.custom().useSystemProperties()
-                .setConnectionReuseStrategy(new NoConnectionReuseStrategy()).setRedirectStrategy(new LaxRedirectStrategy());
-        maybeSetProxy(httpClientBuilder);
+        return httpClient;
+    }
+
+    /**
+     * Closes expired connections and connections that have been idle longer
+     * than the given time.
+     */
+    public void closeIdleConnections(final long idleTime) {
 
-        return httpClientBuilder.build();
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTime, TimeUnit.MILLISECONDS);
+    }
 
+    /**
+     * Closes the client and every pooled connection.
+     */
+    public void shutdown() {
+
+        try {
+            httpClient.close();
+        } catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to close HTTP client", ex);
+        }
+        connectionManager.shutdown();
     }
 
     private void maybeSetProxy(final HttpClientBuilder httpClientBuilder) {
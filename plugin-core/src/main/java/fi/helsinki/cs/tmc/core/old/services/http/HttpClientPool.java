@@ -0,0 +1,128 @@
+package fi.helsinki.cs.tmc.core.old.services.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+
+import fi.helsinki.cs.tmc.core.old.services.Settings;
+
+/**
+ * Keeps one long-lived pooled HTTP client per server base URL, so that
+ * requests reuse open connections instead of connecting again every time.
+ * Requests made while a different server is selected in the settings get a
+ * separate pool. Connections that stay idle are closed in the background.
+ */
+public class HttpClientPool implements HttpClientFactory {
+
+    public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+    private final Settings settings;
+    private final int maxTotal;
+    private final int maxPerRoute;
+    private final long idleTimeout;
+
+    private final ConcurrentMap<String, HttpClientFactoryImpl> clients = new ConcurrentHashMap<String, HttpClientFactoryImpl>();
+
+    private ScheduledExecutorService evictor;
+
+    public HttpClientPool(final Settings settings) {
+
+        this(settings, HttpClientFactoryImpl.DEFAULT_MAX_TOTAL, HttpClientFactoryImpl.DEFAULT_MAX_PER_ROUTE, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param maxTotal
+     *            Maximum number of open connections per server base URL
+     * @param maxPerRoute
+     *            Maximum number of open connections to a single host
+     * @param idleTimeout
+     *            Time in milliseconds after which an unused connection is
+     *            closed
+     */
+    public HttpClientPool(final Settings settings, final int maxTotal, final int maxPerRoute, final long idleTimeout) {
+
+        this.settings = settings;
+        this.maxTotal = maxTotal;
+        this.maxPerRoute = maxPerRoute;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns the pooled client of the currently selected server.
+     */
+    @Override
+    public CloseableHttpClient makeHttpClient() {
+
+        final String baseUrl = settings.getServerBaseUrl();
+        final String key = baseUrl == null ? "" : baseUrl;
+
+        HttpClientFactoryImpl factory = clients.get(key);
+        if (factory == null) {
+            factory = createFactory(key);
+        }
+
+        return factory.makeHttpClient();
+    }
+
+    /**
+     * Closes every pooled connection and stops the idle connection eviction.
+     * A later request starts a new pool.
+     */
+    public synchronized void shutdown() {
+
+        if (evictor != null) {
+            evictor.shutdownNow();
+            evictor = null;
+        }
+
+        for (final HttpClientFactoryImpl factory : clients.values()) {
+            factory.shutdown();
+        }
+        clients.clear();
+    }
+
+    private synchronized HttpClientFactoryImpl createFactory(final String key) {
+
+        HttpClientFactoryImpl factory = clients.get(key);
+        if (factory == null) {
+            factory = new HttpClientFactoryImpl(maxTotal, maxPerRoute);
+            clients.put(key, factory);
+        }
+
+        if (evictor == null) {
+            startEvictor();
+        }
+
+        return factory;
+    }
+
+    private void startEvictor() {
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+
+                final Thread thread = new Thread(runnable, "TMC HTTP connection evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        evictor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+
+                for (final HttpClientFactoryImpl factory : clients.values()) {
+                    factory.closeIdleConnections(idleTimeout);
+                }
+            }
+        }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+}
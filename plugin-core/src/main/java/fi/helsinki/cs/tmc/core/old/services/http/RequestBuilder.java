@@ -2,6 +2,11 @@ package fi.helsinki.cs.tmc.core.old.services.http;
 
 import com.google.common.base.Charsets;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
@@ -9,7 +14,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
@@ -27,8 +38,23 @@ import org.apache.http.util.EntityUtils;
  */
 class RequestBuilder {
 
+    private static final Logger LOG = Logger.getLogger(RequestBuilder.class.getName());
+
+    /**
+     * Reads the text as is.
+     */
+    static final ResponseParser<String> TEXT = new ResponseParser<String>() {
+
+        @Override
+        public String parse(final Reader body) throws IOException {
+
+            return IOUtils.toString(body);
+        }
+    };
+
     private UsernamePasswordCredentials credentials;
     private final RequestExecutorFactory factory;
+    private final TextResponseCache cache;
 
     /**
      * Constructor.
@@ -39,7 +65,22 @@ class RequestBuilder {
      */
     RequestBuilder(final RequestExecutorFactory factory) {
 
+        this(factory, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param factory
+     *            Factory that will be used to create RequestExecutors
+     *            internally
+     * @param cache
+     *            Cache of text responses, or null to always download them
+     */
+    RequestBuilder(final RequestExecutorFactory factory, final TextResponseCache cache) {
+
         this.factory = factory;
+        this.cache = cache;
     }
 
     /**
@@ -97,6 +138,22 @@ class RequestBuilder {
         return downloadToBinary(createExecutor(url));
     }
 
+    /**
+     * Downloads binary output from given URL straight into a stream.
+     *
+     * @param url
+     *            URL where data will be downloaded
+     * @param out
+     *            Stream the data is written to. Not closed.
+     * @throws Exception
+     *             Throws various exceptions, for example when credentials are
+     *             wrong or when IO exception happens
+     */
+    public void getForStream(final String url, final OutputStream out) throws Exception {
+
+        createExecutor(url).executeTo(out);
+    }
+
     /**
      * Returns text output from given URL.
      *
@@ -109,7 +166,166 @@ class RequestBuilder {
      */
     public String getForText(final String url) throws Exception {
 
-        return downloadToText(createExecutor(url));
+        return getForParsed(url, String.class, TEXT);
+    }
+
+    /**
+     * Parses text output from given URL as it is downloaded, without holding
+     * the whole text in memory. If the response is cached, it is revalidated
+     * with a conditional request, and when the server answers that it has not
+     * been modified, the object the cached body was last parsed into is
+     * returned again. The cached body is only parsed if there is no such
+     * object, for example on the first request after a restart.
+     *
+     * @param url
+     *            URL where the text will be fetched
+     * @param type
+     *            Type of the objects the parser returns
+     * @param parser
+     *            Parser for the text
+     * @return What the parser returned
+     * @throws Exception
+     *             Throws various exceptions, for example when credentials are
+     *             wrong or when IO exception happens
+     */
+    public <T> T getForParsed(final String url, final Class<T> type, final ResponseParser<T> parser) throws Exception {
+
+        final String user = credentials == null ? null : credentials.getUserName();
+        final TextResponseCache.Entry cached = cache == null ? null : cache.get(user, url);
+
+        final ResponseValidators validators = cached != null ? cached.getValidators() : new ResponseValidators();
+        final boolean[] downloaded = new boolean[1];
+        final T result = createExecutor(url).executeConditional(validators, new RequestExecutor.BodyReader<T>() {
+
+            @Override
+            public T read(final InputStream body) throws IOException {
+
+                downloaded[0] = true;
+                if (cache == null) {
+                    return parse(parser, body);
+                }
+
+                cache.downloaded(url);
+                if (validators.isEmpty()) {
+                    cache.remove(user, url);
+                    return parse(parser, body);
+                }
+                return parseAndCache(user, url, validators, parser, body);
+            }
+        });
+
+        if (downloaded[0]) {
+            return result;
+        }
+        if (cached == null) {
+            throw new IOException("Unrequested 304 Not Modified from " + url);
+        }
+
+        cache.revalidated(cached);
+        final T parsed = cached.getParsed(type);
+        if (parsed != null) {
+            return parsed;
+        }
+
+        final InputStream body;
+        try {
+            body = cache.open(cached);
+        } catch (final IOException ex) {
+            // Removed meanwhile, so downloaded again without validators
+            LOG.log(Level.FINE, "Cached response from " + url + " is gone", ex);
+            cache.remove(user, url);
+            return getForParsed(url, type, parser);
+        }
+
+        try {
+            final T reparsed = parse(parser, body);
+            cached.setParsed(reparsed);
+            return reparsed;
+        } finally {
+            body.close();
+        }
+    }
+
+    /**
+     * Parses the body while writing it to the cache.
+     */
+    private <T> T parseAndCache(final String user,
+                                final String url,
+                                final ResponseValidators validators,
+                                final ResponseParser<T> parser,
+                                final InputStream body) throws IOException {
+
+        final TextResponseCache.Download download;
+        try {
+            download = cache.startDownload(user, url, validators);
+        } catch (final IOException ex) {
+            LOG.log(Level.INFO, "Failed to cache the response from " + url, ex);
+            return parse(parser, body);
+        }
+
+        try {
+            final InputStream tee = new TeeInputStream(body, download.getStream());
+            final T parsed = parse(parser, tee);
+
+            // The parser may stop before the end, such as trailing whitespace
+            IOUtils.copy(tee, NullOutputStream.NULL_OUTPUT_STREAM);
+
+            try {
+                download.commit().setParsed(parsed);
+            } catch (final IOException ex) {
+                LOG.log(Level.INFO, "Failed to cache the response from " + url, ex);
+            }
+            return parsed;
+        } finally {
+            download.abort();
+        }
+    }
+
+    private static <T> T parse(final ResponseParser<T> parser, final InputStream body) throws IOException {
+
+        return parser.parse(new InputStreamReader(body, Charsets.UTF_8));
+    }
+
+    /**
+     * Returns text output from given URL unless it is the same as in the
+     * response the validators are from.
+     *
+     * @param url
+     *            URL where the text will be fetched
+     * @param validators
+     *            Validators of the previous response, replaced with those of
+     *            the new response
+     * @return The fetched text, or null if it has not been modified
+     * @throws Exception
+     *             Throws various exceptions, for example when credentials are
+     *             wrong or when IO exception happens
+     */
+    public String getForTextIfModified(final String url, final ResponseValidators validators) throws Exception {
+
+        return createExecutor(url).executeConditional(validators, new RequestExecutor.BodyReader<String>() {
+
+            @Override
+            public String read(final InputStream body) throws IOException {
+
+                return parse(TEXT, body);
+            }
+        });
+    }
+
+    /**
+     * Sends a prepared HTTP Post request and returns text from the URL. The
+     * caller keeps a reference to the request, so that it can abort it.
+     *
+     * @param request
+     *            Request that will be sent
+     * @return Text that was received from the URL
+     * @throws Exception
+     *             Throws various exceptions, for example when credentials are
+     *             wrong or when IO exception happens
+     */
+    public String postForText(final HttpPost request) throws Exception {
+
+        return downloadToText(createExecutor(request));
     }
 
     /**
@@ -182,7 +398,27 @@ class RequestBuilder {
      */
     public String rawPostForText(final String url, final byte[] data, final Map<String, String> extraHeaders) throws Exception {
 
-        return downloadToText(createExecutor(makeRawPostRequest(url, data, extraHeaders)));
+        return rawPostForText(url, new ByteArrayEntity(data), extraHeaders);
+    }
+
+    /**
+     * Makes a raw HTTP post request with extra headers where the entity is
+     * written to the connection as is. Allows streaming request bodies.
+     *
+     * @param url
+     *            URL where data will be posted
+     * @param entity
+     *            entity to be posted
+     * @param extraHeaders
+     *            extra headers to be used
+     * @return Text returned from the post request
+     * @throws Exception
+     *             Throws various exceptions, for example when credentials are
+     *             wrong or when IO exception happens
+     */
+    public String rawPostForText(final String url, final HttpEntity entity, final Map<String, String> extraHeaders) throws Exception {
+
+        return downloadToText(createExecutor(makeRawPostRequest(url, entity, extraHeaders)));
     }
 
     /**
@@ -241,17 +477,16 @@ class RequestBuilder {
     private HttpPost makeRawPostRequest(final String url, final byte[] data) throws URISyntaxException {
 
         final Map<String, String> empty = Collections.emptyMap();
-        return makeRawPostRequest(url, data, empty);
+        return makeRawPostRequest(url, new ByteArrayEntity(data), empty);
     }
 
-    private HttpPost makeRawPostRequest(final String url, final byte[] data, final Map<String, String> extraHeaders) throws URISyntaxException {
+    private HttpPost makeRawPostRequest(final String url, final HttpEntity entity, final Map<String, String> extraHeaders) throws URISyntaxException {
 
         final HttpPost request = new HttpPost(url);
         for (final Map.Entry<String, String> header : extraHeaders.entrySet()) {
             request.addHeader(header.getKey(), header.getValue());
         }
 
-        final ByteArrayEntity entity = new ByteArrayEntity(data);
         request.setEntity(entity);
         return request;
     }
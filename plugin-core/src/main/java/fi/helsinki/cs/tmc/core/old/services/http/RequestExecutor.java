@@ -1,14 +1,18 @@
 package fi.helsinki.cs.tmc.core.old.services.http;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.logging.Logger;
 
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthenticationException;
 import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.BufferedHttpEntity;
@@ -123,16 +127,138 @@ class RequestExecutor {
         return executeRequest(httpClient);
     }
 
-    private BufferedHttpEntity executeRequest(final HttpClient httpClient) throws IOException, InterruptedException, FailedHttpResponseException {
+    /**
+     * Executes the HTTP request and writes a successful response straight to
+     * the given stream without buffering it in memory.
+     *
+     * @param out
+     *            Stream the response body is written to. Not closed.
+     * @throws IOException
+     *             Throws IOException if download fails, if server response
+     *             contains no entity or if writing to the stream fails
+     * @throws InterruptedException
+     *             Throws InterruptedException if request is aborted or if
+     *             authentication fails
+     * @throws FailedHttpResponseException
+     *             Throws FailedHttpResponseException if status code is not 2xx;
+     *             nothing is written to the stream in that case
+     */
+    public void executeTo(final OutputStream out) throws IOException, InterruptedException, FailedHttpResponseException {
 
-        HttpResponse response = null;
+        final CloseableHttpResponse response = send(factory.makeHttpClient());
+
+        try {
+            final int responseCode = response.getStatusLine().getStatusCode();
+            if (!success(responseCode) || response.getEntity() == null) {
+                handleResponse(response);
+                return;
+            }
+
+            settings.setLoggedIn(true);
+            response.getEntity().writeTo(out);
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Reads the body of a successful response as it is received.
+     */
+    interface BodyReader<T> {
+
+        T read(InputStream body) throws IOException;
+    }
+
+    /**
+     * Executes the HTTP request as a conditional request with the given
+     * validators, which are then replaced with those of the response. The
+     * body of a successful response is handed to the reader as a stream
+     * instead of being buffered in memory; the validators are replaced before
+     * the reader is called.
+     *
+     * @return What the reader returned, or null if the server answered that
+     *         the response has not been modified
+     * @throws IOException
+     *             Throws IOException if download fails, if server response
+     *             contains no entity or if the reader fails
+     * @throws InterruptedException
+     *             Throws InterruptedException if request is aborted or if
+     *             authentication fails
+     * @throws FailedHttpResponseException
+     *             Throws FailedHttpResponseException if status code is not 2xx
+     *             or 304
+     */
+    public <T> T executeConditional(final ResponseValidators validators, final BodyReader<T> reader) throws IOException,
+            InterruptedException, FailedHttpResponseException {
+
+        if (validators.getEtag() != null) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, validators.getEtag());
+        }
+        if (validators.getLastModified() != null) {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, validators.getLastModified());
+        }
+
+        final CloseableHttpResponse response = send(factory.makeHttpClient());
+
+        try {
+            final int responseCode = response.getStatusLine().getStatusCode();
+            if (responseCode == HttpStatus.SC_NOT_MODIFIED) {
+                settings.setLoggedIn(true);
+                EntityUtils.consume(response.getEntity());
+                return null;
+            }
+
+            if (!success(responseCode) || response.getEntity() == null) {
+                // Throws with the response buffered
+                handleResponse(response);
+            }
+
+            settings.setLoggedIn(true);
+            validators.setEtag(headerValue(response, HttpHeaders.ETAG));
+            validators.setLastModified(headerValue(response, HttpHeaders.LAST_MODIFIED));
+
+            final InputStream body = response.getEntity().getContent();
+            try {
+                final T result = reader.read(body);
+
+                // Read to the end, so that the connection can be reused
+                EntityUtils.consume(response.getEntity());
+                return result;
+            } finally {
+                body.close();
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    private static String headerValue(final HttpResponse response, final String name) {
+
+        final Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private BufferedHttpEntity executeRequest(final CloseableHttpClient httpClient) throws IOException, InterruptedException, FailedHttpResponseException {
+
+        final CloseableHttpResponse response = send(httpClient);
+
+        try {
+            return handleResponse(response);
+        } finally {
+            // The entity is fully read by now, so this returns the connection
+            // to the pool. On failure the connection is discarded instead.
+            response.close();
+        }
+    }
+
+    private CloseableHttpResponse send(final CloseableHttpClient httpClient) throws IOException, InterruptedException {
 
         try {
             if (credentials != null) {
                 request.addHeader(new BasicScheme(Charset.forName("UTF-8")).authenticate(credentials, request, null));
             }
 
-            response = httpClient.execute(request);
+            return httpClient.execute(request);
 
         } catch (final IOException ex) {
             if (request.isAborted()) {
@@ -143,8 +269,6 @@ class RequestExecutor {
         } catch (final AuthenticationException ex) {
             throw new InterruptedException();
         }
-
-        return handleResponse(response);
     }
 
     private BufferedHttpEntity handleResponse(final HttpResponse response) throws IOException, FailedHttpResponseException {
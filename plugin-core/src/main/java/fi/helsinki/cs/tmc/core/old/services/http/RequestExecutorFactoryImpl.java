@@ -7,28 +7,30 @@ import fi.helsinki.cs.tmc.core.old.services.Settings;
 
 /**
  * Implementation of the RequestExecutorFactory interface. Produces actual
- * RequestExecutor-objects
+ * RequestExecutor-objects that share the clients of the given factory
  *
  */
 public class RequestExecutorFactoryImpl implements RequestExecutorFactory {
 
     private final Settings settings;
+    private final HttpClientFactory clientFactory;
 
-    public RequestExecutorFactoryImpl(final Settings settings) {
+    public RequestExecutorFactoryImpl(final Settings settings, final HttpClientFactory clientFactory) {
 
         this.settings = settings;
+        this.clientFactory = clientFactory;
     }
 
     @Override
     public RequestExecutor createExecutor(final String url, final UsernamePasswordCredentials credentials) {
 
-        return new RequestExecutor(url, new HttpClientFactoryImpl(), settings).setCredentials(credentials);
+        return new RequestExecutor(url, clientFactory, settings).setCredentials(credentials);
     }
 
     @Override
     public RequestExecutor createExecutor(final HttpPost request, final UsernamePasswordCredentials credentials) {
 
-        return new RequestExecutor(request, new HttpClientFactoryImpl(), settings).setCredentials(credentials);
+        return new RequestExecutor(request, clientFactory, settings).setCredentials(credentials);
     }
 
 }
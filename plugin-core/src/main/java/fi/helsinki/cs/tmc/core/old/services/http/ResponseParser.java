@@ -0,0 +1,16 @@
+package fi.helsinki.cs.tmc.core.old.services.http;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Parses the body of a response as it is downloaded.
+ */
+interface ResponseParser<T> {
+
+    /**
+     * @param body
+     *            The body, decoded as UTF-8. Closed by the caller.
+     */
+    T parse(Reader body) throws IOException;
+}
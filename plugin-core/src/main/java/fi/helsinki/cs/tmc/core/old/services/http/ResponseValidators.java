@@ -0,0 +1,56 @@
+package fi.helsinki.cs.tmc.core.old.services.http;
+
+/**
+ * The validators of the latest response received from a URL, sent back with
+ * the next request for it so that the server can answer 304 Not Modified
+ * instead of sending the same response again.
+ */
+public class ResponseValidators {
+
+    private volatile String etag;
+    private volatile String lastModified;
+
+    public ResponseValidators() {
+
+    }
+
+    public ResponseValidators(final String etag, final String lastModified) {
+
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Value of the ETag header, or null.
+     */
+    public String getEtag() {
+
+        return etag;
+    }
+
+    public void setEtag(final String etag) {
+
+        this.etag = etag;
+    }
+
+    /**
+     * Value of the Last-Modified header, or null.
+     */
+    public String getLastModified() {
+
+        return lastModified;
+    }
+
+    public void setLastModified(final String lastModified) {
+
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Whether there is anything to validate a response with.
+     */
+    public boolean isEmpty() {
+
+        return etag == null && lastModified == null;
+    }
+}
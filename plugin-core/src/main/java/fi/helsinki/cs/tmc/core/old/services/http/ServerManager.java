@@ -6,6 +6,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 
 import fi.helsinki.cs.tmc.core.old.domain.Course;
 import fi.helsinki.cs.tmc.core.old.domain.Exercise;
@@ -15,8 +16,6 @@ import fi.helsinki.cs.tmc.core.old.domain.SubmissionResult;
 import fi.helsinki.cs.tmc.core.old.domain.ZippedProject;
 import fi.helsinki.cs.tmc.core.old.services.Settings;
 import fi.helsinki.cs.tmc.core.old.spyware.services.LoggableEvent;
-import fi.helsinki.cs.tmc.core.old.spyware.utility.ByteArrayGsonSerializer;
-import fi.helsinki.cs.tmc.core.old.spyware.utility.ExceptionUtils;
 import fi.helsinki.cs.tmc.core.old.ui.ObsoleteClientException;
 import fi.helsinki.cs.tmc.core.old.ui.UserVisibleException;
 import fi.helsinki.cs.tmc.core.old.utils.SubmissionResultParser;
@@ -24,18 +23,19 @@ import fi.helsinki.cs.tmc.core.old.utils.jsonhelpers.CourseList;
 import fi.helsinki.cs.tmc.core.old.utils.jsonhelpers.ExerciseList;
 import fi.helsinki.cs.tmc.core.old.utils.jsonhelpers.ReviewList;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.net.URI;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This class serves as the main layer for any HTTP connections. Any class
@@ -43,15 +43,49 @@ import java.util.zip.GZIPOutputStream;
  */
 public class ServerManager {
 
+    private static final Logger LOG = Logger.getLogger(ServerManager.class.getName());
+
     private final ConnectionBuilder connectionBuilder;
     private final Gson mapper;
     private final Settings settings;
 
+    // Parse straight from the response stream, without the text in between
+    private final ResponseParser<CourseList> courseListParser;
+    private final ResponseParser<ExerciseList> exerciseListParser;
+
     public ServerManager(final Gson mapper, final ConnectionBuilder connectionBuilder, final Settings settings) {
 
         this.connectionBuilder = connectionBuilder;
         this.mapper = mapper;
         this.settings = settings;
+
+        this.courseListParser = new ResponseParser<CourseList>() {
+
+            @Override
+            public CourseList parse(final Reader body) {
+
+                return mapper.fromJson(new JsonReader(body), CourseList.class);
+            }
+        };
+
+        this.exerciseListParser = new ResponseParser<ExerciseList>() {
+
+            @Override
+            public ExerciseList parse(final Reader body) {
+
+                final ExerciseList el = mapper.fromJson(new JsonReader(body), ExerciseList.class);
+                if (el == null) {
+                    return null;
+                }
+
+                // convert date string to Date object. Ugly hack due to some
+                // older code in original tmc-netbeans getting deprecated
+                for (final Exercise e : el.getExercises()) {
+                    e.finalizeDeserialization();
+                }
+                return el;
+            }
+        };
     }
 
     public ServerManager(final Settings settings) {
@@ -60,23 +94,32 @@ public class ServerManager {
     }
 
     /**
-     * Gets list of courses from server.
+     * Closes the pooled connections. Called once when the plugin shuts down.
+     */
+    public void shutdown() {
+
+        connectionBuilder.shutdown();
+    }
+
+    /**
+     * Gets list of courses from server. If the list has not changed since it
+     * was last parsed, the same course objects are returned again.
      *
      * @return List of courses
      */
     public List<Course> getCourses() {
 
         final String url = connectionBuilder.getUrl(UrlExtension.COURSES.getExtension());
-        final String bodyText = getString(url);
-        final CourseList cl = mapper.fromJson(bodyText, CourseList.class);
+        final CourseList cl = getParsed(url, CourseList.class, courseListParser);
         if (cl == null) {
             return new ArrayList<Course>();
         }
-        return Arrays.asList(cl.getCourses());
+        return new ArrayList<Course>(Arrays.asList(cl.getCourses()));
     }
 
     /**
-     * Gets exercises for given courseID.
+     * Gets exercises for given courseID. If the list has not changed since it
+     * was last parsed, the same exercise objects are returned again.
      *
      * @param courseId
      *            Id of the course
@@ -85,17 +128,19 @@ public class ServerManager {
     public List<Exercise> getExercises(final String courseId) {
 
         final String url = connectionBuilder.getUrl(UrlExtension.EXERCISES.getExtension(courseId));
-        final String bodyText = getString(url);
-        final ExerciseList el = mapper.fromJson(bodyText, ExerciseList.class);
-        final List<Exercise> exercises = el.getExercises();
-
-        // convert date string to Date object. Ugly hack due to some older code
-        // in original tmc-netbeans getting deprecated
-        for (final Exercise e : exercises) {
-            e.finalizeDeserialization();
+        final ExerciseList el = getParsed(url, ExerciseList.class, exerciseListParser);
+        if (el == null) {
+            throw new UserVisibleException("An error occurred while trying to refresh exercises. Please try again later.");
         }
+        return new ArrayList<Exercise>(el.getExercises());
+    }
 
-        return exercises;
+    /**
+     * The cache of text responses, or null if they are not cached.
+     */
+    public TextResponseCache getResponseCache() {
+
+        return connectionBuilder.getResponseCache();
     }
 
     /**
@@ -104,18 +149,31 @@ public class ServerManager {
      * @param zipUrl
      *            Url to the zip
      * @return ZippedProject object that contains the project zip
+     * @throws UserVisibleException
+     *             If the download fails, with the reason
      */
     public ZippedProject getExerciseZip(final String zipUrl) {
 
         final ZippedProject zip = new ZippedProject();
+        File file = null;
         try {
-            final byte[] bytes = getBytes(zipUrl);
-            zip.setBytes(bytes);
+            // Streamed to disk so that large exercises are never held in memory
+            file = File.createTempFile("tmc-exercise", ".zip");
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                connectionBuilder.createConnection().getForStream(zipUrl, out);
+            } finally {
+                out.close();
+            }
+            zip.setFile(file);
+            return zip;
         } catch (final Exception e) {
-            // TODO: Better error handling?
-            e.printStackTrace();
+            LOG.log(Level.WARNING, "Failed to download exercise from " + zipUrl, e);
+            if (file != null) {
+                file.delete();
+            }
+            throw new UserVisibleException("Failed to download the exercise: " + e.getMessage(), e);
         }
-        return zip;
     }
 
     /**
@@ -195,6 +253,54 @@ public class ServerManager {
         return (new SubmissionResultParser()).parseFromJson(json);
     }
 
+    /**
+     * Gets submission results from the server with a conditional request, so
+     * that an unchanged result is neither sent nor parsed again.
+     *
+     * @param resultURI
+     *            URI where the result will be retrieved
+     * @param validators
+     *            Validators of the previous result, replaced with those of
+     *            the new result
+     * @return SubmissionResult, or null if it has not changed
+     */
+    public SubmissionResult getSubmissionResult(final URI resultURI, final ResponseValidators validators) {
+
+        final String json = getStringIfModified(resultURI.toString(), validators);
+        if (json == null) {
+            return null;
+        }
+        return (new SubmissionResultParser()).parseFromJson(json);
+    }
+
+    /**
+     * Subscribes to a channel of the comet server of a course. The server is
+     * authenticated to with the credentials of the user.
+     *
+     * @param cometUrl
+     *            URL of the comet server
+     * @param channel
+     *            Channel to subscribe to
+     * @param listener
+     *            Receives the messages published on the channel, on the
+     *            subscription's own thread
+     * @return The started subscription, which the caller must close
+     */
+    public CometSubscription subscribe(final String cometUrl, final String channel, final CometSubscription.Listener listener) {
+
+        final JsonObject authentication = new JsonObject();
+        authentication.addProperty("username", settings.getUsername());
+        authentication.addProperty("password", settings.getPassword());
+        authentication.addProperty("serverBaseUrl", settings.getServerBaseUrl());
+
+        final JsonObject ext = new JsonObject();
+        ext.add("authentication", authentication);
+
+        final CometSubscription subscription = new CometSubscription(connectionBuilder, cometUrl, channel, ext, listener);
+        subscription.start();
+        return subscription;
+    }
+
     /**
      * Sends feedback to the server (offered after successful exercise.
      * submission)
@@ -246,15 +352,8 @@ public class ServerManager {
         extraHeaders.put("X-Tmc-Username", settings.getUsername());
         extraHeaders.put("X-Tmc-Password", settings.getPassword());
 
-        byte[] data;
         try {
-            data = eventListToPostBody(events);
-        } catch (final IOException e) {
-            throw ExceptionUtils.toRuntimeException(e);
-        }
-
-        try {
-            connectionBuilder.createConnection().rawPostForText(fullUrl, data, extraHeaders);
+            connectionBuilder.createConnection().rawPostForText(fullUrl, new EventListEntity(events), extraHeaders);
         } catch (final Exception e) {
             throw new UserVisibleException("An error occured while submitting snapshot: " + e.getMessage());
         }
@@ -307,56 +406,58 @@ public class ServerManager {
         }
     }
 
-    private byte[] eventListToPostBody(final List<LoggableEvent> events) throws IOException {
+    private String getString(final String url) {
 
-        final ByteArrayOutputStream bufferBos = new ByteArrayOutputStream();
-        final GZIPOutputStream gzos = new GZIPOutputStream(bufferBos);
-        final OutputStreamWriter bufferWriter = new OutputStreamWriter(gzos, Charset.forName("UTF-8"));
+        final String text = getParsed(url, String.class, RequestBuilder.TEXT);
+        return text == null ? "" : text;
+    }
 
-        final Gson gson = new GsonBuilder().registerTypeAdapter(byte[].class, new ByteArrayGsonSerializer()).create();
+    /**
+     * Fetches and parses the text from the URL through the response cache.
+     *
+     * @return What the parser returned, or null on errors that are not shown
+     *         to the user
+     */
+    private <T> T getParsed(final String url, final Class<T> type, final ResponseParser<T> parser) {
 
-        final TypeToken<List<LoggableEvent>> typeToken =  new TypeToken<List<LoggableEvent>>() { };
+        try {
 
-        gson.toJson(events, typeToken.getType(), bufferWriter);
-        bufferWriter.close();
-        gzos.close();
+            return connectionBuilder.createConnection().getForParsed(url, type, parser);
 
-        return bufferBos.toByteArray();
-    }
+        } catch (final FailedHttpResponseException fhre) {
 
-    private byte[] getBytes(final String url) {
+            checkForFailedGet(fhre);
 
-        byte[] bytes;
+        } catch (final IllegalStateException ise) {
+
+            throw new UserVisibleException("Could not connect to server - check your TMC server address.");
 
-        try {
-            bytes = connectionBuilder.createConnection().getForBinary(url);
         } catch (final Exception e) {
-            // TODO: Better error handling?
-            bytes = new byte[0];
+
+            e.printStackTrace();
+
         }
 
-        return bytes;
+        return null;
     }
 
-    private String getString(final String url) {
-
-        String json;
+    /**
+     * Like {@link #getString(String)}, but returns null if the text has not
+     * been modified since the response the validators are from.
+     *
+     * @throws UserVisibleException
+     *             if the text could not be fetched
+     */
+    private String getStringIfModified(final String url, final ResponseValidators validators) {
 
         try {
 
-            json = connectionBuilder.createConnection().getForText(url);
+            return connectionBuilder.createConnection().getForTextIfModified(url, validators);
 
         } catch (final FailedHttpResponseException fhre) {
 
-            if (fhre.getStatusCode() == 403) {
-                throw new UserVisibleException("Authentication failed - check your username and password.");
-            } else if (fhre.getStatusCode() == 404) {
-                throw new UserVisibleException("Could not connect to server - check your TMC server address.");
-            } else if (fhre.getStatusCode() == 500) {
-                throw new UserVisibleException("An error occurred while trying to refresh courses. Please try again later.");
-            }
-
-            json = "";
+            checkForFailedGet(fhre);
+            return "";
 
         } catch (final IllegalStateException ise) {
 
@@ -364,12 +465,21 @@ public class ServerManager {
 
         } catch (final Exception e) {
 
-            e.printStackTrace();
-            json = "";
+            LOG.log(Level.WARNING, "Failed to fetch " + url, e);
+            throw new UserVisibleException("Failed to get the submission result: " + e.getMessage(), e);
 
         }
+    }
 
-        return json;
+    private void checkForFailedGet(final FailedHttpResponseException fhre) {
+
+        if (fhre.getStatusCode() == 403) {
+            throw new UserVisibleException("Authentication failed - check your username and password.");
+        } else if (fhre.getStatusCode() == 404) {
+            throw new UserVisibleException("Could not connect to server - check your TMC server address.");
+        } else if (fhre.getStatusCode() == 500) {
+            throw new UserVisibleException("An error occurred while trying to refresh courses. Please try again later.");
+        }
     }
 
     private <T> T checkForObsoleteClient(final FailedHttpResponseException originalException) {
@@ -0,0 +1,453 @@
+package fi.helsinki.cs.tmc.core.old.services.http;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Disk cache of text responses that the server sent with an ETag or a
+ * Last-Modified header. A cached response is revalidated with a conditional
+ * request, and when the server answers 304 Not Modified, the cached body is
+ * used instead of downloading it again.
+ *
+ * Responses are cached per user and URL, one file each: a line of metadata
+ * followed by the body as it was received. Bodies are only kept on disk; in
+ * memory an entry holds its metadata and the object the body was last parsed
+ * into. The least recently used responses are removed once the files take
+ * more than the maximum size.
+ */
+public class TextResponseCache {
+
+    private static final Logger LOG = Logger.getLogger(TextResponseCache.class.getName());
+
+    public static final String DEFAULT_DIRECTORY = "responses.cache";
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final String SUFFIX = ".json";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * A cached response.
+     */
+    public static final class Entry {
+
+        private final String name;
+        private final String url;
+        private final String etag;
+        private final String lastModified;
+
+        private volatile Object parsed;
+
+        private Entry(final String name, final Header header) {
+
+            this.name = name;
+            this.url = header.url;
+            this.etag = header.etag;
+            this.lastModified = header.lastModified;
+        }
+
+        public String getUrl() {
+
+            return url;
+        }
+
+        /**
+         * A copy of the validators of the response, to send with the next
+         * request for it.
+         */
+        public ResponseValidators getValidators() {
+
+            return new ResponseValidators(etag, lastModified);
+        }
+
+        /**
+         * The object the body was parsed into, if it is of the given type and
+         * has been set, otherwise null. The object is shared by every caller
+         * that gets the same entry.
+         */
+        public <T> T getParsed(final Class<T> type) {
+
+            final Object object = parsed;
+            return type.isInstance(object) ? type.cast(object) : null;
+        }
+
+        public void setParsed(final Object parsed) {
+
+            this.parsed = parsed;
+        }
+    }
+
+    /**
+     * The metadata line of a cache file.
+     */
+    private static final class Header {
+
+        private String url;
+        private String etag;
+        private String lastModified;
+    }
+
+    /**
+     * A response being written to the cache. Nothing is cached until it is
+     * committed.
+     */
+    public final class Download {
+
+        private final String name;
+        private final Header header;
+        private final File temp;
+        private final OutputStream out;
+
+        private Download(final String name, final Header header) throws IOException {
+
+            this.name = name;
+            this.header = header;
+
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create directory " + directory);
+            }
+
+            this.temp = File.createTempFile(name, TEMP_SUFFIX, directory);
+            this.out = new BufferedOutputStream(new FileOutputStream(temp));
+            out.write(gson.toJson(header).getBytes(Charsets.UTF_8));
+            out.write('\n');
+        }
+
+        /**
+         * Stream the body is written to.
+         */
+        public OutputStream getStream() {
+
+            return out;
+        }
+
+        /**
+         * Caches the written response in place of the earlier one.
+         *
+         * @return The new entry
+         */
+        public Entry commit() throws IOException {
+
+            out.close();
+            final File file = fileOf(name);
+
+            synchronized (TextResponseCache.this) {
+                remove(name);
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+                final Entry entry = new Entry(name, header);
+                index.put(name, file.length());
+                loaded.put(name, entry);
+                totalBytes += file.length();
+                evict();
+                return entry;
+            }
+        }
+
+        /**
+         * Discards the written response. Does nothing if it was committed.
+         */
+        public void abort() {
+
+            try {
+                out.close();
+            } catch (final IOException ex) {
+                LOG.log(Level.FINE, "Failed to close " + temp, ex);
+            }
+            temp.delete();
+        }
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    private final Gson gson = new Gson();
+
+    // File sizes by name, in access order
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final Map<String, Entry> loaded = new HashMap<String, Entry>();
+    private long totalBytes;
+    private boolean indexed;
+
+    private long hits;
+    private long misses;
+
+    public TextResponseCache(final File directory) {
+
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes
+     *            Size the cache files are kept under
+     */
+    public TextResponseCache(final File directory, final long maxBytes) {
+
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached response for the URL, or null.
+     *
+     * @param user
+     *            User the response was sent to
+     */
+    public synchronized Entry get(final String user, final String url) {
+
+        ensureIndexed();
+
+        final String name = nameOf(user, url);
+        Entry entry = loaded.get(name);
+        if (entry == null && index.containsKey(name)) {
+            final Header header = readHeader(name);
+            if (header != null && url.equals(header.url)) {
+                entry = new Entry(name, header);
+                loaded.put(name, entry);
+            } else {
+                remove(name);
+            }
+        }
+
+        if (entry != null) {
+            // Refreshes the access order
+            index.get(name);
+        }
+        return entry;
+    }
+
+    /**
+     * Opens the cached body of the entry. The caller must close the stream.
+     *
+     * @throws IOException
+     *             If the body cannot be read, for example because the entry
+     *             has been removed
+     */
+    public InputStream open(final Entry entry) throws IOException {
+
+        final InputStream in = new BufferedInputStream(new FileInputStream(fileOf(entry.name)));
+        try {
+            readLine(in);
+        } catch (final IOException ex) {
+            in.close();
+            throw ex;
+        }
+        return in;
+    }
+
+    /**
+     * Starts writing a new response for the URL to the cache.
+     *
+     * @param user
+     *            User the response was sent to
+     * @param validators
+     *            Validators of the response, not empty
+     */
+    public synchronized Download startDownload(final String user, final String url, final ResponseValidators validators)
+            throws IOException {
+
+        // Indexed first, so that the temporary file is not taken for a
+        // leftover
+        ensureIndexed();
+
+        final Header header = new Header();
+        header.url = url;
+        header.etag = validators.getEtag();
+        header.lastModified = validators.getLastModified();
+        return new Download(nameOf(user, url), header);
+    }
+
+    /**
+     * Forgets the cached response for the URL.
+     */
+    public synchronized void remove(final String user, final String url) {
+
+        ensureIndexed();
+        remove(nameOf(user, url));
+    }
+
+    /**
+     * Records that the server confirmed the cached response to be current.
+     */
+    public synchronized void revalidated(final Entry entry) {
+
+        hits++;
+        log(entry.url, "Not modified");
+    }
+
+    /**
+     * Records that the response from the URL had to be downloaded.
+     */
+    public synchronized void downloaded(final String url) {
+
+        misses++;
+        log(url, "Downloaded");
+    }
+
+    public synchronized long getHitCount() {
+
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+
+        return misses;
+    }
+
+    /**
+     * Share of the requests answered from the cache, or 0 if there have been
+     * none.
+     */
+    public synchronized double getHitRate() {
+
+        final long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * Size of the cache files in bytes.
+     */
+    public synchronized long getSize() {
+
+        ensureIndexed();
+        return totalBytes;
+    }
+
+    private void log(final String url, final String outcome) {
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "{0} {1}, cache hit rate {2}%",
+                    new Object[] { outcome, url, Math.round(getHitRate() * 100) });
+        }
+    }
+
+    /**
+     * Lists the files left by earlier sessions, oldest first.
+     */
+    private void ensureIndexed() {
+
+        if (indexed) {
+            return;
+        }
+        indexed = true;
+
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(final File a, final File b) {
+
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        for (final File file : files) {
+            final String fileName = file.getName();
+            if (!fileName.endsWith(SUFFIX)) {
+                // Left over from an interrupted download
+                file.delete();
+                continue;
+            }
+            index.put(fileName.substring(0, fileName.length() - SUFFIX.length()), file.length());
+            totalBytes += file.length();
+        }
+    }
+
+    private void evict() {
+
+        final Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            final Map.Entry<String, Long> evicted = eldest.next();
+            totalBytes -= evicted.getValue();
+            eldest.remove();
+            loaded.remove(evicted.getKey());
+            fileOf(evicted.getKey()).delete();
+        }
+    }
+
+    private void remove(final String name) {
+
+        final Long size = index.remove(name);
+        if (size != null) {
+            totalBytes -= size;
+            fileOf(name).delete();
+        }
+        loaded.remove(name);
+    }
+
+    private Header readHeader(final String name) {
+
+        try {
+            final InputStream in = new BufferedInputStream(new FileInputStream(fileOf(name)));
+            try {
+                return gson.fromJson(readLine(in), Header.class);
+            } finally {
+                in.close();
+            }
+        } catch (final IOException ex) {
+            LOG.log(Level.FINE, "Failed to read cached response " + name, ex);
+        } catch (final JsonParseException ex) {
+            LOG.log(Level.FINE, "Corrupted cached response " + name, ex);
+        }
+        return null;
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Truncated cache file");
+            }
+            line.write(b);
+        }
+        return new String(line.toByteArray(), Charsets.UTF_8);
+    }
+
+    private File fileOf(final String name) {
+
+        return new File(directory, name + SUFFIX);
+    }
+
+    private static String nameOf(final String user, final String url) {
+
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(String.valueOf(user).getBytes(Charsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(url.getBytes(Charsets.UTF_8));
+            return Hex.encodeHexString(digest.digest());
+        } catch (final NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException(ex);
+        }
+    }
+}
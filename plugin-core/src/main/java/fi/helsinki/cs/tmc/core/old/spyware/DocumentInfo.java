@@ -8,6 +8,7 @@ public class DocumentInfo {
     private final String eventText;
     private final int offset;
     private final int length;
+    private final boolean merged;
 
     /**
      * Helper class that carries needed info for logging text change events. If
@@ -17,6 +18,17 @@ public class DocumentInfo {
     public DocumentInfo(final String fullPath, final String relativePath, final String editorText, final String eventText, final int offset,
             final int length) {
 
+        this(fullPath, relativePath, editorText, eventText, offset, length, false);
+    }
+
+    /**
+     * @param merged
+     *            Whether the change merges several consecutive edits
+     */
+    public DocumentInfo(final String fullPath, final String relativePath, final String editorText, final String eventText, final int offset,
+            final int length, final boolean merged) {
+
+        this.merged = merged;
         this.editorText = editorText;
         this.eventText = eventText;
         this.fullPath = fullPath;
@@ -55,4 +67,13 @@ public class DocumentInfo {
         return length;
     }
 
+    /**
+     * Whether the change merges several consecutive edits, typed rather than
+     * pasted.
+     */
+    public boolean isMerged() {
+
+        return merged;
+    }
+
 }
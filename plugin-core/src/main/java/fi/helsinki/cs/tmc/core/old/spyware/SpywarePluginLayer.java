@@ -1,25 +1,40 @@
 package fi.helsinki.cs.tmc.core.old.spyware;
 
 import java.io.Closeable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import fi.helsinki.cs.tmc.core.old.spyware.services.DocumentChangeCoalescer;
 import fi.helsinki.cs.tmc.core.old.spyware.services.DocumentChangeHandler;
 import fi.helsinki.cs.tmc.core.old.spyware.services.EventReceiver;
 import fi.helsinki.cs.tmc.core.old.spyware.services.SnapshotTaker;
-import fi.helsinki.cs.tmc.core.old.spyware.utility.ActiveThreadSet;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.TaskTracker;
 
 public class SpywarePluginLayer implements Closeable {
 
-    private final ActiveThreadSet activeThreads;
+    // How long close() waits for pending snapshots and document changes
+    public static final long CLOSE_TIMEOUT = 10 * 1000;
+
+    private static final Logger LOG = Logger.getLogger(SpywarePluginLayer.class.getName());
+
+    private final TaskTracker tasks;
     private final EventReceiver receiver;
     private final SnapshotTaker taker;
+    private final DocumentChangeCoalescer coalescer;
     private final DocumentChangeHandler documentHandler;
 
-    public SpywarePluginLayer(final ActiveThreadSet activeThreads, final EventReceiver receiver, final SnapshotTaker taker,
-            final DocumentChangeHandler documentHandler) {
+    /**
+     * @param coalescer
+     *            Coalescer that merges consecutive edits before they are
+     *            passed to the document handler
+     */
+    public SpywarePluginLayer(final TaskTracker tasks, final EventReceiver receiver, final SnapshotTaker taker,
+            final DocumentChangeCoalescer coalescer, final DocumentChangeHandler documentHandler) {
 
-        this.activeThreads = activeThreads;
+        this.tasks = tasks;
         this.receiver = receiver;
         this.taker = taker;
+        this.coalescer = coalescer;
         this.documentHandler = documentHandler;
     }
 
@@ -30,18 +45,29 @@ public class SpywarePluginLayer implements Closeable {
 
     public void documentChange(final DocumentInfo info) {
 
-        documentHandler.handleEvent(info);
+        coalescer.handleEvent(info);
     }
 
+    /**
+     * Passes on the edits still being merged, waits up to
+     * {@link #CLOSE_TIMEOUT} for pending snapshots and document changes to be
+     * processed, then stops the worker threads.
+     */
     @Override
     public void close() {
 
-        // TODO run in a separate thread
+        coalescer.close();
+
         try {
-            activeThreads.joinAll();
+            if (!tasks.awaitIdle(CLOSE_TIMEOUT)) {
+                LOG.log(Level.INFO, "Dropping {0} pending spyware tasks on close", tasks.getActiveCount());
+            }
         } catch (final InterruptedException e) {
-            // do nothing
+            Thread.currentThread().interrupt();
         }
+
+        taker.close();
+        documentHandler.close();
     }
 
 }
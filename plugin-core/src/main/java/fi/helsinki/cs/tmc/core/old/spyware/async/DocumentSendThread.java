@@ -1,45 +1,84 @@
 package fi.helsinki.cs.tmc.core.old.spyware.async;
 
-import java.awt.Toolkit;
-import java.awt.datatransfer.DataFlavor;
 import java.nio.charset.Charset;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.swing.text.BadLocationException;
-
 import fi.helsinki.cs.tmc.core.old.domain.Exercise;
 import fi.helsinki.cs.tmc.core.old.domain.Project;
 import fi.helsinki.cs.tmc.core.old.spyware.DocumentInfo;
 import fi.helsinki.cs.tmc.core.old.spyware.services.EventReceiver;
 import fi.helsinki.cs.tmc.core.old.spyware.services.LoggableEvent;
+import fi.helsinki.cs.tmc.core.old.spyware.services.PasteDetector;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.DocumentCache;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.DocumentCache.CachedDocument;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.EditPatchBuilder;
 import fi.helsinki.cs.tmc.core.old.spyware.utility.JsonMaker;
 import fi.helsinki.cs.tmc.core.old.spyware.utility.diff_match_patch;
 import fi.helsinki.cs.tmc.core.old.spyware.utility.diff_match_patch.Patch;
 
-public class DocumentSendThread extends Thread {
+/**
+ * Creates the patch of a document change and sends it as an event. Run by the
+ * worker pool of DocumentChangeHandler.
+ *
+ * Changes are numbered per document. If the cached text is the result of the
+ * change just before this one, the patch is built from the offset and length
+ * of the change alone. Otherwise, for example when changes were coalesced,
+ * the cached and current texts are diffed.
+ */
+public class DocumentSendThread implements Runnable {
 
     private static final Logger LOG = Logger.getLogger(DocumentSendThread.class.getName());
     private final EventReceiver receiver;
     private final DocumentInfo info;
     private final Project project;
     private final diff_match_patch patchGenerator;
-    private final Map<String, String> documentCache;
-
+    private final EditPatchBuilder editPatchBuilder;
+    private final DocumentCache documentCache;
+    private final PasteDetector pasteDetector;
+    private final long changeNumber;
+    private final long previousChangeNumber;
+
+    /**
+     * @param changeNumber
+     *            Number of this change
+     * @param previousChangeNumber
+     *            Number of the previous change of the same document, or 0
+     */
     public DocumentSendThread(final EventReceiver receiver,
                               final DocumentInfo info,
                               final Project project,
-                              final Map<String, String> cache,
-                              final diff_match_patch patchGenerator) {
+                              final DocumentCache cache,
+                              final diff_match_patch patchGenerator,
+                              final PasteDetector pasteDetector,
+                              final long changeNumber,
+                              final long previousChangeNumber) {
 
-        super("Document change thread");
         this.receiver = receiver;
         this.info = info;
         this.project = project;
         this.documentCache = cache;
         this.patchGenerator = patchGenerator;
+        this.editPatchBuilder = new EditPatchBuilder(patchGenerator);
+        this.pasteDetector = pasteDetector;
+        this.changeNumber = changeNumber;
+        this.previousChangeNumber = previousChangeNumber;
+    }
+
+    /**
+     * Returns the type of the event this sends, or null if it is decided only
+     * when sending, as a paste is. Changes of the same type may be coalesced.
+     */
+    public String getEventKind() {
+
+        if (info.getEventText().length() == 0) {
+            return "text_remove";
+        }
+        if (!info.isMerged() && PasteDetector.mayBePaste(info.getEventText())) {
+            return null;
+        }
+        return "text_insert";
     }
 
     @Override
@@ -50,20 +89,12 @@ public class DocumentSendThread extends Thread {
 
     private void createAndSendPatch() {
 
-        List<Patch> patches;
-        final boolean patchContainsFullDocument = !documentCache.containsKey(info.getFullPath());
+        final CachedDocument previous = swapCachedDocument(info.getFullPath(), info.getEditorText());
 
-        try {
-            // generatePatches will cache the current version for future
-            // patches; if the document was not in the cache previously, the
-            // patch will
-            // contain the full document content
-            patches = generatePatches(info.getFullPath(), info.getEditorText());
-
-        } catch (final BadLocationException exp) {
-            LOG.log(Level.WARNING, "Unable to generate patches from {0}.", info.getRelativePath());
-            return;
-        }
+        // if the document was not in the cache previously, the patch will
+        // contain the full document content
+        final boolean patchContainsFullDocument = previous == null;
+        final List<Patch> patches = generatePatches(previous, info.getEditorText());
 
         // whitespace is still considered to be text; only truly empty text
         // is
@@ -75,7 +106,7 @@ public class DocumentSendThread extends Thread {
             return;
         }
 
-        if (isPasteEvent(info.getEventText())) {
+        if (!info.isMerged() && pasteDetector.isPaste(info.getEventText())) {
             sendEvent(project.getExercise(), "text_paste", text);
         } else {
             sendEvent(project.getExercise(), "text_insert", text);
@@ -89,39 +120,33 @@ public class DocumentSendThread extends Thread {
                 .add("full_document", patchContainsFullDocument).toString();
     }
 
-    private boolean isPasteEvent(final String text) {
-
-        if (text.trim().length() <= 2) {
-            // if a short text or whitespace is inserted,
-            // we skip checking for paste
-            return false;
-        }
-
-        try {
-            final String clipboardData = (String) Toolkit.getDefaultToolkit().getSystemClipboard().getData(DataFlavor.stringFlavor);
-
-            // at least eclipse adds indentation whitespace to the beginning
-            // of the text even if it's pasted, hence the trim
-            return text.trim().equals(clipboardData.trim());
-        } catch (final Exception exp) {
-        }
+    /**
+     * Caches the current version of the document for future patches and
+     * returns the previously cached version.
+     */
+    private CachedDocument swapCachedDocument(final String key, final String text) {
 
-        return false;
+        return documentCache.swap(key, new CachedDocument(text, changeNumber));
     }
 
     // currently, if a document is not existing, the patch will
     // contain the full file
-    private List<Patch> generatePatches(final String key, final String text) throws BadLocationException {
+    private List<Patch> generatePatches(final CachedDocument previous, final String text) {
 
-        String previous = "";
-        synchronized (documentCache) {
-            if (documentCache.containsKey(key)) {
-                previous = documentCache.get(key);
-            }
+        if (previous == null) {
+            return patchGenerator.patch_make("", text);
+        }
 
-            documentCache.put(key, text);
+        if (previous.getChangeNumber() == previousChangeNumber) {
+            final List<Patch> patches = editPatchBuilder.build(previous.getText(), text, info.getOffset(), info.getLength(),
+                    info.getEventText());
+            if (patches != null) {
+                return patches;
+            }
+            LOG.log(Level.FINE, "Change does not match the cached text of {0}, diffing", info.getRelativePath());
         }
-        return patchGenerator.patch_make(previous, text);
+
+        return patchGenerator.patch_make(previous.getText(), text);
     }
 
     private void sendEvent(final Exercise ex, final String eventType, final String text) {
@@ -1,35 +1,44 @@
 package fi.helsinki.cs.tmc.core.old.spyware.async;
 
-import com.google.common.collect.Iterables;
-
-import fi.helsinki.cs.tmc.core.old.spyware.services.EventStore;
+import fi.helsinki.cs.tmc.core.old.spyware.services.EventJournal;
 import fi.helsinki.cs.tmc.core.old.spyware.services.LoggableEvent;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.RingBuffer;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Appends the events added to the send queue since the previous run to the
+ * event journal and forces them to disk with a single sync.
+ */
 public class SavingTask implements Runnable {
 
-    private final ArrayDeque<LoggableEvent> sendQueue;
-    private final EventStore eventStore;
+    private final RingBuffer<LoggableEvent> sendQueue;
+    private final EventJournal journal;
 
-    public SavingTask(final ArrayDeque<LoggableEvent> sendQueue, final EventStore eventStore) {
+    public SavingTask(final RingBuffer<LoggableEvent> sendQueue, final EventJournal journal) {
 
         this.sendQueue = sendQueue;
-        this.eventStore = eventStore;
+        this.journal = journal;
     }
 
     @Override
     public void run() {
 
         try {
-            LoggableEvent[] eventsToSave;
-            synchronized (sendQueue) {
-                eventsToSave = Iterables.toArray(sendQueue, LoggableEvent.class);
-            }
-            eventStore.save(eventsToSave);
+            RingBuffer.Batch<LoggableEvent> batch;
+            do {
+                // Events below the journal's next sequence are already on
+                // disk; events dropped from the queue are never saved
+                batch = sendQueue.peek(journal.getNextSequence(), sendQueue.getCapacity());
+                for (int i = 0; i < batch.size(); i++) {
+                    journal.append(batch.getSequence(i), batch.getElements().get(i));
+                }
+            } while (!batch.isEmpty() && batch.getEndSequence() < sendQueue.getTailSequence());
+
+            journal.flush();
+            journal.compact();
         } catch (final IOException ex) {
             Logger.getLogger(SavingTask.class.getName()).log(Level.WARNING, "Failed to save events", ex);
         }
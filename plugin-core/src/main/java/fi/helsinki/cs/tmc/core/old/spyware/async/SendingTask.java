@@ -1,11 +1,17 @@
 package fi.helsinki.cs.tmc.core.old.spyware.async;
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.io.IOException;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,37 +19,109 @@ import fi.helsinki.cs.tmc.core.old.async.tasks.SingletonTask;
 import fi.helsinki.cs.tmc.core.old.domain.Course;
 import fi.helsinki.cs.tmc.core.old.services.CourseDAO;
 import fi.helsinki.cs.tmc.core.old.services.Settings;
+import fi.helsinki.cs.tmc.core.old.services.http.HttpClientFactoryImpl;
 import fi.helsinki.cs.tmc.core.old.services.http.ServerManager;
+import fi.helsinki.cs.tmc.core.old.spyware.services.EndpointBalancer;
+import fi.helsinki.cs.tmc.core.old.spyware.services.EventJournal;
 import fi.helsinki.cs.tmc.core.old.spyware.services.LoggableEvent;
-
+import fi.helsinki.cs.tmc.core.old.spyware.utility.AcknowledgementWindow;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.RingBuffer;
+
+/**
+ * Sends the queued events to the spyware servers in batches.
+ *
+ * Several batches are in flight at a time, each covering a range of sequence
+ * numbers. Batches may be acknowledged by the servers in any order, but the
+ * queue and the journal are only advanced up to the end of the batches that
+ * have all been acknowledged, so an event is never dropped before it has been
+ * sent.
+ *
+ * The server of each batch is chosen by an {@link EndpointBalancer}. If a send
+ * fails, the batch is tried on the other servers that are not backing off.
+ * Once no server is left for a batch, no new batches are started and the task
+ * gives up until its next run after the batches in flight have completed.
+ *
+ * The batch size adapts to the servers: it grows while batches are sent
+ * within the target latency, and is halved when a send is slow or fails.
+ */
 public class SendingTask implements Runnable {
 
     private static final Logger LOG = Logger.getLogger(SendingTask.class.getName());
-    private static final int MAX_EVENTS_PER_SEND = 500;
 
-    private final ArrayDeque<LoggableEvent> sendQueue;
+    public static final int MIN_EVENTS_PER_SEND = 50;
+    public static final int INITIAL_EVENTS_PER_SEND = 500;
+    public static final int MAX_EVENTS_PER_SEND = 5000;
+
+    /**
+     * Matches the per-host connection limit of the HTTP client.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = HttpClientFactoryImpl.DEFAULT_MAX_PER_ROUTE;
+
+    // Batches sent faster than this grow the batch size
+    public static final long TARGET_SEND_LATENCY = 2 * 1000;
+    private static final int EVENTS_PER_SEND_INCREMENT = 100;
+
+    // Idle sender threads are stopped after this
+    private static final long KEEP_ALIVE = 30 * 1000;
+
+    private final RingBuffer<LoggableEvent> sendQueue;
+    private final EventJournal journal;
     private final ServerManager serverManager;
     private final CourseDAO courseDAO;
     private final Settings settings;
-    private final Random random;
-    private final AtomicInteger eventsToRemoveAfterSend;
+    private final EndpointBalancer balancer;
+    private final int maxInFlight;
+    private final ThreadPoolExecutor senders;
+
+    // Only accessed by the task, which never runs concurrently with itself
+    private int eventsPerSend = INITIAL_EVENTS_PER_SEND;
 
     private final SingletonTask savingTask;
 
-    public SendingTask(final ArrayDeque<LoggableEvent> sendQueue,
+    public SendingTask(final RingBuffer<LoggableEvent> sendQueue,
+                       final EventJournal journal,
+                       final ServerManager serverManager,
+                       final CourseDAO courseDAO,
+                       final Settings settings,
+                       final SingletonTask savingTask) {
+
+        this(sendQueue, journal, serverManager, courseDAO, settings, savingTask, new EndpointBalancer(), DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param maxInFlight
+     *            Maximum number of batches being sent at the same time
+     */
+    public SendingTask(final RingBuffer<LoggableEvent> sendQueue,
+                       final EventJournal journal,
                        final ServerManager serverManager,
                        final CourseDAO courseDAO,
                        final Settings settings,
                        final SingletonTask savingTask,
-                       final AtomicInteger eventsToRemoveAfterSend) {
+                       final EndpointBalancer balancer,
+                       final int maxInFlight) {
 
         this.sendQueue = sendQueue;
+        this.journal = journal;
         this.serverManager = serverManager;
         this.courseDAO = courseDAO;
         this.settings = settings;
         this.savingTask = savingTask;
-        this.random = new Random();
-        this.eventsToRemoveAfterSend = eventsToRemoveAfterSend;
+        this.balancer = balancer;
+        this.maxInFlight = Math.max(1, maxInFlight);
+
+        this.senders = new ThreadPoolExecutor(this.maxInFlight, this.maxInFlight, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+
+                        final Thread thread = new Thread(runnable, "TMC spyware sender");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.senders.allowCoreThreadTimeOut(true);
     }
 
     @Override
@@ -53,46 +131,99 @@ public class SendingTask implements Runnable {
             return;
         }
 
-        boolean shouldSendMore;
-
-        do {
-            final List<LoggableEvent> eventsToSend = copyEventsToSendFromQueue();
-            if (eventsToSend.isEmpty()) {
-                return;
-            }
-
-            synchronized (sendQueue) {
-                shouldSendMore = sendQueue.size() > eventsToSend.size();
-            }
+        final List<String> urls = getDestinationUrls();
+        if (urls == null) {
+            return;
+        }
 
-            final String url = pickDestinationUrl();
-            if (url == null) {
-                return;
-            }
+        final CompletionService<Send> completion = new ExecutorCompletionService<Send>(senders);
+        final AcknowledgementWindow window = new AcknowledgementWindow(sendQueue.getHeadSequence());
+        int inFlight = 0;
+        boolean exhausted = false;
+        boolean failed = false;
 
-            LOG.log(Level.INFO, "Sending {0} events to {1}", new Object[] { eventsToSend.size(), url });
+        try {
+            do {
+                while (!exhausted && !failed && inFlight < maxInFlight) {
+                    final RingBuffer.Batch<LoggableEvent> batch = sendQueue.peek(window.getIssuedTo(), eventsPerSend);
+                    if (batch.isEmpty()) {
+                        exhausted = true;
+                        break;
+                    }
+
+                    final Send send = new Send(batch, window.issue(batch.getEndSequence()));
+                    if (!submit(completion, send, urls)) {
+                        failed = true;
+                        break;
+                    }
+                    inFlight++;
+                }
+
+                if (inFlight == 0) {
+                    break;
+                }
+
+                final Send send = completion.take().get();
+                inFlight--;
+                record(send);
+
+                if (send.succeeded) {
+                    acknowledge(window.complete(send.rangeStart));
+                } else if (failed || !submit(completion, send, urls)) {
+                    failed = true;
+                } else {
+                    inFlight++;
+                }
+            } while (inFlight > 0 || !exhausted && !failed);
+
+        } catch (final InterruptedException ex) {
+            // Batches still in flight are sent again on the next run
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException ex) {
+            LOG.log(Level.WARNING, "Sending events failed", ex.getCause());
+        }
 
-            doSend(eventsToSend, url);
-        } while (shouldSendMore);
+        if (failed) {
+            LOG.log(Level.INFO, "No spyware server available, retrying later");
+        }
     }
 
-    private List<LoggableEvent> copyEventsToSendFromQueue() {
+    private void record(final Send send) {
+
+        if (send.succeeded) {
+            balancer.success(send.url, send.latency);
+            adaptEventsPerSend(send.batch.size(), send.latency);
+            LOG.log(Level.INFO, "Sent {0} events successfully to {1} in {2} ms", new Object[] { send.batch.size(), send.url,
+                    send.latency });
+        } else {
+            final long backoff = balancer.failure(send.url);
+            eventsPerSend = Math.max(MIN_EVENTS_PER_SEND, eventsPerSend / 2);
+            LOG.log(Level.INFO, "Failed to send {0} events to {1}, backing off for {2} ms: " + send.failure.getMessage(),
+                    new Object[] { send.batch.size(), send.url, backoff });
+        }
+    }
 
-        synchronized (sendQueue) {
-            final List<LoggableEvent> eventsToSend = new ArrayList<LoggableEvent>(sendQueue.size());
+    /**
+     * Starts sending the batch to a server it has not been tried on.
+     *
+     * @return false if no server is left for the batch
+     */
+    private boolean submit(final CompletionService<Send> completion, final Send send, final List<String> urls) {
 
-            final Iterator<LoggableEvent> i = sendQueue.iterator();
-            while (i.hasNext() && eventsToSend.size() < MAX_EVENTS_PER_SEND) {
-                eventsToSend.add(i.next());
-            }
+        final String url = balancer.pick(urls, send.tried);
+        if (url == null) {
+            return false;
+        }
 
-            eventsToRemoveAfterSend.set(eventsToSend.size());
+        send.tried.add(url);
+        send.url = url;
 
-            return eventsToSend;
-        }
+        LOG.log(Level.INFO, "Sending {0} events to {1}", new Object[] { send.batch.size(), url });
+        completion.submit(send);
+        return true;
     }
 
-    private String pickDestinationUrl() {
+    private List<String> getDestinationUrls() {
 
         final Course course = courseDAO.getCurrentCourse(settings);
         if (course == null) {
@@ -106,42 +237,93 @@ public class SendingTask implements Runnable {
             return null;
         }
 
-        final String url = urls.get(random.nextInt(urls.size()));
-
-        return url;
+        return urls;
 
         // url for localhost debugging, assuming spyware server
         // runs at port 3101
-        // return "http://127.0.0.1:3101";
+        // return Arrays.asList("http://127.0.0.1:3101");
     }
 
-    private void doSend(final List<LoggableEvent> eventsToSend, final String url) {
+    /**
+     * Consumes every event below the watermark. Events that were overwritten
+     * while sending are skipped as well.
+     */
+    private void acknowledge(final long watermark) {
 
-        try {
-            serverManager.sendEventLogs(url, eventsToSend);
-            LOG.log(Level.INFO, "Sent {0} events successfully to {1}", new Object[] { eventsToSend.size(), url });
-
-        } catch (final Exception ex) {
-            LOG.log(Level.INFO, "Failed to send {0} events to {1}: " + ex.getMessage(), new Object[] { eventsToSend.size(), url });
+        if (watermark <= sendQueue.getHeadSequence()) {
             return;
         }
-        removeSentEventsFromQueue();
 
-        // If saving fails now (or is already running and fails
-        // later) then we may end up sending duplicate events
-        // later. This will hopefully be very rare.
+        sendQueue.advanceTo(watermark);
+
+        // If the checkpoint cannot be written then the journal replays
+        // these events after a restart and they are sent again. This will
+        // hopefully be very rare.
+        try {
+            journal.acknowledge(watermark);
+        } catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to checkpoint sent events", ex);
+        }
+
+        // Lets the saving task compact away the acknowledged segments
         savingTask.start();
     }
 
-    private void removeSentEventsFromQueue() {
+    /**
+     * Grows the batch size additively while full batches are sent quickly,
+     * and halves it when a send is slow.
+     */
+    private void adaptEventsPerSend(final int sent, final long latency) {
+
+        if (latency > TARGET_SEND_LATENCY) {
+            eventsPerSend = Math.max(MIN_EVENTS_PER_SEND, eventsPerSend / 2);
+        } else if (sent >= eventsPerSend) {
+            eventsPerSend = Math.min(MAX_EVENTS_PER_SEND, eventsPerSend + EVENTS_PER_SEND_INCREMENT);
+        }
+    }
+
+    /**
+     * Current maximum number of events per batch.
+     */
+    public int getEventsPerSend() {
+
+        return eventsPerSend;
+    }
+
+    /**
+     * One batch and its latest attempt. Sent by a sender thread; the outcome
+     * is handled by the task thread.
+     */
+    private final class Send implements Callable<Send> {
+
+        private final RingBuffer.Batch<LoggableEvent> batch;
+        private final long rangeStart;
+        private final Set<String> tried = new HashSet<String>();
+
+        private String url;
+        private boolean succeeded;
+        private long latency;
+        private Exception failure;
+
+        private Send(final RingBuffer.Batch<LoggableEvent> batch, final long rangeStart) {
+
+            this.batch = batch;
+            this.rangeStart = rangeStart;
+        }
 
-        synchronized (sendQueue) {
-            assert eventsToRemoveAfterSend.intValue() <= sendQueue.size();
+        @Override
+        public Send call() {
 
-            while (eventsToRemoveAfterSend.intValue() > 0) {
-                sendQueue.pop();
-                eventsToRemoveAfterSend.decrementAndGet();
+            final long startTime = System.nanoTime();
+            try {
+                serverManager.sendEventLogs(url, batch.getElements());
+                succeeded = true;
+            } catch (final Exception ex) {
+                failure = ex;
+                succeeded = false;
             }
+            latency = (System.nanoTime() - startTime) / 1000000;
+            return this;
         }
     }
 }
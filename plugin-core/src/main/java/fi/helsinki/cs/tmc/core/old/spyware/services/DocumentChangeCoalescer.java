@@ -0,0 +1,262 @@
+package fi.helsinki.cs.tmc.core.old.spyware.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.helsinki.cs.tmc.core.old.spyware.DocumentInfo;
+
+/**
+ * Merges consecutive edits of a file into a single change before they are
+ * handed to DocumentChangeHandler, so that typing a word produces one event
+ * instead of one event per character.
+ *
+ * A run of edits is passed on once the file has been idle for the window, or
+ * once the run has lasted for the maximum delay. Only edits that touch each
+ * other and are of the same kind, inserts or removals, are merged; any other
+ * edit passes the pending run on and starts a new one. Edits that may be
+ * pastes are never merged, so that paste detection sees them exactly as
+ * before.
+ */
+public class DocumentChangeCoalescer {
+
+    public static final long DEFAULT_WINDOW = 500;
+    public static final long DEFAULT_MAX_DELAY = 5 * 1000;
+
+    private final DocumentChangeHandler handler;
+    private final long window;
+    private final long maxDelay;
+    private final ScheduledExecutorService timer;
+
+    // Pending run of each file; guarded by itself. Runs are passed on while
+    // holding the lock, so that the changes of a file keep their order.
+    private final Map<String, Run> runs = new HashMap<String, Run>();
+
+    private final AtomicLong merged = new AtomicLong();
+
+    public DocumentChangeCoalescer(final DocumentChangeHandler handler) {
+
+        this(handler, DEFAULT_WINDOW, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @param window
+     *            Idle time in milliseconds after which a run is passed on, or
+     *            0 to pass every edit on immediately
+     * @param maxDelay
+     *            Time in milliseconds after which a run is passed on even if
+     *            the file is still being edited
+     */
+    public DocumentChangeCoalescer(final DocumentChangeHandler handler, final long window, final long maxDelay) {
+
+        this.handler = handler;
+        this.window = window;
+        this.maxDelay = Math.max(window, maxDelay);
+
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+
+                final Thread thread = new Thread(runnable, "TMC document change coalescer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.timer = executor;
+    }
+
+    public void handleEvent(final DocumentInfo info) {
+
+        if (window <= 0) {
+            handler.handleEvent(info);
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+
+        synchronized (runs) {
+            final Run run = runs.get(info.getFullPath());
+
+            if (run != null && !PasteDetector.mayBePaste(info.getEventText()) && run.merge(info, now)) {
+                merged.incrementAndGet();
+                return;
+            }
+
+            if (run != null) {
+                flush(run);
+            }
+
+            if (PasteDetector.mayBePaste(info.getEventText())) {
+                handler.handleEvent(info);
+                return;
+            }
+
+            final Run started = new Run(info, now);
+            runs.put(info.getFullPath(), started);
+            schedule(started, window);
+        }
+    }
+
+    /**
+     * Passes every pending run on immediately.
+     */
+    public void flushAll() {
+
+        synchronized (runs) {
+            for (final Run run : new ArrayList<Run>(runs.values())) {
+                flush(run);
+            }
+        }
+    }
+
+    /**
+     * Returns how many edits have been merged into an earlier edit.
+     */
+    public long getMergedCount() {
+
+        return merged.get();
+    }
+
+    /**
+     * Passes the pending runs on and stops the timer thread.
+     */
+    public void close() {
+
+        flushAll();
+        timer.shutdownNow();
+    }
+
+    // Called while holding runs
+    private void flush(final Run run) {
+
+        if (runs.get(run.fullPath) == run) {
+            runs.remove(run.fullPath);
+            handler.handleEvent(run.toInfo());
+        }
+    }
+
+    private void schedule(final Run run, final long delay) {
+
+        try {
+            timer.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    expire(run);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException ex) {
+            // Closed; pass the edit on right away instead
+            flush(run);
+        }
+    }
+
+    private void expire(final Run run) {
+
+        synchronized (runs) {
+            if (runs.get(run.fullPath) != run) {
+                return;
+            }
+
+            final long now = System.currentTimeMillis();
+            final long idleLeft = run.lastEdit + window - now;
+            final long delayLeft = run.firstEdit + maxDelay - now;
+
+            if (idleLeft <= 0 || delayLeft <= 0) {
+                flush(run);
+            } else {
+                schedule(run, Math.min(idleLeft, delayLeft));
+            }
+        }
+    }
+
+    /**
+     * Edits merged into one replacement: the text from offset to offset +
+     * length before the first edit has been replaced with eventText.
+     */
+    private static final class Run {
+
+        private final String fullPath;
+        private final String relativePath;
+        private final boolean removal;
+        private final long firstEdit;
+
+        private String editorText;
+        private String eventText;
+        private int offset;
+        private int length;
+        private long lastEdit;
+
+        private Run(final DocumentInfo info, final long now) {
+
+            this.fullPath = info.getFullPath();
+            this.relativePath = info.getRelativePath();
+            this.removal = isRemoval(info);
+            this.firstEdit = now;
+            this.editorText = info.getEditorText();
+            this.eventText = text(info);
+            this.offset = info.getOffset();
+            this.length = info.getLength();
+            this.lastEdit = now;
+        }
+
+        /**
+         * Merges the edit into this run, or returns false if it does not
+         * touch the run or is of another kind.
+         */
+        private boolean merge(final DocumentInfo info, final long now) {
+
+            final String inserted = text(info);
+            final int editStart = info.getOffset();
+            final int editEnd = editStart + info.getLength();
+            final int runEnd = offset + eventText.length();
+
+            if (isRemoval(info) != removal || editStart > runEnd || editEnd < offset) {
+                return false;
+            }
+
+            // The merged region, in the text before this edit, before the
+            // run and after this edit
+            final int start = Math.min(offset, editStart);
+            final int end = Math.max(runEnd, editEnd);
+            final int endBefore = end - eventText.length() + length;
+            final int endAfter = end - info.getLength() + inserted.length();
+
+            final String text = info.getEditorText();
+            if (endAfter > text.length()) {
+                return false;
+            }
+
+            editorText = text;
+            eventText = text.substring(start, endAfter);
+            offset = start;
+            length = endBefore - start;
+            lastEdit = now;
+            return true;
+        }
+
+        private DocumentInfo toInfo() {
+
+            return new DocumentInfo(fullPath, relativePath, editorText, eventText, offset, length, true);
+        }
+
+        private static boolean isRemoval(final DocumentInfo info) {
+
+            return text(info).length() == 0;
+        }
+
+        private static String text(final DocumentInfo info) {
+
+            return info.getEventText() == null ? "" : info.getEventText();
+        }
+    }
+}
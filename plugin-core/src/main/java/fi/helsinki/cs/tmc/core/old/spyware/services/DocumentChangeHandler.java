@@ -1,34 +1,61 @@
 package fi.helsinki.cs.tmc.core.old.spyware.services;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import fi.helsinki.cs.tmc.core.old.domain.Project;
 import fi.helsinki.cs.tmc.core.old.services.ProjectDAO;
 import fi.helsinki.cs.tmc.core.old.services.Settings;
 import fi.helsinki.cs.tmc.core.old.spyware.DocumentInfo;
 import fi.helsinki.cs.tmc.core.old.spyware.async.DocumentSendThread;
-import fi.helsinki.cs.tmc.core.old.spyware.utility.ActiveThreadSet;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.CoalescingExecutor;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.DocumentCache;
 import fi.helsinki.cs.tmc.core.old.spyware.utility.diff_match_patch;
 
 /**
  * This class handles text inserts, removals and cut\pastes. It uses information
  * it receives from the plugin.
+ *
+ * Changes are processed on a worker pool, one at a time per file. If a file
+ * changes again in the same way, such as by typing, before its previous change
+ * has been processed, only the latest change is processed; its patch still
+ * covers every change since the last processed one. Removals, inserts and
+ * possible pastes are not coalesced with each other.
+ *
+ * The latest text of each document is kept in a bounded cache. A document
+ * that has been evicted from it is sent in full on its next change.
  */
 public class DocumentChangeHandler {
 
+    private static final Logger LOG = Logger.getLogger(DocumentChangeHandler.class.getName());
     private static final diff_match_patch PATCH_GENERATOR = new diff_match_patch();
     private final EventReceiver receiver;
-    private final Map<String, String> documentCache;
-    private final ActiveThreadSet activeThreads;
+    private final DocumentCache documentCache;
+    private final PasteDetector pasteDetector;
+
+    // Number of the latest submitted change of each document
+    private final ConcurrentMap<String, Long> latestChanges = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong changeCounter = new AtomicLong();
+
+    private final CoalescingExecutor executor;
     private final Settings settings;
     private final ProjectDAO projectDAO;
 
-    public DocumentChangeHandler(final EventReceiver receiver, final ActiveThreadSet set, final Settings settings, final ProjectDAO projectDAO) {
+    public DocumentChangeHandler(final EventReceiver receiver, final CoalescingExecutor executor, final Settings settings, final ProjectDAO projectDAO) {
+
+        this(receiver, executor, new DocumentCache(), new PasteDetector(), settings, projectDAO);
+    }
+
+    public DocumentChangeHandler(final EventReceiver receiver, final CoalescingExecutor executor, final DocumentCache documentCache,
+            final PasteDetector pasteDetector, final Settings settings, final ProjectDAO projectDAO) {
 
         this.receiver = receiver;
-        activeThreads = set;
-        documentCache = new HashMap<String, String>();
+        this.executor = executor;
+        this.documentCache = documentCache;
+        this.pasteDetector = pasteDetector;
         this.settings = settings;
         this.projectDAO = projectDAO;
     }
@@ -45,9 +72,31 @@ public class DocumentChangeHandler {
             return;
         }
 
-        final DocumentSendThread thread = new DocumentSendThread(receiver, info, project, documentCache, PATCH_GENERATOR);
-        activeThreads.addThread(thread);
-        thread.setDaemon(true);
-        thread.start();
+        final long changeNumber = changeCounter.incrementAndGet();
+        final Long previousChange = latestChanges.put(info.getFullPath(), changeNumber);
+
+        final DocumentSendThread task = new DocumentSendThread(receiver, info, project, documentCache, PATCH_GENERATOR, pasteDetector,
+                changeNumber, previousChange == null ? 0 : previousChange);
+        executor.submit(info.getFullPath(), task.getEventKind(), task);
+    }
+
+    /**
+     * Stops the worker threads. Changes that have not been processed are
+     * dropped.
+     */
+    public void close() {
+
+        executor.shutdown();
+
+        LOG.log(Level.FINE, "Document cache: {0} hits, {1} misses, {2} evictions",
+                new Object[] { documentCache.getHitCount(), documentCache.getMissCount(), documentCache.getEvictionCount() });
+    }
+
+    /**
+     * Returns the cache of document texts, for its statistics.
+     */
+    public DocumentCache getDocumentCache() {
+
+        return documentCache;
     }
 }
@@ -0,0 +1,149 @@
+package fi.helsinki.cs.tmc.core.old.spyware.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Chooses the spyware server to send events to. The latency and error rate of
+ * each server are tracked, and a server that fails is not used again until an
+ * exponentially growing, randomized backoff has passed. The randomization
+ * keeps clients that failed at the same moment from retrying at the same
+ * moment.
+ *
+ * Of the servers not backing off, two are picked at random and the healthier
+ * one is used. This prefers healthy servers while still spreading the clients
+ * over all of them, instead of every client piling on the single best one.
+ */
+public class EndpointBalancer {
+
+    public static final long INITIAL_BACKOFF = 5 * 1000;
+    public static final long MAX_BACKOFF = 10 * 60 * 1000;
+
+    // Weight of the latest observation in the moving averages
+    private static final double SMOOTHING = 0.3;
+
+    // How much a failure rate of 100% weighs against latency
+    private static final double ERROR_PENALTY = 10;
+
+    private final Random random;
+
+    // Guarded by this
+    private final Map<String, Endpoint> endpoints = new HashMap<String, Endpoint>();
+
+    public EndpointBalancer() {
+
+        this(new Random());
+    }
+
+    public EndpointBalancer(final Random random) {
+
+        this.random = random;
+    }
+
+    /**
+     * Returns the server to use next out of the given ones, or null if every
+     * one of them is excluded or backing off.
+     */
+    public synchronized String pick(final List<String> urls, final Collection<String> excluded) {
+
+        final long now = System.currentTimeMillis();
+        final List<String> available = new ArrayList<String>(urls.size());
+        for (final String url : urls) {
+            if (!excluded.contains(url) && endpoint(url).retryAt <= now) {
+                available.add(url);
+            }
+        }
+
+        if (available.isEmpty()) {
+            return null;
+        }
+
+        final String first = available.get(random.nextInt(available.size()));
+        final String second = available.get(random.nextInt(available.size()));
+        return endpoint(first).score() <= endpoint(second).score() ? first : second;
+    }
+
+    public synchronized void success(final String url, final long latency) {
+
+        final Endpoint endpoint = endpoint(url);
+        endpoint.latency = endpoint.sent ? average(endpoint.latency, latency) : latency;
+        endpoint.errorRate = average(endpoint.errorRate, 0);
+        endpoint.sent = true;
+        endpoint.failures = 0;
+        endpoint.retryAt = 0;
+    }
+
+    /**
+     * Records a failed send and puts the server into backoff.
+     *
+     * @return Time in milliseconds until the server is used again
+     */
+    public synchronized long failure(final String url) {
+
+        final Endpoint endpoint = endpoint(url);
+        endpoint.errorRate = average(endpoint.errorRate, 1);
+        endpoint.failures++;
+
+        final long backoff = INITIAL_BACKOFF << Math.min(endpoint.failures - 1, 30);
+        final long cap = Math.min(MAX_BACKOFF, backoff);
+
+        // Half fixed and half random, so that the backoff still grows
+        final long delay = cap / 2 + (long) (random.nextDouble() * (cap / 2));
+        endpoint.retryAt = System.currentTimeMillis() + delay;
+        return delay;
+    }
+
+    /**
+     * Average latency of successful sends to the server in milliseconds, or
+     * -1 if nothing has been sent to it.
+     */
+    public synchronized long getLatency(final String url) {
+
+        final Endpoint endpoint = endpoints.get(url);
+        return endpoint == null || !endpoint.sent ? -1 : (long) endpoint.latency;
+    }
+
+    /**
+     * Recent share of failed sends to the server, between 0 and 1.
+     */
+    public synchronized double getErrorRate(final String url) {
+
+        final Endpoint endpoint = endpoints.get(url);
+        return endpoint == null ? 0 : endpoint.errorRate;
+    }
+
+    private Endpoint endpoint(final String url) {
+
+        Endpoint endpoint = endpoints.get(url);
+        if (endpoint == null) {
+            endpoint = new Endpoint();
+            endpoints.put(url, endpoint);
+        }
+        return endpoint;
+    }
+
+    private static double average(final double average, final double value) {
+
+        return average + SMOOTHING * (value - average);
+    }
+
+    private static final class Endpoint {
+
+        private boolean sent;
+        private double latency;
+        private double errorRate;
+        private int failures;
+        private long retryAt;
+
+        // Lower is better; servers nothing has been sent to score as well as
+        // possible so that they get tried
+        private double score() {
+
+            return (latency + 1) * (1 + ERROR_PENALTY * errorRate);
+        }
+    }
+}
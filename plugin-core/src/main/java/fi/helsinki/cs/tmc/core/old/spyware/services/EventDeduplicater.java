@@ -1,49 +1,73 @@
 package fi.helsinki.cs.tmc.core.old.spyware.services;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 
-import fi.helsinki.cs.tmc.core.old.spyware.utility.ExceptionUtils;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.Murmur3;
 
 /**
  * Forwards events to another receiver but discards consecutive events with the
- * same key and data. Only applied to certain event sources.
+ * same key, data and metadata. Only applied to certain event sources.
+ *
+ * Data is compared by its 128-bit MurmurHash3, computed without holding any
+ * lock. The latest event of each key is kept in one of several independently
+ * locked segments, each holding a bounded number of the most recently seen
+ * keys. The next event of a forgotten key is always forwarded. Events are
+ * forwarded while holding the lock of their segment, so that the events of a
+ * key reach the next receiver in the order they were compared in.
  */
 public class EventDeduplicater implements EventReceiver {
 
+    public static final int DEFAULT_MAX_KEYS = 1024;
+    public static final int DEFAULT_SEGMENTS = 16;
+
     private final EventReceiver nextReceiver;
 
-    private final Map<String, byte[]> lastHashByKey = new HashMap<String, byte[]>();
+    private final Segment[] segments;
 
     public EventDeduplicater(final EventReceiver nextReceiver) {
 
+        this(nextReceiver, DEFAULT_MAX_KEYS, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maxKeys
+     *            Maximum number of keys whose latest hash is remembered
+     * @param segmentCount
+     *            Number of independently locked segments
+     */
+    public EventDeduplicater(final EventReceiver nextReceiver, final int maxKeys, final int segmentCount) {
+
+        if (maxKeys < 1 || segmentCount < 1) {
+            throw new IllegalArgumentException("Invalid deduplicater size " + maxKeys + " / " + segmentCount);
+        }
+
         this.nextReceiver = nextReceiver;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(Math.max(1, maxKeys / segmentCount));
+        }
     }
 
     @Override
-    public synchronized void receiveEvent(final LoggableEvent event) {
-
-        final byte[] prevHash = lastHashByKey.get(event.getKey());
-        final byte[] newHash = hash(event.getData());
-        final boolean changed = prevHash == null || !Arrays.equals(prevHash, newHash);
-        if (changed) {
-            nextReceiver.receiveEvent(event);
-            lastHashByKey.put(event.getKey(), newHash);
+    public void receiveEvent(final LoggableEvent event) {
+
+        final Seen seen = new Seen(Murmur3.hash128(event.getData()), event.getMetadata());
+        final Segment segment = segmentFor(event.getKey());
+
+        synchronized (segment) {
+            if (segment.swap(event.getKey(), seen)) {
+                nextReceiver.receiveEvent(event);
+            }
         }
     }
 
-    private byte[] hash(final byte[] data) {
+    private Segment segmentFor(final String key) {
 
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("MD5");
-        } catch (final NoSuchAlgorithmException ex) {
-            throw ExceptionUtils.toRuntimeException(ex);
-        }
-        return md.digest(data);
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
     }
 
     @Override
@@ -51,4 +75,45 @@ public class EventDeduplicater implements EventReceiver {
 
     }
 
+    private static final class Segment {
+
+        private final LinkedHashMap<String, Seen> lastByKey;
+
+        private Segment(final int maxKeys) {
+
+            this.lastByKey = new LinkedHashMap<String, Seen>(16, 0.75f, true) {
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Seen> eldest) {
+
+                    return size() > maxKeys;
+                }
+            };
+        }
+
+        /**
+         * Remembers the event as the latest of the key and returns whether it
+         * differs from the previous one. Called while holding the segment.
+         */
+        private boolean swap(final String key, final Seen seen) {
+
+            final Seen previous = lastByKey.put(key, seen);
+            return previous == null || !previous.hash.equals(seen.hash) || !Objects.equals(previous.metadata, seen.metadata);
+        }
+    }
+
+    /**
+     * Hash of the data and the metadata of an event.
+     */
+    private static final class Seen {
+
+        private final Murmur3.Hash hash;
+        private final String metadata;
+
+        private Seen(final Murmur3.Hash hash, final String metadata) {
+
+            this.hash = hash;
+            this.metadata = metadata;
+        }
+    }
 }
@@ -0,0 +1,567 @@
+package fi.helsinki.cs.tmc.core.old.spyware.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import fi.helsinki.cs.tmc.core.old.io.FileIO;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.RingBuffer;
+
+/**
+ * Append-only on-disk journal of {@link LoggableEvent}s.
+ *
+ * <p>
+ * Events are appended as length-prefixed binary records into segment files
+ * named after the sequence number of their first record. Appends are buffered
+ * and only forced to disk by {@link #flush()}, so one fsync covers a whole
+ * batch. A checkpoint file stores the sequence number below which every event
+ * has been acknowledged by the server. {@link #compact()} deletes segments that
+ * only contain acknowledged events and rewrites the oldest segment once most of
+ * it has been acknowledged.
+ *
+ * <p>
+ * Record layout: {@code int length, long sequence, payload, int crc32}, where
+ * length is the payload length and the checksum covers everything before it.
+ * A record that fails the checksum ends the segment; this is what a write
+ * interrupted by a crash looks like.
+ */
+public class EventJournal implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private static final Logger LOG = Logger.getLogger(EventJournal.class.getName());
+
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int MAX_PAYLOAD_SIZE = 256 * 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final long segmentSize;
+
+    // Segment files keyed by the sequence number of their first record
+    private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+    private long acknowledgedSequence;
+    private long nextSequence;
+
+    private Long activeSegment;
+    private FileOutputStream activeStream;
+    private DataOutputStream activeOutput;
+    private DataOutputStream activeChecked;
+    private CRC32 activeCrc;
+    private long activeSize;
+    private boolean dirty;
+
+    public EventJournal(final FileIO directory) {
+
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public EventJournal(final FileIO directory, final long segmentSize) {
+
+        this.directory = new File(directory.getPath());
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Reads the checkpoint and finds the end of the journal. Must be called
+     * before any other method.
+     */
+    public synchronized void open() throws IOException {
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create event journal directory " + directory);
+        }
+
+        acknowledgedSequence = readCheckpoint();
+        nextSequence = acknowledgedSequence;
+
+        segments.clear();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final Long first = parseSegmentName(file.getName());
+                if (first != null) {
+                    segments.put(first, file);
+                }
+            }
+            for (final File file : files) {
+                final Long source = parseSegmentName(file.getName(), SEGMENT_SUFFIX + TEMP_SUFFIX);
+                if (source != null) {
+                    recoverRewrite(source, file);
+                }
+            }
+        }
+
+        if (!segments.isEmpty()) {
+            final Map.Entry<Long, File> last = segments.lastEntry();
+            final long end = readSegment(last.getValue(), Long.MAX_VALUE, null);
+            nextSequence = Math.max(nextSequence, Math.max(last.getKey(), end));
+        }
+    }
+
+    /**
+     * Returns the sequence number the next journaled event is expected to
+     * have.
+     */
+    public synchronized long getNextSequence() {
+
+        return nextSequence;
+    }
+
+    public synchronized long getAcknowledgedSequence() {
+
+        return acknowledgedSequence;
+    }
+
+    /**
+     * Streams the unacknowledged events back into the queue at their original
+     * sequence numbers. At most the queue's capacity of the newest events is
+     * restored. Must be called before anything is added to the queue.
+     *
+     * @return The number of restored events
+     */
+    public synchronized int replay(final RingBuffer<LoggableEvent> queue) throws IOException {
+
+        final long start = Math.max(acknowledgedSequence, nextSequence - queue.getCapacity());
+        final Long firstSegment = segments.floorKey(start);
+        final Map<Long, File> toRead = firstSegment == null ? segments : segments.tailMap(firstSegment);
+
+        final int[] restored = new int[1];
+        final RecordHandler handler = new RecordHandler() {
+
+            @Override
+            public void handle(final long sequence, final byte[] payload) throws IOException {
+
+                if (sequence >= start && sequence >= queue.getTailSequence() && sequence < nextSequence) {
+                    queue.restore(sequence, decode(payload));
+                    restored[0]++;
+                }
+            }
+        };
+
+        for (final File segment : new ArrayList<File>(toRead.values())) {
+            readSegment(segment, start, handler);
+        }
+        queue.skipTo(nextSequence);
+
+        return restored[0];
+    }
+
+    /**
+     * Appends an event to the journal. Events with a sequence number below
+     * {@link #getNextSequence()} are already journaled and are ignored. The
+     * event is not guaranteed to be on disk until {@link #flush()} is called.
+     */
+    public synchronized void append(final long sequence, final LoggableEvent event) throws IOException {
+
+        if (sequence < nextSequence) {
+            return;
+        }
+
+        if (activeOutput == null || activeSize >= segmentSize) {
+            startSegment(sequence);
+        }
+
+        activeCrc.reset();
+        activeSize += writeRecord(activeChecked, sequence, event);
+        activeOutput.writeInt((int) activeCrc.getValue());
+        activeSize += 4;
+
+        nextSequence = sequence + 1;
+        dirty = true;
+    }
+
+    /**
+     * Forces everything appended so far to disk.
+     */
+    public synchronized void flush() throws IOException {
+
+        if (activeOutput == null || !dirty) {
+            return;
+        }
+
+        activeOutput.flush();
+        activeStream.getChannel().force(false);
+        dirty = false;
+    }
+
+    /**
+     * Records that every event below the given sequence number has been
+     * delivered and need not be replayed after a restart.
+     */
+    public synchronized void acknowledge(final long sequence) throws IOException {
+
+        if (sequence <= acknowledgedSequence) {
+            return;
+        }
+
+        acknowledgedSequence = sequence;
+        writeCheckpoint();
+    }
+
+    /**
+     * Deletes fully acknowledged segments and rewrites the oldest remaining
+     * segment if more than half of it has been acknowledged.
+     */
+    public synchronized void compact() throws IOException {
+
+        for (final Map.Entry<Long, File> entry : new ArrayList<Map.Entry<Long, File>>(segments.entrySet())) {
+            final Long next = segments.higherKey(entry.getKey());
+            final long end = next == null ? nextSequence : next;
+            if (end > acknowledgedSequence) {
+                break;
+            }
+
+            if (entry.getKey().equals(activeSegment)) {
+                closeActive();
+            }
+            deleteSegment(entry.getKey());
+        }
+
+        if (segments.isEmpty()) {
+            return;
+        }
+
+        final Long first = segments.firstKey();
+        final Long next = segments.higherKey(first);
+        if (first.equals(activeSegment) || next == null || first >= acknowledgedSequence) {
+            return;
+        }
+        if (acknowledgedSequence - first >= (next - first) / 2) {
+            rewriteSegment(first);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        flush();
+        closeActive();
+    }
+
+    private void startSegment(final long firstSequence) throws IOException {
+
+        flush();
+        closeActive();
+
+        final File file = segmentFile(firstSequence);
+        activeStream = new FileOutputStream(file);
+        final BufferedOutputStream buffered = new BufferedOutputStream(activeStream, 64 * 1024);
+        activeCrc = new CRC32();
+        activeOutput = new DataOutputStream(buffered);
+        activeChecked = new DataOutputStream(new CheckedOutputStream(buffered, activeCrc));
+        activeSize = 0;
+        activeSegment = firstSequence;
+        segments.put(firstSequence, file);
+    }
+
+    private void closeActive() throws IOException {
+
+        if (activeOutput == null) {
+            return;
+        }
+
+        try {
+            activeOutput.close();
+        } finally {
+            activeOutput = null;
+            activeChecked = null;
+            activeStream = null;
+            activeSegment = null;
+        }
+    }
+
+    private void rewriteSegment(final Long first) throws IOException {
+
+        final File old = segments.get(first);
+        final File temp = new File(directory, first + SEGMENT_SUFFIX + TEMP_SUFFIX);
+        final FileOutputStream stream = new FileOutputStream(temp);
+        final BufferedOutputStream buffered = new BufferedOutputStream(stream, 64 * 1024);
+        final CRC32 crc = new CRC32();
+        final DataOutputStream out = new DataOutputStream(buffered);
+        final DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+        final long[] firstLive = { -1 };
+
+        try {
+            readSegment(old, acknowledgedSequence, new RecordHandler() {
+
+                @Override
+                public void handle(final long sequence, final byte[] payload) throws IOException {
+
+                    if (sequence < acknowledgedSequence) {
+                        return;
+                    }
+                    if (firstLive[0] < 0) {
+                        firstLive[0] = sequence;
+                    }
+                    crc.reset();
+                    checked.writeInt(payload.length);
+                    checked.writeLong(sequence);
+                    checked.write(payload);
+                    out.writeInt((int) crc.getValue());
+                }
+            });
+            out.flush();
+            stream.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+
+        // The rewritten segment is on disk before the old one is deleted, and
+        // open() adopts it if a crash leaves it under the temporary name
+        deleteSegment(first);
+        if (firstLive[0] < 0) {
+            Files.delete(temp.toPath());
+            return;
+        }
+
+        final File target = segmentFile(firstLive[0]);
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        segments.put(firstLive[0], target);
+    }
+
+    /**
+     * Finishes or discards a segment rewrite interrupted by a crash. The
+     * rewritten file is complete once the segment it replaces is gone, as it
+     * is forced to disk before that segment is deleted.
+     */
+    private void recoverRewrite(final Long source, final File temp) throws IOException {
+
+        if (segments.containsKey(source)) {
+            Files.delete(temp.toPath());
+            return;
+        }
+
+        // Keyed by the old first sequence number, which is at most that of
+        // its first record, so the segment order is unchanged
+        final File target = segmentFile(source);
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        segments.put(source, target);
+        LOG.log(Level.INFO, "Recovered rewritten event journal segment {0}", target.getName());
+    }
+
+    private void deleteSegment(final Long first) throws IOException {
+
+        final File file = segments.remove(first);
+        if (file != null) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * Reads records from a segment, passing those at or above
+     * {@code fromSequence} to the handler. Stops at the first damaged record.
+     *
+     * @return One past the sequence number of the last valid record, or -1 if
+     *         the segment holds no valid records
+     */
+    private long readSegment(final File segment, final long fromSequence, final RecordHandler handler) throws IOException {
+
+        final CRC32 crc = new CRC32();
+        final BufferedInputStream buffered = new BufferedInputStream(new FileInputStream(segment), 64 * 1024);
+        final DataInputStream in = new DataInputStream(buffered);
+        final DataInputStream checked = new DataInputStream(new CheckedInputStream(buffered, crc));
+        long end = -1;
+
+        try {
+            while (true) {
+                crc.reset();
+                final int length;
+                try {
+                    length = checked.readInt();
+                } catch (final EOFException ex) {
+                    break;
+                }
+                if (length < 0 || length > MAX_PAYLOAD_SIZE) {
+                    LOG.log(Level.WARNING, "Damaged record in event journal segment {0}", segment.getName());
+                    break;
+                }
+
+                final long sequence = checked.readLong();
+                final byte[] payload = new byte[length];
+                checked.readFully(payload);
+                final int expected = (int) crc.getValue();
+                if (in.readInt() != expected) {
+                    LOG.log(Level.WARNING, "Checksum mismatch in event journal segment {0}", segment.getName());
+                    break;
+                }
+
+                end = sequence + 1;
+                if (handler != null && sequence >= fromSequence) {
+                    handler.handle(sequence, payload);
+                }
+            }
+        } catch (final EOFException ex) {
+            LOG.log(Level.INFO, "Event journal segment {0} ends in a partial record", segment.getName());
+        } finally {
+            in.close();
+        }
+
+        return end;
+    }
+
+    private long readCheckpoint() {
+
+        final File file = new File(directory, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+
+        try {
+            final DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                final long sequence = in.readLong();
+                final long check = in.readLong();
+                return check == ~sequence ? sequence : 0;
+            } finally {
+                in.close();
+            }
+        } catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to read event journal checkpoint", ex);
+            return 0;
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+
+        final File temp = new File(directory, CHECKPOINT_FILE + TEMP_SUFFIX);
+        final FileOutputStream stream = new FileOutputStream(temp);
+        final DataOutputStream out = new DataOutputStream(stream);
+        try {
+            out.writeLong(acknowledgedSequence);
+            out.writeLong(~acknowledgedSequence);
+            out.flush();
+            stream.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+
+        Files.move(temp.toPath(), new File(directory, CHECKPOINT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File segmentFile(final long firstSequence) {
+
+        return new File(directory, String.format("%019d", firstSequence) + SEGMENT_SUFFIX);
+    }
+
+    private static Long parseSegmentName(final String name) {
+
+        return parseSegmentName(name, SEGMENT_SUFFIX);
+    }
+
+    private static Long parseSegmentName(final String name, final String suffix) {
+
+        if (!name.endsWith(suffix)) {
+            return null;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+        } catch (final NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the record header and payload, returning the number of bytes
+     * written. The event data is written as is, without an intermediate copy.
+     */
+    private static int writeRecord(final DataOutputStream out, final long sequence, final LoggableEvent event) throws IOException {
+
+        final List<byte[]> strings = new ArrayList<byte[]>(4);
+        strings.add(encodeString(event.getCourseName()));
+        strings.add(encodeString(event.getExerciseName()));
+        strings.add(encodeString(event.getEventType()));
+        strings.add(encodeString(event.getMetadata()));
+        final byte[] data = event.getData();
+
+        int length = 8 + 8 + 4 + (data == null ? 0 : data.length);
+        for (final byte[] s : strings) {
+            length += 4 + (s == null ? 0 : s.length);
+        }
+
+        out.writeInt(length);
+        out.writeLong(sequence);
+        for (final byte[] s : strings) {
+            writeBytes(out, s);
+        }
+        out.writeLong(event.getHappenedAt());
+        out.writeLong(event.getSystemNanotime());
+        writeBytes(out, data);
+
+        return 4 + 8 + length;
+    }
+
+    private static LoggableEvent decode(final byte[] payload) throws IOException {
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final String courseName = decodeString(readBytes(in));
+        final String exerciseName = decodeString(readBytes(in));
+        final String eventType = decodeString(readBytes(in));
+        final String metadata = decodeString(readBytes(in));
+        final long happenedAt = in.readLong();
+        final long systemNanotime = in.readLong();
+        final byte[] data = readBytes(in);
+
+        return new LoggableEvent(courseName, exerciseName, eventType, data, metadata, happenedAt, systemNanotime);
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static byte[] encodeString(final String s) {
+
+        return s == null ? null : s.getBytes(UTF8);
+    }
+
+    private static String decodeString(final byte[] bytes) {
+
+        return bytes == null ? null : new String(bytes, UTF8);
+    }
+
+    private interface RecordHandler {
+
+        void handle(long sequence, byte[] payload) throws IOException;
+    }
+}
@@ -1,17 +1,16 @@
 package fi.helsinki.cs.tmc.core.old.spyware.services;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import fi.helsinki.cs.tmc.core.old.async.tasks.SingletonTask;
 import fi.helsinki.cs.tmc.core.old.services.Settings;
 import fi.helsinki.cs.tmc.core.old.spyware.utility.Cooldown;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.RingBuffer;
 
 /**
  * Buffers {@link LoggableEvent}s and sends them to the server and/or syncs them
@@ -30,23 +29,27 @@ public class EventSendBuffer implements EventReceiver {
     private final SingletonTask savingTask;
     private final SingletonTask sendingTask;
 
-    private final EventStore eventStore;
+    private final EventJournal journal;
     private final Settings settings;
 
-    // The following variables must only be accessed with a lock on sendQueue.
-    private final ArrayDeque<LoggableEvent> sendQueue;
-    private final int maxEvents = DEFAULT_MAX_EVENTS;
+    // Bounded to DEFAULT_MAX_EVENTS; the oldest events are dropped on overflow.
+    private final RingBuffer<LoggableEvent> sendQueue;
     private final int autosendThreshold = DEFAULT_AUTOSEND_THREHSOLD;
+
+    // Must only be accessed with a lock on autosendCooldown.
     private final Cooldown autosendCooldown;
-    private final AtomicInteger eventsToRemoveAfterSend;
 
-    public EventSendBuffer(final EventStore store, final Settings settings, final ArrayDeque<LoggableEvent> sendQueue,
-            final SingletonTask sendingTask, final SingletonTask savingTask, final AtomicInteger eventsToRemoveAfterSend) {
+    /**
+     * Replays the unsent events of the previous session from the journal into
+     * the send queue. Events left in the old whole-file event store are moved
+     * into the queue and the journal once and the store is cleared.
+     */
+    public EventSendBuffer(final EventJournal journal, final EventStore legacyStore, final Settings settings,
+            final RingBuffer<LoggableEvent> sendQueue, final SingletonTask sendingTask, final SingletonTask savingTask) {
 
-        eventStore = store;
+        this.journal = journal;
         this.settings = settings;
         this.sendQueue = sendQueue;
-        this.eventsToRemoveAfterSend = eventsToRemoveAfterSend;
 
         autosendCooldown = new Cooldown(DEFAULT_AUTOSEND_COOLDOWN);
 
@@ -54,19 +57,47 @@ public class EventSendBuffer implements EventReceiver {
         this.savingTask = savingTask;
 
         try {
-            List<LoggableEvent> initialEvents = Arrays.asList(eventStore.load());
-            initialEvents = initialEvents.subList(0, Math.min(maxEvents, initialEvents.size()));
-            this.sendQueue.addAll(initialEvents);
+            journal.open();
+            final int restored = journal.replay(sendQueue);
+            LOG.log(Level.INFO, "Restored {0} unsent events from the event journal", restored);
         } catch (final IOException ex) {
-            LOG.log(Level.WARNING, "Failed to read events from event store", ex);
+            LOG.log(Level.WARNING, "Failed to read events from event journal", ex);
         } catch (final RuntimeException ex) {
-            LOG.log(Level.WARNING, "Failed to read events from event store", ex);
+            LOG.log(Level.WARNING, "Failed to read events from event journal", ex);
         }
 
+        migrateLegacyStore(legacyStore);
+
         this.sendingTask.setInterval(DEFAULT_SEND_INTERVAL);
         this.savingTask.setInterval(DEFAULT_SAVE_INTERVAL);
     }
 
+    private void migrateLegacyStore(final EventStore legacyStore) {
+
+        try {
+            List<LoggableEvent> legacyEvents = Arrays.asList(legacyStore.load());
+            if (legacyEvents.isEmpty()) {
+                return;
+            }
+            // The newest events are kept, as the queue keeps them on overflow
+            legacyEvents = legacyEvents.subList(Math.max(0, legacyEvents.size() - sendQueue.getCapacity()), legacyEvents.size());
+            sendQueue.addAll(legacyEvents);
+
+            // The events are forced to disk in the journal before the store
+            // is cleared, so that a crash in between loses none of them
+            final RingBuffer.Batch<LoggableEvent> batch = sendQueue.peek(journal.getNextSequence(), sendQueue.getCapacity());
+            for (int i = 0; i < batch.size(); i++) {
+                journal.append(batch.getSequence(i), batch.getElements().get(i));
+            }
+            journal.flush();
+            legacyStore.clear();
+        } catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to move events from event store to event journal", ex);
+        } catch (final RuntimeException ex) {
+            LOG.log(Level.WARNING, "Failed to move events from event store to event journal", ex);
+        }
+    }
+
     public void setSendingInterval(final long interval) {
 
         sendingTask.setInterval(interval);
@@ -94,23 +125,25 @@ public class EventSendBuffer implements EventReceiver {
             return;
         }
 
-        synchronized (sendQueue) {
-            if (sendQueue.size() >= maxEvents) {
-                sendQueue.pop();
-                eventsToRemoveAfterSend.decrementAndGet();
-            }
-            sendQueue.add(event);
+        // Called from editor threads, so this must never block
+        sendQueue.add(event);
 
-            maybeAutosend();
-        }
+        maybeAutosend();
     }
 
     private void maybeAutosend() {
 
-        if (sendQueue.size() >= autosendThreshold && autosendCooldown.isExpired()) {
+        if (sendQueue.size() < autosendThreshold) {
+            return;
+        }
+
+        synchronized (autosendCooldown) {
+            if (!autosendCooldown.isExpired()) {
+                return;
+            }
             autosendCooldown.start();
-            sendNow();
         }
+        sendNow();
     }
 
     /**
@@ -138,6 +171,12 @@ public class EventSendBuffer implements EventReceiver {
             LOG.log(Level.WARNING, "Closing EventSendBuffer interrupted", ex);
         }
 
+        try {
+            journal.close();
+        } catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to close event journal", ex);
+        }
+
     }
 
 }
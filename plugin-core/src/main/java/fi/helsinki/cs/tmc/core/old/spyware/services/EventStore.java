@@ -14,28 +14,23 @@ import java.util.logging.Logger;
 
 import org.apache.commons.io.IOUtils;
 
+/**
+ * Reads events saved as a single JSON file by earlier versions. New events are
+ * saved in the {@link EventJournal}; this store is only read once on startup
+ * and then cleared.
+ */
 public class EventStore {
 
     private static final Logger LOG = Logger.getLogger(EventStore.class.getName());
 
     private final FileIO configFile;
+    private Gson gson;
 
     public EventStore(final FileIO configFile) {
 
         this.configFile = configFile;
     }
 
-    public void save(final LoggableEvent[] events) throws IOException {
-
-        final String text = getGson().toJson(events);
-        final Writer writer = configFile.getWriter();
-        try {
-            writer.write(text);
-        } finally {
-            writer.close();
-        }
-    }
-
     public LoggableEvent[] load() throws IOException {
 
         final StringWriter writer = new StringWriter();
@@ -61,7 +56,10 @@ public class EventStore {
 
     private Gson getGson() {
 
-        return new GsonBuilder().registerTypeAdapter(byte[].class, new ByteArrayGsonSerializer()).create();
+        if (gson == null) {
+            gson = new GsonBuilder().registerTypeAdapter(byte[].class, new ByteArrayGsonSerializer()).create();
+        }
+        return gson;
     }
 
     public void clear() throws IOException {
@@ -0,0 +1,387 @@
+package fi.helsinki.cs.tmc.core.old.spyware.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import fi.helsinki.cs.tmc.core.old.io.zip.ProjectWalker;
+import fi.helsinki.cs.tmc.core.old.io.zip.ZipWriter;
+import fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider.ZippingDecider;
+
+/**
+ * Takes content-addressed snapshots of project sources. Every file is
+ * identified by the SHA-1 of its content and every snapshot by the SHA-1 of
+ * its sorted list of paths and file hashes, called the state.
+ *
+ * A baseline snapshot is a zip of all sources, in the same layout as
+ * {@link fi.helsinki.cs.tmc.core.old.io.zip.RecursiveZipper}. A delta snapshot
+ * is a zip of only the files that changed since the previous snapshot of the
+ * project, plus the paths of the removed files. Applying the deltas in order
+ * to the baseline they follow reproduces every state; the base state of each
+ * delta tells the server which snapshot it applies to.
+ *
+ * The state of a project advances when a snapshot is taken, not when its event
+ * reaches the server. An event lost on the way, for example dropped from a
+ * full send queue, therefore breaks the chain: later deltas name a base state
+ * the server never received, and it has to skip them until the next baseline.
+ * A baseline is taken for the first snapshot of a project and then
+ * periodically to bound that gap.
+ */
+public class IncrementalSnapshotter {
+
+    public static final int DEFAULT_DELTAS_PER_BASELINE = 50;
+    public static final long DEFAULT_BASELINE_INTERVAL = 30 * 60 * 1000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Modification times are only trusted if they are older than this when
+    // the file was hashed, so that a quick second edit is not missed
+    private static final long MTIME_GRANULARITY = 2000;
+
+    private final int deltasPerBaseline;
+    private final long baselineInterval;
+
+    private final ConcurrentMap<String, ProjectState> states = new ConcurrentHashMap<String, ProjectState>();
+
+    public IncrementalSnapshotter() {
+
+        this(DEFAULT_DELTAS_PER_BASELINE, DEFAULT_BASELINE_INTERVAL);
+    }
+
+    /**
+     * @param deltasPerBaseline
+     *            Number of delta snapshots after which a baseline is taken
+     * @param baselineInterval
+     *            Time in milliseconds after which a baseline is taken
+     */
+    public IncrementalSnapshotter(final int deltasPerBaseline, final long baselineInterval) {
+
+        this.deltasPerBaseline = deltasPerBaseline;
+        this.baselineInterval = baselineInterval;
+    }
+
+    /**
+     * Takes a snapshot of the project in the given root directory, a baseline
+     * or a delta depending on the earlier snapshots of the project.
+     */
+    public Snapshot take(final String rootPath, final ZippingDecider decider) throws IOException {
+
+        final File root = new File(rootPath);
+        if (!root.isDirectory()) {
+            throw new FileNotFoundException("Root directory " + rootPath + " not found for snapshot!");
+        }
+
+        ProjectState state = states.get(rootPath);
+        if (state == null) {
+            states.putIfAbsent(rootPath, new ProjectState());
+            state = states.get(rootPath);
+        }
+
+        synchronized (state) {
+            return state.take(root, decider);
+        }
+    }
+
+    /**
+     * Forgets the earlier snapshots of the project, so that its next snapshot
+     * is a baseline.
+     */
+    public void reset(final String rootPath) {
+
+        states.remove(rootPath);
+    }
+
+    /**
+     * Forgets the earlier snapshots of every project.
+     */
+    public void resetAll() {
+
+        states.clear();
+    }
+
+    /**
+     * Result of a snapshot.
+     */
+    public static final class Snapshot {
+
+        private final boolean baseline;
+        private final byte[] data;
+        private final String base;
+        private final String state;
+        private final List<String> removed;
+        private final int fileCount;
+
+        private Snapshot(final boolean baseline, final byte[] data, final String base, final String state, final List<String> removed,
+                final int fileCount) {
+
+            this.baseline = baseline;
+            this.data = data;
+            this.base = base;
+            this.state = state;
+            this.removed = removed;
+            this.fileCount = fileCount;
+        }
+
+        /**
+         * Whether the snapshot contains all sources rather than the changes.
+         */
+        public boolean isBaseline() {
+
+            return baseline;
+        }
+
+        /**
+         * The zip of the snapshot.
+         */
+        public byte[] getData() {
+
+            return data;
+        }
+
+        /**
+         * The state the delta applies to, or null for a baseline.
+         */
+        public String getBase() {
+
+            return base;
+        }
+
+        public String getState() {
+
+            return state;
+        }
+
+        /**
+         * Zip paths of the files removed since the base state.
+         */
+        public List<String> getRemoved() {
+
+            return removed;
+        }
+
+        /**
+         * Number of files in the zip.
+         */
+        public int getFileCount() {
+
+            return fileCount;
+        }
+    }
+
+    private final class ProjectState {
+
+        // Zip path to the hash of the file at the latest snapshot
+        private Map<String, FileHash> files = Collections.emptyMap();
+        private String state;
+        private int deltas;
+        private long baselineTime;
+
+        private Snapshot take(final File root, final ZippingDecider decider) throws IOException {
+
+            final long now = System.currentTimeMillis();
+            final boolean baseline = state == null || deltas >= deltasPerBaseline || now - baselineTime >= baselineInterval;
+
+            final List<Source> sources = new ArrayList<Source>();
+            final List<String> directories = new ArrayList<String>();
+            collect(root, decider, sources, directories);
+
+            final Map<String, FileHash> current = new HashMap<String, FileHash>();
+            final SortedMap<String, String> manifest = new TreeMap<String, String>();
+            final ZipWriter zipWriter = new ZipWriter();
+            final byte[] data;
+            int zipped = 0;
+
+            try {
+                if (baseline) {
+                    for (final String directory : directories) {
+                        zipWriter.addDirectory(directory);
+                    }
+                }
+
+                for (final Source source : sources) {
+                    final String zipPath = source.zipPath;
+                    final long length = source.length;
+                    final long modified = source.modified;
+
+                    final FileHash previous = files.get(zipPath);
+                    FileHash hash = null;
+                    byte[] content = null;
+
+                    if (!baseline && previous != null && previous.isValidFor(length, modified)) {
+                        hash = previous;
+                    } else {
+                        content = read(source.file);
+                        if (content == null) {
+                            // Removed while the snapshot was being taken
+                            continue;
+                        }
+                        hash = new FileHash(length, modified, now, sha1(content));
+                    }
+
+                    current.put(zipPath, hash);
+                    manifest.put(zipPath, hash.hash);
+
+                    if (baseline || previous == null || !previous.hash.equals(hash.hash)) {
+                        zipWriter.addBytes(zipPath, content);
+                        zipped++;
+                    }
+                }
+
+                data = zipWriter.finish();
+            } finally {
+                zipWriter.close();
+            }
+
+            final List<String> removed = new ArrayList<String>();
+            if (!baseline) {
+                for (final String zipPath : files.keySet()) {
+                    if (!current.containsKey(zipPath)) {
+                        removed.add(zipPath);
+                    }
+                }
+                Collections.sort(removed);
+            }
+
+            final String base = baseline ? null : state;
+
+            // Advanced even though the event may still be lost before it is
+            // sent; see the class comment
+            files = current;
+            state = stateOf(manifest);
+            if (baseline) {
+                deltas = 0;
+                baselineTime = now;
+            } else {
+                deltas++;
+            }
+
+            return new Snapshot(baseline, data, base, state, removed, zipped);
+        }
+
+        /**
+         * Lists the files to snapshot in the same order and with the same zip
+         * paths as RecursiveZipper.
+         */
+        private void collect(final File root, final ZippingDecider decider, final List<Source> sources, final List<String> directories)
+                throws IOException {
+
+            ProjectWalker.walk(root, decider, new ProjectWalker.Visitor() {
+
+                @Override
+                public void visitDirectory(final String zipPath, final Path directory, final BasicFileAttributes attributes) {
+
+                    directories.add(zipPath);
+                }
+
+                @Override
+                public void visitFile(final String zipPath, final Path file, final BasicFileAttributes attributes) {
+
+                    sources.add(new Source(file.toFile(), zipPath, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                }
+            });
+        }
+    }
+
+    /**
+     * A file to snapshot, with the size and modification time read by the
+     * walk.
+     */
+    private static final class Source {
+
+        private final File file;
+        private final String zipPath;
+        private final long length;
+        private final long modified;
+
+        private Source(final File file, final String zipPath, final long length, final long modified) {
+
+            this.file = file;
+            this.zipPath = zipPath;
+            this.length = length;
+            this.modified = modified;
+        }
+    }
+
+    private static final class FileHash {
+
+        private final long length;
+        private final long modified;
+        private final long hashedAt;
+        private final String hash;
+
+        private FileHash(final long length, final long modified, final long hashedAt, final String hash) {
+
+            this.length = length;
+            this.modified = modified;
+            this.hashedAt = hashedAt;
+            this.hash = hash;
+        }
+
+        private boolean isValidFor(final long length, final long modified) {
+
+            return this.length == length && this.modified == modified && modified + MTIME_GRANULARITY < hashedAt;
+        }
+    }
+
+    private static byte[] read(final File file) throws IOException {
+
+        final InputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (final FileNotFoundException ex) {
+            return null;
+        }
+
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String stateOf(final SortedMap<String, String> manifest) {
+
+        final MessageDigest digest = sha1();
+        for (final Map.Entry<String, String> entry : manifest.entrySet()) {
+            digest.update(entry.getKey().getBytes(UTF8));
+            digest.update((byte) 0);
+            digest.update(entry.getValue().getBytes(UTF8));
+            digest.update((byte) '\n');
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private static String sha1(final byte[] content) {
+
+        return Hex.encodeHexString(sha1().digest(content));
+    }
+
+    private static MessageDigest sha1() {
+
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -46,13 +46,27 @@ public class LoggableEvent implements TmcEvent {
                          final byte[] data,
                          final String metadata) {
 
+        this(courseName, exerciseName, eventType, data, metadata, System.currentTimeMillis(), System.nanoTime());
+    }
+
+    /**
+     * Recreates an event that was persisted earlier, keeping its timestamps.
+     */
+    LoggableEvent(final String courseName,
+                  final String exerciseName,
+                  final String eventType,
+                  final byte[] data,
+                  final String metadata,
+                  final long happenedAt,
+                  final long systemNanotime) {
+
         this.courseName = courseName;
         this.exerciseName = exerciseName;
         this.eventType = eventType;
         this.data = data;
         this.metadata = metadata;
-        happenedAt = System.currentTimeMillis();
-        systemNanotime = System.nanoTime();
+        this.happenedAt = happenedAt;
+        this.systemNanotime = systemNanotime;
 
         key = courseName + "|" + exerciseName + "|" + eventType;
     }
@@ -0,0 +1,179 @@
+package fi.helsinki.cs.tmc.core.old.spyware.services;
+
+import java.awt.Toolkit;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.FlavorEvent;
+import java.awt.datatransfer.FlavorListener;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tells whether inserted text was pasted from the clipboard.
+ *
+ * Reading the system clipboard is a round-trip to the windowing system, so
+ * the length and a hash of its trimmed contents are cached. The cache is
+ * refreshed at most once per refresh interval, or sooner when the clipboard
+ * reports that its contents changed. Inserted text is compared to the cache by
+ * length and hash, without copying it.
+ */
+public class PasteDetector {
+
+    public static final long DEFAULT_REFRESH_INTERVAL = 200;
+
+    private static final Logger LOG = Logger.getLogger(PasteDetector.class.getName());
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long refreshInterval;
+
+    // Trimmed length and hash of the clipboard text, or -1 if the clipboard
+    // holds no text; replaced together, guarded by this
+    private int clipboardLength = -1;
+    private long clipboardHash;
+    private long refreshedAt;
+
+    private volatile boolean changed = true;
+    private boolean listening;
+
+    public PasteDetector() {
+
+        this(DEFAULT_REFRESH_INTERVAL);
+    }
+
+    /**
+     * @param refreshInterval
+     *            Time in milliseconds the clipboard contents are cached for,
+     *            unless the clipboard reports a change
+     */
+    public PasteDetector(final long refreshInterval) {
+
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Returns whether the inserted text is long enough to be checked against
+     * the clipboard.
+     */
+    public static boolean mayBePaste(final String text) {
+
+        // if a short text or whitespace is inserted,
+        // we skip checking for paste
+        if (text == null) {
+            return false;
+        }
+        final int start = trimStart(text);
+        return trimEnd(text, start) - start > 2;
+    }
+
+    /**
+     * Returns whether the inserted text, ignoring surrounding whitespace, is
+     * the text on the clipboard.
+     */
+    public boolean isPaste(final String text) {
+
+        if (!mayBePaste(text)) {
+            return false;
+        }
+
+        // at least eclipse adds indentation whitespace to the beginning
+        // of the text even if it's pasted, hence the trim
+        final int start = trimStart(text);
+        final int end = trimEnd(text, start);
+        final long hash = hash(text, start, end);
+
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (changed || now - refreshedAt >= refreshInterval) {
+                refresh(now);
+            }
+            return clipboardLength == end - start && clipboardHash == hash;
+        }
+    }
+
+    /**
+     * Returns the contents of the clipboard, or null if it holds no text.
+     */
+    protected String readClipboard() throws Exception {
+
+        final Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+
+        if (!listening) {
+            listening = true;
+            clipboard.addFlavorListener(new FlavorListener() {
+
+                @Override
+                public void flavorsChanged(final FlavorEvent event) {
+
+                    changed = true;
+                }
+            });
+        }
+
+        if (!clipboard.isDataFlavorAvailable(DataFlavor.stringFlavor)) {
+            return null;
+        }
+        return (String) clipboard.getData(DataFlavor.stringFlavor);
+    }
+
+    // Called while holding this
+    private void refresh(final long now) {
+
+        changed = false;
+        refreshedAt = now;
+
+        String text = null;
+        try {
+            text = readClipboard();
+        } catch (final Exception exp) {
+            LOG.log(Level.FINE, "Could not read the clipboard", exp);
+        }
+
+        if (text == null) {
+            clipboardLength = -1;
+            clipboardHash = 0;
+            return;
+        }
+
+        final int start = trimStart(text);
+        final int end = trimEnd(text, start);
+        clipboardLength = end - start;
+        clipboardHash = hash(text, start, end);
+    }
+
+    // Same rule as String.trim
+    private static int trimStart(final String text) {
+
+        int start = 0;
+        while (start < text.length() && text.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(final String text, final int start) {
+
+        int end = text.length();
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the characters between start and end.
+     */
+    private static long hash(final String text, final int start, final int end) {
+
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+            hash ^= c & 0xff;
+            hash *= FNV_PRIME;
+            hash ^= c >>> 8;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
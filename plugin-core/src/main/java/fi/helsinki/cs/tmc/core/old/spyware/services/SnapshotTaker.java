@@ -8,29 +8,44 @@ import fi.helsinki.cs.tmc.core.old.domain.Project;
 import fi.helsinki.cs.tmc.core.old.domain.exception.InvalidProjectException;
 import fi.helsinki.cs.tmc.core.old.io.FileIO;
 import fi.helsinki.cs.tmc.core.old.io.zip.RecursiveZipper;
+import fi.helsinki.cs.tmc.core.old.io.zip.zippingdecider.ZippingDecider;
 import fi.helsinki.cs.tmc.core.old.services.ProjectDAO;
 import fi.helsinki.cs.tmc.core.old.services.Settings;
 import fi.helsinki.cs.tmc.core.old.spyware.ChangeType;
 import fi.helsinki.cs.tmc.core.old.spyware.SnapshotInfo;
-import fi.helsinki.cs.tmc.core.old.spyware.utility.ActiveThreadSet;
+import fi.helsinki.cs.tmc.core.old.spyware.services.IncrementalSnapshotter.Snapshot;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.CoalescingExecutor;
 import fi.helsinki.cs.tmc.core.old.spyware.utility.JsonMaker;
 
+/**
+ * Zips the sources of a project when one of its files changes. Zipping is done
+ * on a worker pool, and if a file changes again before its previous snapshot
+ * has started, only the latest change is snapshotted.
+ *
+ * With incremental snapshots enabled, a snapshot is sent as a
+ * "code_snapshot_delta" event that contains only the changed files, with a
+ * full "code_snapshot" baseline now and then. See
+ * {@link IncrementalSnapshotter}.
+ */
 public class SnapshotTaker {
 
     private static final Logger LOG = Logger.getLogger(SnapshotTaker.class.getName());
 
     private SnapshotInfo info;
-    private final ActiveThreadSet threadSet;
+    private final CoalescingExecutor executor;
+    private final IncrementalSnapshotter snapshotter;
     private final EventReceiver receiver;
     private final Settings settings;
     private final ProjectDAO projectDAO;
 
-    public SnapshotTaker(final ActiveThreadSet threadSet,
+    public SnapshotTaker(final CoalescingExecutor executor,
+                         final IncrementalSnapshotter snapshotter,
                          final EventReceiver receiver,
                          final Settings settings,
                          final ProjectDAO projectDAO) {
 
-        this.threadSet = threadSet;
+        this.executor = executor;
+        this.snapshotter = snapshotter;
         this.receiver = receiver;
         this.settings = settings;
         this.projectDAO = projectDAO;
@@ -49,23 +64,23 @@ public class SnapshotTaker {
 
     private void handleChange() {
 
-        final String metadata = JsonMaker.create().add("cause", info.getChangeType().name().toLowerCase()).add("file", info.getCurrentFilePath())
-                .toString();
+        final JsonMaker metadata = JsonMaker.create().add("cause", info.getChangeType().name().toLowerCase())
+                .add("file", info.getCurrentFilePath());
 
-        startSnapshotThread(metadata, info.getCurrentFullFilePath());
+        scheduleSnapshot(metadata, info.getCurrentFullFilePath());
 
     }
 
     private void handleRename() {
 
-        final String metadata = JsonMaker.create().add("cause", info.getChangeType().name().toLowerCase()).add("file", info.getCurrentFilePath())
-                .add("previous_name", info.getOldFilePath()).toString();
+        final JsonMaker metadata = JsonMaker.create().add("cause", info.getChangeType().name().toLowerCase())
+                .add("file", info.getCurrentFilePath()).add("previous_name", info.getOldFilePath());
 
-        startSnapshotThread(metadata, info.getOldFullFilePath());
+        scheduleSnapshot(metadata, info.getOldFullFilePath());
 
     }
 
-    private void startSnapshotThread(final String metadata, final String path) {
+    private void scheduleSnapshot(final JsonMaker metadata, final String path) {
 
         if (!settings.isSpywareEnabled()) {
             return;
@@ -78,23 +93,25 @@ public class SnapshotTaker {
             return;
         }
 
-        final SnapshotThread thread = new SnapshotThread(receiver, project, metadata);
-        threadSet.addThread(thread);
-        thread.setDaemon(true);
-        thread.start();
+        executor.submit(path, new SnapshotTask(project, metadata));
 
     }
 
-    private static final class SnapshotThread extends Thread {
+    /**
+     * Stops the worker threads. Snapshots that have not started are dropped.
+     */
+    public void close() {
+
+        executor.shutdown();
+    }
+
+    private final class SnapshotTask implements Runnable {
 
-        private final EventReceiver receiver;
         private final Project project;
-        private final String metadata;
+        private final JsonMaker metadata;
 
-        private SnapshotThread(final EventReceiver receiver, final Project project, final String metadata) {
+        private SnapshotTask(final Project project, final JsonMaker metadata) {
 
-            super("Source snapshot");
-            this.receiver = receiver;
             this.project = project;
             this.metadata = metadata;
         }
@@ -108,16 +125,22 @@ public class SnapshotTaker {
             // that modify the project. For now we just accept that. Not sure if
             // the File Object API would allow some sort of global locking of
             // the project.
-            final RecursiveZipper zipper;
+            final ZippingDecider decider;
             try {
-                zipper = new RecursiveZipper(new FileIO(project.getRootPath()), project.getZippingDecider());
+                decider = project.getZippingDecider();
             } catch (final InvalidProjectException e) {
                 // this exception is thrown when file list is empty
                 return;
             }
             try {
-                final byte[] data = zipper.zipProjectSources();
-                final LoggableEvent event = new LoggableEvent(project.getExercise(), "code_snapshot", data, metadata);
+                final LoggableEvent event;
+                if (settings.isIncrementalSnapshotsEnabled()) {
+                    event = incrementalSnapshot(decider);
+                } else {
+                    snapshotter.reset(project.getRootPath());
+                    final byte[] data = new RecursiveZipper(new FileIO(project.getRootPath()), decider).zipProjectSources();
+                    event = new LoggableEvent(project.getExercise(), "code_snapshot", data, metadata.toString());
+                }
                 receiver.receiveEvent(event);
             } catch (final IOException ex) {
                 // Warning might be also appropriate, but this often races with
@@ -127,6 +150,19 @@ public class SnapshotTaker {
             }
 
         }
+
+        private LoggableEvent incrementalSnapshot(final ZippingDecider decider) throws IOException {
+
+            final Snapshot snapshot = snapshotter.take(project.getRootPath(), decider);
+
+            metadata.add("state", snapshot.getState());
+            if (snapshot.isBaseline()) {
+                return new LoggableEvent(project.getExercise(), "code_snapshot", snapshot.getData(), metadata.toString());
+            }
+
+            metadata.add("base", snapshot.getBase()).add("removed", snapshot.getRemoved());
+            return new LoggableEvent(project.getExercise(), "code_snapshot_delta", snapshot.getData(), metadata.toString());
+        }
     }
 
 }
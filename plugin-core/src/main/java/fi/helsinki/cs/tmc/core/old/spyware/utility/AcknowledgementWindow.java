@@ -0,0 +1,103 @@
+package fi.helsinki.cs.tmc.core.old.spyware.utility;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tracks sequence ranges that are handled concurrently and may complete in any
+ * order. The watermark is the sequence number below which every range has
+ * completed, so everything below it can be safely consumed.
+ *
+ * Ranges must be issued in order, each starting where the previous one ended.
+ * Not thread safe.
+ */
+public class AcknowledgementWindow {
+
+    private long watermark;
+    private long issuedTo;
+
+    // Start to end of each range issued but not yet below the watermark
+    private final TreeMap<Long, Range> ranges = new TreeMap<Long, Range>();
+
+    public AcknowledgementWindow(final long start) {
+
+        this.watermark = start;
+        this.issuedTo = start;
+    }
+
+    /**
+     * Issues the range from the end of the previous range to the given end.
+     *
+     * @return The start of the issued range
+     */
+    public long issue(final long end) {
+
+        if (end < issuedTo) {
+            throw new IllegalArgumentException("Range end " + end + " before " + issuedTo);
+        }
+
+        final long start = issuedTo;
+        ranges.put(start, new Range(end));
+        issuedTo = end;
+        return start;
+    }
+
+    /**
+     * Marks the range starting at the given sequence number completed.
+     *
+     * @return The watermark after the range completed
+     */
+    public long complete(final long start) {
+
+        final Range range = ranges.get(start);
+        if (range == null) {
+            throw new IllegalArgumentException("No range issued at " + start);
+        }
+        range.completed = true;
+
+        Map.Entry<Long, Range> first;
+        while ((first = ranges.firstEntry()) != null && first.getValue().completed) {
+            watermark = first.getValue().end;
+            ranges.remove(first.getKey());
+        }
+        return watermark;
+    }
+
+    public long getWatermark() {
+
+        return watermark;
+    }
+
+    /**
+     * Returns the end of the latest issued range.
+     */
+    public long getIssuedTo() {
+
+        return issuedTo;
+    }
+
+    /**
+     * Returns the number of ranges issued and not yet completed.
+     */
+    public int getPendingCount() {
+
+        int pending = 0;
+        for (final Range range : ranges.values()) {
+            if (!range.completed) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    private static final class Range {
+
+        private final long end;
+        private boolean completed;
+
+        private Range(final long end) {
+
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package fi.helsinki.cs.tmc.core.old.spyware.utility;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on a small pool of worker threads, at most one task per key at a
+ * time. A task submitted while an earlier task of the same key and kind is
+ * the last one waiting replaces it, so that of consecutive tasks of a kind
+ * only the latest runs. Tasks of one key run in the order they were
+ * submitted.
+ *
+ * The work queue is bounded. When it is full, the submitting thread runs the
+ * task itself, which slows down the producer instead of piling up work.
+ */
+public class CoalescingExecutor {
+
+    private static final Logger LOG = Logger.getLogger(CoalescingExecutor.class.getName());
+
+    // Idle worker threads are stopped after this
+    private static final long KEEP_ALIVE = 30 * 1000;
+
+    private final ThreadPoolExecutor executor;
+    private final TaskTracker tracker;
+
+    // Keys that have a task waiting or running; guarded by itself
+    private final Map<String, Slot> slots = new HashMap<String, Slot>();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param name
+     *            Name of the worker threads
+     * @param threads
+     *            Maximum number of tasks run at the same time
+     * @param queueCapacity
+     *            Maximum number of keys waiting for a free worker
+     * @param tracker
+     *            Tracker that counts every key with a task waiting or running
+     */
+    public CoalescingExecutor(final String name, final int threads, final int queueCapacity, final TaskTracker tracker) {
+
+        this.tracker = tracker;
+        this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                queueCapacity), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules the task, replacing a task of the same key that has not
+     * started yet.
+     */
+    public void submit(final String key, final Runnable task) {
+
+        submit(key, "", task);
+    }
+
+    /**
+     * Schedules the task, replacing the last task of the same key if it has
+     * not started yet and is of the same kind.
+     *
+     * @param kind
+     *            Kind of the task, or null if it must neither replace nor be
+     *            replaced by another task
+     */
+    public void submit(final String key, final String kind, final Runnable task) {
+
+        final Slot slot;
+        synchronized (slots) {
+            final Slot existing = slots.get(key);
+            if (existing != null) {
+                final PendingTask last = existing.pending.peekLast();
+                if (last != null && kind != null && kind.equals(last.kind)) {
+                    existing.pending.pollLast();
+                    coalesced.incrementAndGet();
+                }
+                existing.pending.addLast(new PendingTask(kind, task));
+                return;
+            }
+
+            slot = new Slot(key, new PendingTask(kind, task));
+            slots.put(key, slot);
+            tracker.begin();
+        }
+
+        try {
+            executor.execute(slot);
+        } catch (final RejectedExecutionException ex) {
+            if (executor.isShutdown()) {
+                discard(slot);
+            } else {
+                slot.run();
+            }
+        }
+    }
+
+    /**
+     * Returns how many tasks have been replaced by a later task of the same
+     * key without being run.
+     */
+    public long getCoalescedCount() {
+
+        return coalesced.get();
+    }
+
+    /**
+     * Stops the worker threads. Waiting tasks are discarded, and tasks
+     * submitted afterwards are ignored.
+     */
+    public void shutdown() {
+
+        for (final Runnable slot : executor.shutdownNow()) {
+            discard((Slot) slot);
+        }
+    }
+
+    private void discard(final Slot slot) {
+
+        synchronized (slots) {
+            slots.remove(slot.key);
+        }
+        tracker.end();
+    }
+
+    private static final class PendingTask {
+
+        private final String kind;
+        private final Runnable task;
+
+        private PendingTask(final String kind, final Runnable task) {
+
+            this.kind = kind;
+            this.task = task;
+        }
+    }
+
+    private final class Slot implements Runnable {
+
+        private final String key;
+
+        // Tasks not yet run, oldest first; guarded by slots
+        private final Deque<PendingTask> pending = new ArrayDeque<PendingTask>();
+
+        private Slot(final String key, final PendingTask first) {
+
+            this.key = key;
+            this.pending.add(first);
+        }
+
+        @Override
+        public void run() {
+
+            while (true) {
+                final Runnable task;
+                synchronized (slots) {
+                    final PendingTask next = pending.pollFirst();
+                    task = next == null ? null : next.task;
+                    if (task == null) {
+                        slots.remove(key);
+                        tracker.end();
+                        return;
+                    }
+                }
+
+                boolean completed = false;
+                try {
+                    task.run();
+                    completed = true;
+                } catch (final RuntimeException ex) {
+                    LOG.log(Level.WARNING, "Task failed: " + key, ex);
+                    completed = true;
+                } finally {
+                    if (!completed) {
+                        // An error escapes; free the key so it is not stuck
+                        discard(this);
+                    }
+                }
+            }
+        }
+    }
+}
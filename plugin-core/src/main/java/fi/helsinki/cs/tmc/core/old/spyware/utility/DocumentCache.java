@@ -0,0 +1,204 @@
+package fi.helsinki.cs.tmc.core.old.spyware.utility;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the latest known text of open documents, used as the base
+ * of document change patches. The size of the cache is the total number of
+ * characters it holds. When the cache is full, the least recently used
+ * documents are evicted; the next change of an evicted document is sent as a
+ * full document, like the first change of any document.
+ *
+ * The cache is split into segments with their own locks, so that changes of
+ * different documents rarely wait for each other. The segments share the
+ * maximum size: a document is made room for by evicting the least recently
+ * used documents of its own segment, and then of the others if that is not
+ * enough. Only a document larger than the whole cache is not cached at all.
+ */
+public class DocumentCache {
+
+    // Two million characters, or about four megabytes
+    public static final long DEFAULT_MAX_WEIGHT = 2 * 1024 * 1024;
+    public static final int DEFAULT_SEGMENTS = 8;
+
+    private final long maxWeight;
+    private final Segment[] segments;
+
+    // Characters held by all segments together
+    private final AtomicLong weight = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public DocumentCache() {
+
+        this(DEFAULT_MAX_WEIGHT, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maxWeight
+     *            Maximum total number of characters held
+     * @param segmentCount
+     *            Number of independently locked segments
+     */
+    public DocumentCache(final long maxWeight, final int segmentCount) {
+
+        if (maxWeight < 0 || segmentCount < 1) {
+            throw new IllegalArgumentException("Invalid document cache size " + maxWeight + " / " + segmentCount);
+        }
+
+        this.maxWeight = maxWeight;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Stores the document under the key and returns the document previously
+     * stored under it, or null if there was none or it had been evicted.
+     */
+    public CachedDocument swap(final String key, final CachedDocument document) {
+
+        final Segment segment = segmentFor(key);
+        final CachedDocument previous = segment.swap(key, document);
+
+        // Other segments are locked one at a time, never while holding the
+        // lock of another, so the cache may briefly exceed its size
+        for (int i = 0; i < segments.length && weight.get() > maxWeight; i++) {
+            if (segments[i] != segment) {
+                segments[i].evict(key);
+            }
+        }
+
+        if (previous == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return previous;
+    }
+
+    public void remove(final String key) {
+
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * Returns the total number of characters held.
+     */
+    public long getWeight() {
+
+        return weight.get();
+    }
+
+    public long getHitCount() {
+
+        return hits.get();
+    }
+
+    public long getMissCount() {
+
+        return misses.get();
+    }
+
+    /**
+     * Returns how many documents have been dropped to keep the cache within
+     * its size, including documents too large to be cached.
+     */
+    public long getEvictionCount() {
+
+        return evictions.get();
+    }
+
+    private Segment segmentFor(final String key) {
+
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+    private final class Segment {
+
+        // Access ordered, so that iteration starts from the least recently
+        // used document; guarded by this
+        private final LinkedHashMap<String, CachedDocument> documents = new LinkedHashMap<String, CachedDocument>(16, 0.75f, true);
+
+        private synchronized CachedDocument swap(final String key, final CachedDocument document) {
+
+            final CachedDocument previous = remove(key);
+
+            if (document.getWeight() > maxWeight) {
+                evictions.incrementAndGet();
+                return previous;
+            }
+
+            documents.put(key, document);
+            weight.addAndGet(document.getWeight());
+            evict(key);
+
+            return previous;
+        }
+
+        /**
+         * Evicts the least recently used documents of this segment, other
+         * than the one under the given key, until the cache fits its size.
+         */
+        private synchronized void evict(final String keep) {
+
+            final Iterator<Map.Entry<String, CachedDocument>> eldest = documents.entrySet().iterator();
+            while (weight.get() > maxWeight && eldest.hasNext()) {
+                final Map.Entry<String, CachedDocument> entry = eldest.next();
+                if (entry.getKey().equals(keep)) {
+                    continue;
+                }
+                weight.addAndGet(-entry.getValue().getWeight());
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        private synchronized CachedDocument remove(final String key) {
+
+            final CachedDocument previous = documents.remove(key);
+            if (previous != null) {
+                weight.addAndGet(-previous.getWeight());
+            }
+            return previous;
+        }
+    }
+
+    /**
+     * Text of a document after a change, and the number of that change.
+     */
+    public static final class CachedDocument {
+
+        private final String text;
+        private final long changeNumber;
+
+        public CachedDocument(final String text, final long changeNumber) {
+
+            this.text = text;
+            this.changeNumber = changeNumber;
+        }
+
+        public String getText() {
+
+            return text;
+        }
+
+        public long getChangeNumber() {
+
+            return changeNumber;
+        }
+
+        private long getWeight() {
+
+            return text.length();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package fi.helsinki.cs.tmc.core.old.spyware.utility;
+
+import java.util.LinkedList;
+
+import fi.helsinki.cs.tmc.core.old.spyware.utility.diff_match_patch.Diff;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.diff_match_patch.Operation;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.diff_match_patch.Patch;
+
+/**
+ * Builds the patch of a single editor change directly from its offset, length
+ * and inserted text, so that the cost depends on the size of the change
+ * rather than the size of the document. The patch has the same format as the
+ * patches of {@link diff_match_patch#patch_make}, but always Patch_Margin
+ * characters of context on each side, where patch_make adds more context
+ * until it is unique in the text. patch_apply still applies it at the right
+ * place, as it first looks for the context at the offset of the patch.
+ */
+public class EditPatchBuilder {
+
+    private final int margin;
+
+    public EditPatchBuilder(final diff_match_patch patchGenerator) {
+
+        this.margin = patchGenerator.Patch_Margin;
+    }
+
+    /**
+     * Returns the patch that turns the previous text into the current one by
+     * replacing length characters at offset with the inserted text, or null
+     * if the change does not fit the two texts. Only the changed region and
+     * its context are compared.
+     */
+    public LinkedList<Patch> build(final String previous, final String text, final int offset, final int length, final String inserted) {
+
+        final String insertedText = inserted == null ? "" : inserted;
+
+        if (offset < 0 || length < 0 || offset + length > previous.length()) {
+            return null;
+        }
+        if (previous.length() - length + insertedText.length() != text.length()) {
+            return null;
+        }
+        if (!text.regionMatches(offset, insertedText, 0, insertedText.length())) {
+            return null;
+        }
+
+        // Editors often replace a region with partly the same text
+        int start = offset;
+        int deletedEnd = offset + length;
+        int insertedEnd = offset + insertedText.length();
+        while (start < deletedEnd && start < insertedEnd && previous.charAt(start) == text.charAt(start)) {
+            start++;
+        }
+        while (deletedEnd > start && insertedEnd > start && previous.charAt(deletedEnd - 1) == text.charAt(insertedEnd - 1)) {
+            deletedEnd--;
+            insertedEnd--;
+        }
+        start = surrogateSafeStart(previous, start);
+        deletedEnd = surrogateSafeEnd(previous, deletedEnd);
+        insertedEnd = deletedEnd - previous.length() + text.length();
+
+        final LinkedList<Patch> patches = new LinkedList<Patch>();
+        if (start == deletedEnd && start == insertedEnd) {
+            return patches;
+        }
+
+        final int contextStart = surrogateSafeStart(previous, Math.max(0, start - margin));
+        final int contextEnd = surrogateSafeEnd(previous, Math.min(previous.length(), deletedEnd + margin));
+
+        // The context must be unchanged, or the change was not the only one
+        final int suffixLength = contextEnd - deletedEnd;
+        if (!previous.regionMatches(contextStart, text, contextStart, start - contextStart)
+                || !previous.regionMatches(deletedEnd, text, insertedEnd, suffixLength)) {
+            return null;
+        }
+
+        final Patch patch = new Patch();
+        add(patch, Operation.EQUAL, previous.substring(contextStart, start));
+        add(patch, Operation.DELETE, previous.substring(start, deletedEnd));
+        add(patch, Operation.INSERT, text.substring(start, insertedEnd));
+        add(patch, Operation.EQUAL, previous.substring(deletedEnd, contextEnd));
+
+        patch.start1 = contextStart;
+        patch.start2 = contextStart;
+        patch.length1 = contextEnd - contextStart;
+        patch.length2 = insertedEnd + suffixLength - contextStart;
+
+        patches.add(patch);
+        return patches;
+    }
+
+    private static void add(final Patch patch, final Operation operation, final String text) {
+
+        if (!text.isEmpty()) {
+            patch.diffs.add(new Diff(operation, text));
+        }
+    }
+
+    /**
+     * Moves a start index back so that it does not split a surrogate pair.
+     */
+    private static int surrogateSafeStart(final String text, final int index) {
+
+        if (index > 0 && index < text.length() && Character.isLowSurrogate(text.charAt(index))
+                && Character.isHighSurrogate(text.charAt(index - 1))) {
+            return index - 1;
+        }
+        return index;
+    }
+
+    /**
+     * Moves an end index forward so that it does not split a surrogate pair.
+     */
+    private static int surrogateSafeEnd(final String text, final int index) {
+
+        if (index > 0 && index < text.length() && Character.isHighSurrogate(text.charAt(index - 1))
+                && Character.isLowSurrogate(text.charAt(index))) {
+            return index + 1;
+        }
+        return index;
+    }
+}
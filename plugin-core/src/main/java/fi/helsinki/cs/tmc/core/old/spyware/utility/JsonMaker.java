@@ -1,6 +1,10 @@
 package fi.helsinki.cs.tmc.core.old.spyware.utility;
 
+import java.util.Collection;
+
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 /**
  * A convenient way to build ad-hoc JSON objects.
@@ -43,6 +47,16 @@ public class JsonMaker {
         return this;
     }
 
+    public JsonMaker add(final String name, final Collection<String> values) {
+
+        final JsonArray array = new JsonArray();
+        for (final String value : values) {
+            array.add(new JsonPrimitive(value));
+        }
+        toplevel.add(name, array);
+        return this;
+    }
+
     @Override
     public String toString() {
 
@@ -0,0 +1,176 @@
+package fi.helsinki.cs.tmc.core.old.spyware.utility;
+
+/**
+ * The 128-bit x64 variant of MurmurHash3, a fast non-cryptographic hash. Used
+ * to tell whether two payloads are equal without keeping them around.
+ */
+public final class Murmur3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private Murmur3() {
+
+    }
+
+    /**
+     * Returns the hash of the data with seed 0.
+     */
+    public static Hash hash128(final byte[] data) {
+
+        final int length = data.length;
+        final int blocks = length / 16;
+
+        long h1 = 0;
+        long h2 = 0;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        final int tail = blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+
+        switch (length & 15) {
+        case 15:
+            k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+        case 14:
+            k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+        case 13:
+            k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+        case 12:
+            k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+        case 11:
+            k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+        case 10:
+            k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+        case 9:
+            k2 ^= data[tail + 8] & 0xff;
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        case 8:
+            k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+        case 7:
+            k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+        case 6:
+            k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+        case 5:
+            k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+        case 4:
+            k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+        case 3:
+            k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+        case 2:
+            k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+        case 1:
+            k1 ^= data[tail] & 0xff;
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        default:
+            break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        return new Hash(h1, h2);
+    }
+
+    private static long getLong(final byte[] data, final int offset) {
+
+        return (data[offset] & 0xffL) | (data[offset + 1] & 0xffL) << 8 | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24 | (data[offset + 4] & 0xffL) << 32 | (data[offset + 5] & 0xffL) << 40
+                | (data[offset + 6] & 0xffL) << 48 | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long fmix(final long value) {
+
+        long k = value;
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * A 128-bit hash as two longs.
+     */
+    public static final class Hash {
+
+        private final long high;
+        private final long low;
+
+        public Hash(final long high, final long low) {
+
+            this.high = high;
+            this.low = low;
+        }
+
+        public long getHigh() {
+
+            return high;
+        }
+
+        public long getLow() {
+
+            return low;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+
+            if (!(other instanceof Hash)) {
+                return false;
+            }
+            final Hash hash = (Hash) other;
+            return high == hash.high && low == hash.low;
+        }
+
+        @Override
+        public int hashCode() {
+
+            return (int) (low ^ low >>> 32);
+        }
+
+        @Override
+        public String toString() {
+
+            return String.format("%016x%016x", high, low);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package fi.helsinki.cs.tmc.core.old.spyware.utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded multi-producer, single-consumer ring buffer.
+ *
+ * <p>
+ * Producers never block or take a lock: each {@link #add(Object)} claims the
+ * next sequence number and publishes the element into its slot. When the
+ * buffer is full the oldest element is overwritten (drop-oldest).
+ *
+ * <p>
+ * The consumer reads elements with {@link #peek(int)} without removing them
+ * and then moves its cursor forward with {@link #advanceTo(long)} once the
+ * elements have been handled (for example sent to the server). Only one thread
+ * may act as the consumer at a time; {@link #snapshot()} may be called from
+ * any thread.
+ *
+ * <p>
+ * Sequence numbers can be carried over from a previous session with
+ * {@link #restore(long, Object)} and {@link #skipTo(long)} before any producer
+ * uses the buffer. Sequence numbers skipped this way are never returned to the
+ * consumer.
+ *
+ * @param <E>
+ *            The type of the buffered elements
+ */
+public final class RingBuffer<E> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Slot<E>> slots;
+
+    // Next sequence number to be claimed by a producer.
+    private final AtomicLong tail = new AtomicLong();
+
+    // Consumer cursor; all sequences below this have been consumed.
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param minCapacity
+     *            Minimum number of elements retained. Rounded up to the next
+     *            power of two.
+     */
+    public RingBuffer(final int minCapacity) {
+
+        if (minCapacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        int c = 1;
+        while (c < minCapacity) {
+            c <<= 1;
+        }
+        capacity = c;
+        mask = c - 1;
+        slots = new AtomicReferenceArray<Slot<E>>(c);
+    }
+
+    public int getCapacity() {
+
+        return capacity;
+    }
+
+    /**
+     * Adds an element, overwriting the oldest one if the buffer is full. Never
+     * blocks; may be called from any thread.
+     */
+    public void add(final E element) {
+
+        final long sequence = tail.getAndIncrement();
+        final Slot<E> slot = new Slot<E>(sequence, element);
+        final int index = index(sequence);
+
+        while (true) {
+            final Slot<E> current = slots.get(index);
+            if (current != null && current.sequence > sequence) {
+                // A producer that wrapped around already published a newer
+                // element here, so this one counts as dropped.
+                return;
+            }
+            if (slots.compareAndSet(index, current, slot)) {
+                return;
+            }
+        }
+    }
+
+    public void addAll(final Iterable<? extends E> elements) {
+
+        for (final E e : elements) {
+            add(e);
+        }
+    }
+
+    /**
+     * Puts an element back at the sequence number it had earlier. Sequence
+     * numbers must be increasing. Only to be used while initializing the
+     * buffer, before any call to {@link #add(Object)}.
+     */
+    public void restore(final long sequence, final E element) {
+
+        skipTo(sequence);
+        slots.set(index(sequence), new Slot<E>(sequence, element));
+        tail.set(sequence + 1);
+    }
+
+    /**
+     * Moves the tail forward so that the next added element receives the given
+     * sequence number. Only to be used while initializing the buffer, before
+     * any call to {@link #add(Object)}.
+     */
+    public void skipTo(final long sequence) {
+
+        final long t = tail.get();
+        if (sequence <= t) {
+            return;
+        }
+
+        if (head.get() >= t) {
+            // Nothing unconsumed, so the skipped range can be consumed as well
+            head.set(sequence);
+        } else {
+            for (long s = Math.max(t, sequence - capacity); s < sequence; s++) {
+                slots.set(index(s), new Slot<E>(s, null));
+            }
+        }
+        tail.set(sequence);
+    }
+
+    /**
+     * Returns the sequence number of the oldest element still retained.
+     */
+    public long getHeadSequence() {
+
+        return Math.max(head.get(), tail.get() - capacity);
+    }
+
+    /**
+     * Returns the sequence number the next added element will receive.
+     */
+    public long getTailSequence() {
+
+        return tail.get();
+    }
+
+    /**
+     * Returns the number of unconsumed elements. Approximate while producers
+     * are active.
+     */
+    public int size() {
+
+        final long t = tail.get();
+        return (int) (t - Math.max(head.get(), t - capacity));
+    }
+
+    public boolean isEmpty() {
+
+        return size() == 0;
+    }
+
+    /**
+     * Reads up to {@code max} unconsumed elements starting from the consumer
+     * cursor without removing them.
+     */
+    public Batch<E> peek(final int max) {
+
+        return peek(head.get(), max);
+    }
+
+    /**
+     * Reads up to {@code max} elements starting from the given sequence number
+     * without removing them. Reading stops at the first slot whose producer has
+     * not finished publishing yet.
+     */
+    public Batch<E> peek(final long fromSequence, final int max) {
+
+        final long t = tail.get();
+        long sequence = Math.max(fromSequence, Math.max(head.get(), t - capacity));
+        final long start = sequence;
+        final int expected = Math.min(max, (int) Math.max(0, t - sequence));
+        final List<E> elements = new ArrayList<E>(expected);
+        long[] sequences = new long[expected];
+
+        while (sequence < t && elements.size() < max) {
+            final Slot<E> slot = slots.get(index(sequence));
+            if (slot == null || slot.sequence < sequence) {
+                // claimed but not yet published
+                break;
+            }
+            // A newer sequence means the element was overwritten and a null
+            // element marks a skipped sequence; neither is returned
+            if (slot.sequence == sequence && slot.element != null) {
+                if (elements.size() == sequences.length) {
+                    sequences = Arrays.copyOf(sequences, Math.max(16, sequences.length * 2));
+                }
+                sequences[elements.size()] = sequence;
+                elements.add(slot.element);
+            }
+            sequence++;
+        }
+
+        return new Batch<E>(start, sequence, elements, sequences);
+    }
+
+    /**
+     * Marks every element below the given sequence number as consumed and
+     * releases the references to them. Must only be called by the consumer.
+     */
+    public void advanceTo(final long sequence) {
+
+        long previous;
+        do {
+            previous = head.get();
+            if (sequence <= previous) {
+                return;
+            }
+        } while (!head.compareAndSet(previous, sequence));
+
+        final long from = Math.max(previous, sequence - capacity);
+        for (long s = from; s < sequence; s++) {
+            final int index = index(s);
+            final Slot<E> slot = slots.get(index);
+            if (slot != null && slot.sequence < sequence) {
+                slots.compareAndSet(index, slot, null);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of all unconsumed elements in order.
+     */
+    public List<E> snapshot() {
+
+        return peek(capacity).getElements();
+    }
+
+    private int index(final long sequence) {
+
+        return (int) sequence & mask;
+    }
+
+    private static final class Slot<E> {
+
+        private final long sequence;
+        private final E element;
+
+        private Slot(final long sequence, final E element) {
+
+            this.sequence = sequence;
+            this.element = element;
+        }
+    }
+
+    /**
+     * A run of elements read from the buffer together with the sequence range
+     * [start, end) it covers. Passing {@link #getEndSequence()} to
+     * {@link RingBuffer#advanceTo(long)} consumes the batch.
+     */
+    public static final class Batch<E> {
+
+        private final long startSequence;
+        private final long endSequence;
+        private final List<E> elements;
+        private final long[] sequences;
+
+        private Batch(final long startSequence, final long endSequence, final List<E> elements, final long[] sequences) {
+
+            this.startSequence = startSequence;
+            this.endSequence = endSequence;
+            this.elements = Collections.unmodifiableList(elements);
+            this.sequences = sequences;
+        }
+
+        public long getStartSequence() {
+
+            return startSequence;
+        }
+
+        public long getEndSequence() {
+
+            return endSequence;
+        }
+
+        public List<E> getElements() {
+
+            return elements;
+        }
+
+        /**
+         * Returns the sequence number of the i:th element of the batch.
+         */
+        public long getSequence(final int i) {
+
+            if (i < 0 || i >= elements.size()) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", size: " + elements.size());
+            }
+            return sequences[i];
+        }
+
+        public boolean isEmpty() {
+
+            return elements.isEmpty();
+        }
+
+        public int size() {
+
+            return elements.size();
+        }
+    }
+}
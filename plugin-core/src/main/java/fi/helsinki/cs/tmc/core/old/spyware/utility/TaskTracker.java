@@ -0,0 +1,54 @@
+package fi.helsinki.cs.tmc.core.old.spyware.utility;
+
+/**
+ * Counts tasks that have been accepted but not yet finished, so that they can
+ * be waited for before the plugin is closed.
+ */
+public class TaskTracker {
+
+    private int active;
+
+    /**
+     * Marks a task as accepted. Every call must be followed by a call to
+     * {@link #end()} once the task has finished or been discarded.
+     */
+    public synchronized void begin() {
+
+        active++;
+    }
+
+    public synchronized void end() {
+
+        if (active > 0) {
+            active--;
+        }
+        if (active == 0) {
+            notifyAll();
+        }
+    }
+
+    public synchronized int getActiveCount() {
+
+        return active;
+    }
+
+    /**
+     * Waits until every accepted task has finished or the timeout elapses.
+     *
+     * @param timeout
+     *            Maximum time to wait in milliseconds
+     * @return true if no tasks were left
+     */
+    public synchronized boolean awaitIdle(final long timeout) throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (active > 0) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
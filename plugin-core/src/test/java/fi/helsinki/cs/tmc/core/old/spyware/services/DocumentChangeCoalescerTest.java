@@ -0,0 +1,134 @@
+package fi.helsinki.cs.tmc.core.old.spyware.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import fi.helsinki.cs.tmc.core.old.spyware.DocumentInfo;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.EditPatchBuilder;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.diff_match_patch;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.diff_match_patch.Patch;
+
+public class DocumentChangeCoalescerTest {
+
+    private static final String PATH = "/tmp/project/src/Foo.java";
+
+    private static final String SOURCE = "public class Foo {\n    int x = 1;\n}\n";
+
+    // Two characters each
+    private static final String GRIN = "😀";
+    private static final String BEAM = "😁";
+
+    // Name, text before the edits, number of changes passed on, edits as
+    // offset, length and inserted text
+    private static final Object[][] RUNS = {
+        { "typing at start", SOURCE, 1, edits(0, 0, "i", 1, 0, "m", 2, 0, "p") },
+        { "typing in middle", SOURCE, 1, edits(31, 0, "2", 32, 0, "3", 33, 0, "4") },
+        { "typing at end", SOURCE, 1, edits(36, 0, "/", 37, 0, "/", 38, 0, "x") },
+        { "backspace at start", SOURCE, 1, edits(2, 1, "", 1, 1, "", 0, 1, "") },
+        { "delete in middle", SOURCE, 1, edits(13, 1, "", 13, 1, "", 13, 1, "") },
+        { "backspace at end", SOURCE, 1, edits(35, 1, "", 34, 1, "", 33, 1, "") },
+        { "replace at start then type", SOURCE, 1, edits(0, 6, "pr", 2, 0, "i", 3, 0, "v") },
+        { "adjacent replacements in middle", SOURCE, 1, edits(13, 1, "B", 14, 2, "ar", 16, 0, "s") },
+        { "replace at end", SOURCE, 1, edits(34, 2, "}", 35, 0, "\n") },
+        { "insert inside the run", SOURCE, 1, edits(31, 0, "2", 32, 0, "3", 32, 0, "x") },
+        { "insert before the run", SOURCE, 1, edits(31, 0, "2", 31, 0, "3") },
+        { "non-adjacent inserts", SOURCE, 2, edits(13, 0, "X", 31, 0, "2") },
+        { "inserts one character apart", SOURCE, 2, edits(31, 0, "2", 33, 0, "3") },
+        { "non-adjacent removals", SOURCE, 2, edits(13, 1, "", 28, 1, "") },
+        { "insert then backspace", SOURCE, 2, edits(31, 0, "2", 31, 1, "") },
+        { "backspace then insert", SOURCE, 2, edits(30, 1, "", 30, 0, "2") },
+        { "typing surrogate pairs", SOURCE, 1, edits(22, 0, GRIN, 24, 0, BEAM, 26, 0, " ") },
+        { "removing surrogate pairs", "ab" + GRIN + BEAM + "cd", 1, edits(4, 2, "", 2, 2, "") },
+        { "replacing surrogate pair", "ab" + GRIN + "cd", 1, edits(2, 2, BEAM, 4, 0, GRIN) },
+        { "paste between typing", SOURCE, 3, edits(31, 0, "2", 32, 0, "3456", 36, 0, "7") },
+    };
+
+    private final diff_match_patch dmp = new diff_match_patch();
+
+    @Test
+    public void mergedChangesApplyLikePatchMake() {
+
+        for (final Object[] run : RUNS) {
+            final String name = (String) run[0];
+            final String initial = (String) run[1];
+            final int expectedChanges = (Integer) run[2];
+            final Object[][] edits = (Object[][]) run[3];
+
+            final RecordingHandler handler = new RecordingHandler();
+            final DocumentChangeCoalescer coalescer = new DocumentChangeCoalescer(handler, 60 * 1000, 60 * 1000);
+
+            String text = initial;
+            for (final Object[] edit : edits) {
+                final int offset = (Integer) edit[0];
+                final int length = (Integer) edit[1];
+                final String inserted = (String) edit[2];
+                text = text.substring(0, offset) + inserted + text.substring(offset + length);
+                coalescer.handleEvent(new DocumentInfo(PATH, "src/Foo.java", text, inserted, offset, length));
+            }
+            coalescer.close();
+
+            assertEquals(name, expectedChanges, handler.changes.size());
+
+            final EditPatchBuilder builder = new EditPatchBuilder(dmp);
+            String previous = initial;
+            for (final DocumentInfo change : handler.changes) {
+                final String current = change.getEditorText();
+                final String inserted = change.getEventText();
+                final int offset = change.getOffset();
+                final int length = change.getLength();
+
+                assertEquals(name, current, previous.substring(0, offset) + inserted + previous.substring(offset + length));
+
+                final LinkedList<Patch> patches = builder.build(previous, current, offset, length, inserted);
+                assertNotNull(name, patches);
+                assertEquals(name, current, apply(patches, previous));
+
+                previous = current;
+            }
+
+            assertEquals(name, text, previous);
+            assertEquals(name, apply(dmp.patch_make(initial, text), initial), previous);
+        }
+    }
+
+    private static Object[][] edits(final Object... values) {
+
+        final Object[][] edits = new Object[values.length / 3][];
+        for (int i = 0; i < edits.length; i++) {
+            edits[i] = new Object[] { values[3 * i], values[3 * i + 1], values[3 * i + 2] };
+        }
+        return edits;
+    }
+
+    private String apply(final LinkedList<Patch> patches, final String text) {
+
+        final Object[] result = dmp.patch_apply(patches, text);
+        for (final boolean applied : (boolean[]) result[1]) {
+            assertTrue(applied);
+        }
+        return (String) result[0];
+    }
+
+    private static final class RecordingHandler extends DocumentChangeHandler {
+
+        private final List<DocumentInfo> changes = new ArrayList<DocumentInfo>();
+
+        private RecordingHandler() {
+
+            super(null, null, null, null, null, null);
+        }
+
+        @Override
+        public void handleEvent(final DocumentInfo info) {
+
+            changes.add(info);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package fi.helsinki.cs.tmc.core.old.spyware.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fi.helsinki.cs.tmc.core.old.io.FileIO;
+import fi.helsinki.cs.tmc.core.old.spyware.utility.RingBuffer;
+
+public class EventJournalTest {
+
+    // Small enough that a few events span several segments
+    private static final long SEGMENT_SIZE = 200;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayRestoresUnacknowledgedEvents() throws IOException {
+
+        final File directory = folder.newFolder("journal");
+        write(directory, 20, 5);
+
+        assertEquals(range(5, 20), replay(directory));
+    }
+
+    @Test
+    public void compactionKeepsUnacknowledgedEvents() throws IOException {
+
+        final File directory = folder.newFolder("journal");
+        final EventJournal journal = write(directory, 20, 6);
+        journal.open();
+        journal.compact();
+        journal.close();
+
+        assertEquals(range(6, 20), replay(directory));
+    }
+
+    @Test
+    public void recoveryAdoptsRewriteWhoseSourceSegmentIsGone() throws IOException {
+
+        final File directory = folder.newFolder("journal");
+        write(directory, 20, 2);
+
+        // The state after a crash between deleting the first segment and
+        // moving its rewrite into place
+        final File first = segments(directory).get(0);
+        assertTrue(first.renameTo(new File(directory, firstSequenceOf(first) + ".segment.tmp")));
+
+        assertEquals(range(2, 20), replay(directory));
+        assertEquals(0, temporaryFiles(directory).size());
+    }
+
+    @Test
+    public void recoveryDiscardsRewriteWhoseSourceSegmentExists() throws IOException {
+
+        final File directory = folder.newFolder("journal");
+        write(directory, 20, 2);
+        final int segmentCount = segments(directory).size();
+
+        // A crash while the rewrite was still being written
+        final File first = segments(directory).get(0);
+        final File temp = new File(directory, firstSequenceOf(first) + ".segment.tmp");
+        assertTrue(temp.createNewFile());
+
+        assertEquals(range(2, 20), replay(directory));
+        assertFalse(temp.exists());
+        assertEquals(segmentCount, segments(directory).size());
+    }
+
+    /**
+     * Journals events with the data 0 to count - 1 and acknowledges those
+     * below the given sequence number.
+     */
+    private static EventJournal write(final File directory, final int count, final long acknowledged) throws IOException {
+
+        final EventJournal journal = new EventJournal(new FileIO(directory.getPath()), SEGMENT_SIZE);
+        journal.open();
+        for (int i = 0; i < count; i++) {
+            journal.append(i, new LoggableEvent("course", "exercise", "test", String.valueOf(i).getBytes(UTF8)));
+        }
+        journal.flush();
+        journal.acknowledge(acknowledged);
+        journal.close();
+        return journal;
+    }
+
+    private static List<String> replay(final File directory) throws IOException {
+
+        final EventJournal journal = new EventJournal(new FileIO(directory.getPath()), SEGMENT_SIZE);
+        journal.open();
+        final RingBuffer<LoggableEvent> queue = new RingBuffer<LoggableEvent>(64);
+        journal.replay(queue);
+        journal.close();
+
+        final List<String> data = new ArrayList<String>();
+        for (final LoggableEvent event : queue.snapshot()) {
+            data.add(new String(event.getData(), UTF8));
+        }
+        return data;
+    }
+
+    private static List<String> range(final int from, final int to) {
+
+        final List<String> data = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            data.add(String.valueOf(i));
+        }
+        return data;
+    }
+
+    private static List<File> segments(final File directory) {
+
+        final List<File> segments = new ArrayList<File>();
+        for (final File file : sortedFiles(directory)) {
+            if (file.getName().endsWith(".segment")) {
+                segments.add(file);
+            }
+        }
+        return segments;
+    }
+
+    private static List<File> temporaryFiles(final File directory) {
+
+        final List<File> temporary = new ArrayList<File>();
+        for (final File file : sortedFiles(directory)) {
+            if (file.getName().endsWith(".tmp")) {
+                temporary.add(file);
+            }
+        }
+        return temporary;
+    }
+
+    private static List<File> sortedFiles(final File directory) {
+
+        final File[] files = directory.listFiles();
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private static long firstSequenceOf(final File segment) {
+
+        final String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - ".segment".length()));
+    }
+}
@@ -0,0 +1,101 @@
+package fi.helsinki.cs.tmc.core.old.spyware.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedList;
+
+import org.junit.Test;
+
+import fi.helsinki.cs.tmc.core.old.spyware.utility.diff_match_patch.Patch;
+
+public class EditPatchBuilderTest {
+
+    private static final String SOURCE = "public class Foo {\n    int x = 1;\n    int y = 2;\n}\n";
+
+    // Two characters each
+    private static final String GRIN = "😀";
+    private static final String BEAM = "😁";
+    // Same low surrogate as GRIN
+    private static final String LINEAR_A = "\uD801\uDE00";
+
+    private static final String EMOJI = "a" + GRIN + "bcdefgh" + GRIN + "ijk" + BEAM + "lmnopqr";
+
+    // Name, previous text, offset, length, inserted text
+    private static final Object[][] EDITS = {
+        { "insert at start", SOURCE, 0, 0, "// Foo\n" },
+        { "insert in middle", SOURCE, 28, 0, "23" },
+        { "insert at end", SOURCE, SOURCE.length(), 0, "\n" },
+        { "remove at start", SOURCE, 0, 7, "" },
+        { "remove in middle", SOURCE, 23, 12, "" },
+        { "remove at end", SOURCE, SOURCE.length() - 2, 2, "" },
+        { "replace at start", SOURCE, 0, 6, "private" },
+        { "replace in middle", SOURCE, 13, 3, "Bar" },
+        { "replace at end", SOURCE, SOURCE.length() - 2, 2, "}" },
+        { "replace with partly the same text", SOURCE, 23, 11, "int x = 12;" },
+        { "replace with the same text", SOURCE, 13, 3, "Foo" },
+        { "insert into empty text", "", 0, 0, "class A {}" },
+        { "remove all text", SOURCE, 0, SOURCE.length(), "" },
+        { "insert surrogate pair", EMOJI, 4, 0, GRIN },
+        { "remove surrogate pair", EMOJI, 1, 2, "" },
+        { "replace surrogate pair sharing its high surrogate", EMOJI, 15, 2, GRIN },
+        { "replace surrogate pair sharing its low surrogate", EMOJI, 10, 2, LINEAR_A },
+        { "context boundaries inside surrogate pairs", EMOJI, 6, 1, "X" },
+        { "context boundary inside surrogate pair after edit", EMOJI, 12, 0, "X" },
+    };
+
+    private final diff_match_patch dmp = new diff_match_patch();
+    private final EditPatchBuilder builder = new EditPatchBuilder(dmp);
+
+    @Test
+    public void patchesApplyLikePatchMake() {
+
+        for (final Object[] edit : EDITS) {
+            final String name = (String) edit[0];
+            final String previous = (String) edit[1];
+            final int offset = (Integer) edit[2];
+            final int length = (Integer) edit[3];
+            final String inserted = (String) edit[4];
+            final String text = previous.substring(0, offset) + inserted + previous.substring(offset + length);
+
+            final LinkedList<Patch> patches = builder.build(previous, text, offset, length, inserted);
+            assertNotNull(name, patches);
+
+            assertEquals(name, apply(dmp.patch_make(previous, text), previous), apply(patches, previous));
+            assertEquals(name, text, apply(patches, previous));
+
+            // The patches are sent as text
+            final LinkedList<Patch> parsed = new LinkedList<Patch>(dmp.patch_fromText(dmp.patch_toText(patches)));
+            assertEquals(name, text, apply(parsed, previous));
+        }
+    }
+
+    @Test
+    public void secondEditInContextIsRejected() {
+
+        final String text = "public class Bar (\n    int x = 1;\n    int y = 2;\n}\n";
+
+        assertNull(builder.build(SOURCE, text, 13, 3, "Bar"));
+    }
+
+    @Test
+    public void editNotMatchingTheTextIsRejected() {
+
+        final String text = SOURCE.substring(0, 13) + "Bar" + SOURCE.substring(16);
+
+        assertNull(builder.build(SOURCE, text, 13, 3, "Baz"));
+        assertNull(builder.build(SOURCE, text, 13, 4, "Bar"));
+        assertNull(builder.build(SOURCE, text, SOURCE.length(), 3, "Bar"));
+    }
+
+    private String apply(final LinkedList<Patch> patches, final String text) {
+
+        final Object[] result = dmp.patch_apply(patches, text);
+        for (final boolean applied : (boolean[]) result[1]) {
+            assertTrue(applied);
+        }
+        return (String) result[0];
+    }
+}
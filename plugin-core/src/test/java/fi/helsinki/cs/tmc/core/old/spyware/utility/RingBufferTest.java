@@ -0,0 +1,165 @@
+package fi.helsinki.cs.tmc.core.old.spyware.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int PER_PRODUCER = 50000;
+
+    @Test
+    public void concurrentProducersDeliverEveryElementExactlyOnce() throws Exception {
+
+        final RingBuffer<Long> buffer = new RingBuffer<Long>(PRODUCERS * PER_PRODUCER);
+        final Thread[] producers = startProducers(buffer);
+
+        final int[] received = new int[PRODUCERS * PER_PRODUCER];
+        final long[] lastFromProducer = new long[PRODUCERS];
+        Arrays.fill(lastFromProducer, -1);
+
+        long total = 0;
+        while (total < received.length) {
+            final RingBuffer.Batch<Long> batch = buffer.peek(1000);
+            for (final Long value : batch.getElements()) {
+                received[value.intValue()]++;
+
+                // Each producer's elements arrive in the order it added them
+                final int producer = (int) (value / PER_PRODUCER);
+                assertTrue("Out of order: " + value, value > lastFromProducer[producer]);
+                lastFromProducer[producer] = value;
+            }
+            buffer.advanceTo(batch.getEndSequence());
+            total += batch.size();
+
+            if (batch.isEmpty() && !anyAlive(producers) && buffer.peek(1).isEmpty()) {
+                break;
+            }
+        }
+        join(producers);
+
+        for (int i = 0; i < received.length; i++) {
+            assertEquals("Times received element " + i, 1, received[i]);
+        }
+        assertTrue(buffer.isEmpty());
+        assertEquals(received.length, buffer.getTailSequence());
+    }
+
+    @Test
+    public void overflowDropsOldestElements() {
+
+        final RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+        for (int i = 0; i < 10; i++) {
+            buffer.add(i);
+        }
+
+        assertEquals(Arrays.asList(6, 7, 8, 9), buffer.snapshot());
+        assertEquals(6, buffer.getHeadSequence());
+        assertEquals(4, buffer.size());
+    }
+
+    @Test
+    public void overflowAfterConsumingKeepsNewestElements() {
+
+        final RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+        for (int i = 0; i < 4; i++) {
+            buffer.add(i);
+        }
+        buffer.advanceTo(buffer.peek(2).getEndSequence());
+        for (int i = 4; i < 7; i++) {
+            buffer.add(i);
+        }
+
+        final RingBuffer.Batch<Integer> batch = buffer.peek(10);
+        assertEquals(Arrays.asList(3, 4, 5, 6), batch.getElements());
+        assertEquals(3, batch.getSequence(0));
+    }
+
+    @Test
+    public void concurrentOverflowKeepsOnlyNewestSequences() throws Exception {
+
+        final RingBuffer<Long> buffer = new RingBuffer<Long>(64);
+        join(startProducers(buffer));
+
+        final RingBuffer.Batch<Long> batch = buffer.peek(buffer.getCapacity());
+        final long tail = buffer.getTailSequence();
+        assertEquals(PRODUCERS * PER_PRODUCER, tail);
+        assertEquals(buffer.getCapacity(), batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(tail - buffer.getCapacity() + i, batch.getSequence(i));
+        }
+    }
+
+    @Test
+    public void restoredElementsKeepTheirSequences() {
+
+        final RingBuffer<String> buffer = new RingBuffer<String>(8);
+        buffer.restore(10, "a");
+        buffer.restore(12, "b");
+        buffer.skipTo(14);
+        buffer.add("c");
+
+        final RingBuffer.Batch<String> batch = buffer.peek(8);
+        assertEquals(Arrays.asList("a", "b", "c"), batch.getElements());
+        assertEquals(10, batch.getSequence(0));
+        assertEquals(12, batch.getSequence(1));
+        assertEquals(14, batch.getSequence(2));
+        assertFalse(buffer.isEmpty());
+    }
+
+    /**
+     * Starts producers that each add their own range of values, so that every
+     * value identifies its producer.
+     */
+    private static Thread[] startProducers(final RingBuffer<Long> buffer) {
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] producers = new Thread[PRODUCERS];
+
+        for (int p = 0; p < PRODUCERS; p++) {
+            final long first = (long) p * PER_PRODUCER;
+            producers[p] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        start.await();
+                        for (long value = first; value < first + PER_PRODUCER; value++) {
+                            buffer.add(value);
+                        }
+                    } catch (final InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            producers[p].start();
+        }
+
+        start.countDown();
+        return producers;
+    }
+
+    private static boolean anyAlive(final Thread[] threads) {
+
+        for (final Thread thread : threads) {
+            if (thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void join(final Thread[] threads) throws InterruptedException {
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+    }
+}